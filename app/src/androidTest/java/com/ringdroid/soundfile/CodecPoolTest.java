@@ -0,0 +1,51 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class CodecPoolTest {
+    @After
+    public void tearDown() {
+        CodecPool.releaseIdleCodecs();
+    }
+
+    private static MediaFormat rawFormat() {
+        return MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_RAW, 44100, 2);
+    }
+
+    @Test
+    public void testRecycledDecoderIsReused() throws Exception {
+        MediaCodec codec = CodecPool.acquireDecoder(rawFormat());
+        codec.start();
+        CodecPool.recycle(codec);
+        MediaCodec reused = CodecPool.acquireDecoder(rawFormat());
+        try {
+            assertSame(codec, reused);
+            reused.start();
+        } finally {
+            CodecPool.recycle(reused);
+        }
+    }
+
+    @Test
+    public void testDecodersInUseAreNotShared() throws Exception {
+        MediaCodec first = CodecPool.acquireDecoder(rawFormat());
+        MediaCodec second = CodecPool.acquireDecoder(rawFormat());
+        try {
+            assertNotSame(first, second);
+        } finally {
+            CodecPool.recycle(first);
+            CodecPool.recycle(second);
+        }
+    }
+}
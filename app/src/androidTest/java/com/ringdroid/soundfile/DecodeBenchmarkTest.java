@@ -0,0 +1,155 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Compares the polling and the asynchronous decoding engines, and measures the bytes copied and
+// allocated and the garbage collections per decoded minute. The results are written to logcat
+// with the DecodeBenchmark tag, followed by the time of each stage with the Metrics tag.
+@RunWith(AndroidJUnit4.class)
+public class DecodeBenchmarkTest {
+    private static final String TAG = "DecodeBenchmark";
+    private static final int NUM_RUNS = 5;
+
+    private File outDir;
+    private File oggFile;
+    private boolean asyncDecoding;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        outDir = context.getCacheDir();
+        oggFile = new File(outDir, "benchmark_audio.ogg");
+        try (InputStream in = InstrumentationRegistry.getInstrumentation().getContext().getAssets()
+                .open("test_audio.ogg"); FileOutputStream out = new FileOutputStream(oggFile)) {
+            byte[] buf = new byte[1024];
+            int len;
+            while ((len = in.read(buf)) > 0)
+                out.write(buf, 0, len);
+        }
+        asyncDecoding = SoundFile.isAsyncDecoding();
+        // Make sure every run actually decodes the file.
+        SoundFile.setPcmCacheMaxBytes(0);
+    }
+
+    @After
+    public void tearDown() {
+        SoundFile.setPcmCacheMaxBytes(PcmCache.DEFAULT_MAX_BYTES);
+        SoundFile.setAsyncDecoding(asyncDecoding);
+        oggFile.delete();
+    }
+
+    private SoundFile decode(boolean async) throws Exception {
+        SoundFile.setAsyncDecoding(async);
+        SoundFile soundFile = SoundFile.create(outDir, oggFile.getAbsolutePath(), null);
+        assertNotNull(soundFile);
+        return soundFile;
+    }
+
+    private void benchmark(String name, boolean async) throws Exception {
+        // Warm up.
+        decode(async).release();
+        Metrics.reset();
+        Metrics.setEnabled(true);
+        long wallTime = 0;
+        long cpuTime = 0;
+        for (int i = 0; i < NUM_RUNS; i++) {
+            long startWallTime = SystemClock.elapsedRealtimeNanos();
+            long startCpuTime = Process.getElapsedCpuTime();
+            SoundFile soundFile = decode(async);
+            cpuTime += Process.getElapsedCpuTime() - startCpuTime;
+            wallTime += SystemClock.elapsedRealtimeNanos() - startWallTime;
+            soundFile.release();
+        }
+        Metrics.setEnabled(false);
+        Log.i(TAG, String.format(Locale.US, "%s: %.1f ms wall time, %d ms CPU time per decoding",
+                name, wallTime / 1e6 / NUM_RUNS, cpuTime / NUM_RUNS));
+        Metrics.dumpToLog();
+    }
+
+    // Returns the runtime statistic called name, see Debug.getRuntimeStat.
+    private static long getRuntimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    private void measureCopies(String name, boolean async) throws Exception {
+        // Warm up.
+        decode(async).release();
+        Metrics.reset();
+        Metrics.setEnabled(true);
+        long startGcCount = getRuntimeStat("art.gc.gc-count");
+        long startAllocatedBytes = getRuntimeStat("art.gc.bytes-allocated");
+        long startNativeBytes = Debug.getNativeHeapAllocatedSize();
+        double decodedMinutes = 0;
+        for (int i = 0; i < NUM_RUNS; i++) {
+            SoundFile soundFile = decode(async);
+            decodedMinutes += soundFile.getNumSamples() / 60.0 / soundFile.getSampleRate();
+            soundFile.release();
+        }
+        long gcCount = getRuntimeStat("art.gc.gc-count") - startGcCount;
+        long allocatedBytes = getRuntimeStat("art.gc.bytes-allocated") - startAllocatedBytes;
+        long nativeBytes = Debug.getNativeHeapAllocatedSize() - startNativeBytes;
+        Metrics.setEnabled(false);
+        Log.i(TAG, String.format(Locale.US, "%s: per decoded minute, %.0f KB copied, %.0f KB in "
+                + "PCM stores, %.0f KB allocated in the Java heap, %+.0f KB of native heap, "
+                + "%.2f garbage collections", name,
+                Metrics.getCount("decode.copied_bytes") / 1024.0 / decodedMinutes,
+                Metrics.getCount("pcm.allocated_bytes") / 1024.0 / decodedMinutes,
+                allocatedBytes / 1024.0 / decodedMinutes, nativeBytes / 1024.0 / decodedMinutes,
+                gcCount / decodedMinutes));
+        Metrics.dumpToLog();
+    }
+
+    @Test
+    public void testEnginesDecodeTheSameSamples() throws Exception {
+        SoundFile polling = decode(false);
+        SoundFile async = decode(true);
+        assertEquals(polling.getSampleRate(), async.getSampleRate());
+        assertEquals(polling.getChannels(), async.getChannels());
+        assertEquals(polling.getNumSamples(), async.getNumSamples());
+        SampleBuffer pollingSamples = polling.getSamples();
+        SampleBuffer asyncSamples = async.getSamples();
+        assertEquals(pollingSamples.remaining(), asyncSamples.remaining());
+        while (pollingSamples.hasRemaining()) {
+            assertEquals(pollingSamples.get(), asyncSamples.get());
+        }
+        assertArrayEquals(Arrays.copyOf(polling.getFrameGains(), polling.getNumFrames()),
+                Arrays.copyOf(async.getFrameGains(), async.getNumFrames()));
+        polling.release();
+        async.release();
+    }
+
+    @Test
+    public void testCompareEngines() throws Exception {
+        benchmark("Polling", false);
+        benchmark("Async", true);
+    }
+
+    @Test
+    public void testCopiesAndAllocationsPerMinute() throws Exception {
+        measureCopies("Polling", false);
+        measureCopies("Async", true);
+    }
+}
@@ -0,0 +1,123 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Checks that a file long enough to be split into several ranges is decoded in parallel to the
+// same samples and frame gains as sequentially. The speedup is written to logcat with the
+// ParallelDecoder tag.
+@RunWith(AndroidJUnit4.class)
+public class ParallelDecoderTest {
+    private static final String TAG = "ParallelDecoder";
+    private static final int SAMPLE_RATE = 44100;
+    private static final int DURATION_SECONDS = 90;
+
+    private File outDir;
+    private File wavFile;
+    private File m4aFile;
+    private boolean parallelDecoding;
+
+    @Before
+    public void setUp() throws Exception {
+        outDir = InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir();
+        wavFile = new File(outDir, "parallel_audio.wav");
+        m4aFile = new File(outDir, "parallel_audio.m4a");
+        parallelDecoding = SoundFile.isParallelDecoding();
+        // Make sure every run actually decodes the file.
+        SoundFile.setPcmCacheMaxBytes(0);
+
+        // A stereo sweep, so that a shifted range changes the samples.
+        long numSamples = (long) SAMPLE_RATE * DURATION_SECONDS;
+        try (OutputStream out = new FileOutputStream(wavFile)) {
+            out.write(WAVHeader.getWAVHeader(SAMPLE_RATE, 2, numSamples));
+            ByteBuffer buffer = ByteBuffer.allocate(4 * SAMPLE_RATE).order(ByteOrder.LITTLE_ENDIAN);
+            double phase = 0;
+            for (long i = 0; i < numSamples; i++) {
+                phase += 2 * Math.PI * (200 + 1800.0 * i / numSamples) / SAMPLE_RATE;
+                short sample = (short) (Math.sin(phase) * 8000 * (1 + (i / SAMPLE_RATE) % 3));
+                buffer.putShort(sample);
+                buffer.putShort((short) -sample);
+                if (!buffer.hasRemaining()) {
+                    out.write(buffer.array());
+                    buffer.clear();
+                }
+            }
+            out.write(buffer.array(), 0, buffer.position());
+        }
+        SoundFile wav = SoundFile.create(outDir, wavFile.getAbsolutePath(), null);
+        assertNotNull(wav);
+        try {
+            wav.WriteFile(m4aFile, 0, wav.getNumFrames());
+        } finally {
+            wav.release();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        SoundFile.setPcmCacheMaxBytes(PcmCache.DEFAULT_MAX_BYTES);
+        SoundFile.setParallelDecoding(parallelDecoding);
+        wavFile.delete();
+        m4aFile.delete();
+    }
+
+    private SoundFile decode(boolean parallel) throws Exception {
+        SoundFile.setParallelDecoding(parallel);
+        SoundFile soundFile = SoundFile.create(outDir, m4aFile.getAbsolutePath(), null);
+        assertNotNull(soundFile);
+        return soundFile;
+    }
+
+    @Test
+    public void testParallelDecodingMatchesSequentialDecoding() throws Exception {
+        assumeTrue("Not enough cores to decode in parallel",
+                ParallelDecoder.getNumRanges(DURATION_SECONDS * 1000000L) > 1);
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        SoundFile sequential = decode(false);
+        long sequentialTime = SystemClock.elapsedRealtimeNanos() - startTime;
+        startTime = SystemClock.elapsedRealtimeNanos();
+        SoundFile parallel = decode(true);
+        long parallelTime = SystemClock.elapsedRealtimeNanos() - startTime;
+        Log.i(TAG, String.format(Locale.US,
+                "%d ranges: %.1f ms sequentially, %.1f ms in parallel, %.2fx speedup",
+                ParallelDecoder.getNumRanges(DURATION_SECONDS * 1000000L), sequentialTime / 1e6,
+                parallelTime / 1e6, (double) sequentialTime / parallelTime));
+        try {
+            assertEquals(sequential.getSampleRate(), parallel.getSampleRate());
+            assertEquals(sequential.getChannels(), parallel.getChannels());
+            assertEquals(sequential.getNumSamples(), parallel.getNumSamples());
+            SampleBuffer sequentialSamples = sequential.getSamples();
+            SampleBuffer parallelSamples = parallel.getSamples();
+            assertEquals(sequentialSamples.remaining(), parallelSamples.remaining());
+            while (sequentialSamples.hasRemaining()) {
+                assertEquals(sequentialSamples.get(), parallelSamples.get());
+            }
+            assertArrayEquals(Arrays.copyOf(sequential.getFrameGains(), sequential.getNumFrames()),
+                    Arrays.copyOf(parallel.getFrameGains(), parallel.getNumFrames()));
+        } finally {
+            sequential.release();
+            parallel.release();
+        }
+    }
+}
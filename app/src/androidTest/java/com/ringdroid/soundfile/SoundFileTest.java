@@ -6,6 +6,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import android.Manifest;
 import android.content.Context;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
@@ -20,10 +21,12 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -131,12 +134,15 @@ public class SoundFileTest {
         assertEquals(1024, soundFile.getSamplesPerFrame());
 
         assertNotNull(soundFile.getFrameGains());
-        ShortBuffer samples = soundFile.getSamples();
+        SampleBuffer samples = soundFile.getSamples();
         assertNotNull(samples);
         assertTrue(samples.capacity() > 0);
 
         soundFile.release();
         assertNull(soundFile.getSamples());
+        // The waveform may still be drawn from a released SoundFile.
+        assertEquals(0, soundFile.getNumFrames());
+        assertEquals(0, soundFile.getPeaks(0, 1024, 10, new byte[10], new byte[10]));
     }
 
     @Test
@@ -151,6 +157,22 @@ public class SoundFileTest {
         assertNotNull(soundFile);
     }
 
+    @Test
+    public void testCreateFromUri() throws Exception {
+        SoundFile soundFile = SoundFile.create(context, android.net.Uri.fromFile(testWavFile),
+                null);
+        assertNotNull(soundFile);
+        assertEquals("wav", soundFile.getFiletype());
+        assertEquals(44100, soundFile.getSampleRate());
+        assertTrue(soundFile.getNumSamples() > 0);
+        soundFile.release();
+    }
+
+    @Test(expected = java.io.FileNotFoundException.class)
+    public void testCreateFromUriNotFound() throws Exception {
+        SoundFile.create(context, android.net.Uri.parse("content://dummy/file.wav"), null);
+    }
+
     @Test
     public void testInvalidInputException() {
         SoundFile.InvalidInputException e = new SoundFile.InvalidInputException("Test message");
@@ -177,14 +199,14 @@ public class SoundFileTest {
         }
 
         try {
-            SoundFile.sMaxAllowedMemoryOverride = 10;
+            SoundFile.setPcmBudget(10);
             SoundFile.create(outDir, oggFile.getAbsolutePath(), null);
             org.junit.Assert.fail("Expected InvalidInputException for a file that is too large");
         } catch (SoundFile.InvalidInputException e) {
             assertTrue(Objects.requireNonNull(e.getMessage())
                     .contains("Audio file is too long for the available memory"));
         } finally {
-            SoundFile.sMaxAllowedMemoryOverride = -1;
+            SoundFile.setPcmBudget(-1);
             oggFile.delete();
         }
     }
@@ -246,6 +268,69 @@ public class SoundFileTest {
         }
     }
 
+    @Test
+    public void testLazyDecodingReadsTheSameSamples() throws Exception {
+        // A compressed file, as the samples of WAV files are mapped without being decoded.
+        File oggFile = new File(outDir, "lazy_audio.ogg");
+        try (InputStream in = InstrumentationRegistry.getInstrumentation().getContext().getAssets()
+                .open("test_audio.ogg"); FileOutputStream out = new FileOutputStream(oggFile)) {
+            byte[] buf = new byte[1024];
+            int len;
+            while ((len = in.read(buf)) > 0)
+                out.write(buf, 0, len);
+        }
+        SoundFile.setPcmCacheMaxBytes(0);
+        SoundFile full = SoundFile.create(outDir, oggFile.getAbsolutePath(), null);
+        SoundFile.setLazyDecoding(true);
+        try {
+            SoundFile lazy = SoundFile.create(outDir, oggFile.getAbsolutePath(), null);
+            assertNotNull(lazy);
+            assertEquals(full.getNumSamples(), lazy.getNumSamples());
+            assertEquals(full.getNumFrames(), lazy.getNumFrames());
+            SampleBuffer fullSamples = full.getSamples();
+            SampleBuffer lazySamples = lazy.getSamples();
+            // Read the end first, so that the lazy decoder has to seek back to the start.
+            long last = fullSamples.limit() - 1;
+            assertEquals(fullSamples.get(last), lazySamples.get(last));
+            while (fullSamples.hasRemaining()) {
+                assertEquals(fullSamples.get(), lazySamples.get());
+            }
+            lazy.release();
+        } finally {
+            SoundFile.setLazyDecoding(false);
+            SoundFile.setPcmCacheMaxBytes(PcmCache.DEFAULT_MAX_BYTES);
+            full.release();
+            oggFile.delete();
+        }
+    }
+
+    @Test
+    public void testWavSamplesAreMappedInPlace() throws Exception {
+        WAVHeader header;
+        ByteBuffer data;
+        try (RandomAccessFile raf = new RandomAccessFile(testWavFile, "r")) {
+            header = WAVHeader.parse(raf.getChannel());
+            assertNotNull(header);
+            data = ByteBuffer.allocate((int) (header.getNumSamples() * header.getChannels() * 2))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            raf.getChannel().read(data, header.getDataOffset());
+            data.flip();
+        }
+        SoundFile soundFile = SoundFile.create(outDir, testWavFile.getAbsolutePath(), null);
+        assertNotNull(soundFile);
+        assertEquals(header.getSampleRate(), soundFile.getSampleRate());
+        assertEquals(header.getChannels(), soundFile.getChannels());
+        assertEquals(header.getNumSamples(), soundFile.getNumSamples());
+        assertTrue(soundFile.getNumFrames() > 0);
+        SampleBuffer samples = soundFile.getSamples();
+        while (samples.hasRemaining()) {
+            assertEquals(data.getShort(), samples.get());
+        }
+        soundFile.release();
+        // Releasing the sound file must not delete the mapped file.
+        assertTrue(testWavFile.exists());
+    }
+
     // --- 3. Audio Recording ---
 
     @Test
@@ -269,6 +354,49 @@ public class SoundFileTest {
         }
     }
 
+    @Test
+    public void testRecordAudioCutLosslessly() throws Exception {
+        // Record a second through the encoder, then save half of it as an .m4a file, which must
+        // copy the AAC frames encoded during the recording instead of encoding them again.
+        InstrumentationRegistry.getInstrumentation().getUiAutomation()
+                .grantRuntimePermission(context.getPackageName(), Manifest.permission.RECORD_AUDIO);
+        SoundFile soundFile;
+        try {
+            soundFile = SoundFile.record(outDir, seconds -> seconds >= 1.0f);
+        } catch (IllegalStateException | SecurityException e) {
+            // Emulators might lack mic access.
+            return;
+        }
+        assertNotNull(soundFile);
+        Field mRecordingEncoder = SoundFile.class.getDeclaredField("mRecordingEncoder");
+        mRecordingEncoder.setAccessible(true);
+        assertNotNull("Recording should be encoded while captured",
+                mRecordingEncoder.get(soundFile));
+
+        int sampleRate = soundFile.getSampleRate();
+        File outputFile = new File(outDir, "out_recording.m4a");
+        Metrics.setEnabled(true);
+        Metrics.reset();
+        try {
+            soundFile.WriteFile(outputFile, 0, soundFile.getNumFrames() / 2);
+            StringWriter metrics = new StringWriter();
+            Metrics.dump(new PrintWriter(metrics));
+            assertFalse("Recording should not be encoded again",
+                    metrics.toString().contains("encode.codec:"));
+        } finally {
+            Metrics.setEnabled(false);
+            soundFile.release();
+        }
+
+        SoundFile cut = SoundFile.create(outDir, outputFile.getAbsolutePath(),
+                fractionComplete -> true);
+        assertNotNull(cut);
+        assertTrue(cut.getNumSamples() > 0);
+        assertTrue(cut.getNumSamples() < sampleRate);
+        cut.release();
+        outputFile.delete();
+    }
+
     // --- 4. File Writing Operations ---
 
     private void injectMockAudioData(SoundFile soundFile, int channels) throws Exception {
@@ -288,8 +416,8 @@ public class SoundFileTest {
         mNumFrames.setAccessible(true);
         mNumFrames.set(soundFile, 100);
 
-        Field mDecodedBytes = SoundFile.class.getDeclaredField("mDecodedBytes");
-        mDecodedBytes.setAccessible(true);
+        Field mPcm = SoundFile.class.getDeclaredField("mPcm");
+        mPcm.setAccessible(true);
         ByteBuffer buf = ByteBuffer.allocate(44100 * 2 * channels);
         buf.order(ByteOrder.LITTLE_ENDIAN);
 
@@ -299,7 +427,8 @@ public class SoundFileTest {
         }
 
         buf.flip();
-        mDecodedBytes.set(soundFile, buf);
+        PcmStore pcm = PcmStore.wrap(buf);
+        mPcm.set(soundFile, pcm);
 
         Field mFrameGains = SoundFile.class.getDeclaredField("mFrameGains");
         mFrameGains.setAccessible(true);
@@ -313,10 +442,7 @@ public class SoundFileTest {
 
         Field mDecodedSamples = SoundFile.class.getDeclaredField("mDecodedSamples");
         mDecodedSamples.setAccessible(true);
-        ShortBuffer sBuf = ShortBuffer.allocate(44100 * channels);
-        sBuf.position(sBuf.capacity());
-        sBuf.flip();
-        mDecodedSamples.set(soundFile, sBuf);
+        mDecodedSamples.set(soundFile, new SampleBuffer(pcm, 44100L * channels));
     }
 
     @Test
@@ -16,7 +16,9 @@
 
 package com.ringdroid;
 
+import android.app.ActivityManager;
 import android.app.AlertDialog;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -41,6 +43,8 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.Window;
+import android.view.WindowManager;
 import android.widget.ImageButton;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
@@ -58,6 +62,8 @@ import com.ringdroid.databinding.DialogProgressBinding;
 import com.ringdroid.databinding.DialogProgressHorizontalBinding;
 import com.ringdroid.databinding.EditorBinding;
 import com.ringdroid.databinding.RecordAudioBinding;
+import com.ringdroid.soundfile.InputSource;
+import com.ringdroid.soundfile.Metrics;
 import com.ringdroid.soundfile.SoundFile;
 
 import java.io.File;
@@ -78,18 +84,28 @@ public class RingdroidEditActivity extends ComponentActivity
     private final ActivityResultLauncher<Intent> mChooseContactLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(), result -> finish());
     private long mLoadingLastUpdateTime;
+    private long mLoadingLastWaveformUpdateTime;
     private boolean mLoadingKeepGoing;
     private long mRecordingLastUpdateTime;
     private boolean mRecordingKeepGoing;
     private double mRecordingTime;
     private boolean mFinishActivity;
     private TextView mTimerTextView;
+    private ProgressBar mLevelMeter;
+    private long mRecordingLastLevelUpdateTime;
+    // Highest peak level recorded since the level meter was last updated.
+    private float mRecordingPeak;
     private AlertDialog mAlertDialog;
     private AlertDialog mProgressDialog;
     private ProgressBar mLoadingProgressBar;
     private SoundFile mSoundFile;
+    // Sound file being decoded, whose waveform is displayed while the decoding goes on.
+    private SoundFile mLoadingSoundFile;
     private File mFile;
     private String mFilename;
+    // Content URI of the file being edited, read through a file descriptor, or null for files
+    // given by their path.
+    private Uri mUri;
     private String mArtist;
     private String mTitle;
     private int mNewFileKind;
@@ -268,6 +284,10 @@ public class RingdroidEditActivity extends ComponentActivity
         mPlayer = null;
         mIsPlaying = false;
         mContext = this.getApplicationContext();
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        if (activityManager != null) {
+            SoundFile.setMemoryClass(activityManager.getMemoryClass());
+        }
 
         mAlertDialog = null;
         mProgressDialog = null;
@@ -284,8 +304,16 @@ public class RingdroidEditActivity extends ComponentActivity
         // they create.
         mWasGetContentIntent = intent.getBooleanExtra("was_get_content_intent", false);
 
-        mFilename = Objects.requireNonNull(intent.getData()).toString().replaceFirst("file://", "")
-                .replaceAll("%20", " ");
+        // Profile the decoding, encoding and rendering when started with the "metrics" extra, e.g.
+        // with "adb shell am start --ez metrics true ...". The metrics are dumped to logcat once
+        // the file is opened, and when the activity is stopped.
+        if (intent.getBooleanExtra("metrics", false)) {
+            Metrics.setEnabled(true);
+        }
+
+        Uri data = Objects.requireNonNull(intent.getData());
+        mUri = ContentResolver.SCHEME_CONTENT.equals(data.getScheme()) ? data : null;
+        mFilename = data.toString().replaceFirst("file://", "").replaceAll("%20", " ");
         mSoundFile = null;
         mKeyDown = false;
 
@@ -378,6 +406,26 @@ public class RingdroidEditActivity extends ComponentActivity
         super.onDestroy();
     }
 
+    /**
+     * Called when the activity is no longer visible. The codecs kept idle for the next decoding or
+     * encoding are released, since the codec instances of the device are shared by all apps.
+     */
+    @Override
+    protected void onStop() {
+        Log.v(TAG, "EditActivity onStop");
+        super.onStop();
+        SoundFile.releaseIdleCodecs();
+        if (Metrics.isEnabled()) {
+            Metrics.dumpToLog();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        SoundFile.releaseIdleCodecs();
+    }
+
     /**
      * Called when the orientation changes and/or the keyboard is shown or hidden. We don't need to
      * recreate the whole activity in this case, but we do need to redo our layout somewhat.
@@ -701,7 +749,11 @@ public class RingdroidEditActivity extends ComponentActivity
         mLastDisplayedStartPos = -1;
         mLastDisplayedEndPos = -1;
 
-        if (mSoundFile != null && !mWaveformView.hasSoundFile()) {
+        if (mLoadingSoundFile != null && !mWaveformView.hasSoundFile()) {
+            mWaveformView.setSoundFile(mLoadingSoundFile);
+            mWaveformView.recomputeHeights(mDensity);
+            mMaxPos = mWaveformView.maxPos();
+        } else if (mSoundFile != null && !mWaveformView.hasSoundFile()) {
             mWaveformView.setSoundFile(mSoundFile);
             mWaveformView.recomputeHeights(mDensity);
             mMaxPos = mWaveformView.maxPos();
@@ -725,17 +777,19 @@ public class RingdroidEditActivity extends ComponentActivity
     }
 
     private void loadFromFile() {
-        mFile = new File(mFilename);
-
-        SongMetadataReader metadataReader = new SongMetadataReader(this, mFilename);
-        mTitle = metadataReader.mTitle;
-        mArtist = metadataReader.mArtist;
-
-        String titleLabel = mTitle;
-        if (mArtist != null && !mArtist.isEmpty()) {
-            titleLabel += " - " + mArtist;
+        if (mUri != null) {
+            // Content URIs have no path to look up in the media store, only a name, which is only
+            // known once they are opened below.
+            mFile = null;
+            mTitle = "";
+            mArtist = null;
+        } else {
+            mFile = new File(mFilename);
+            SongMetadataReader metadataReader = new SongMetadataReader(this, mFilename);
+            mTitle = metadataReader.mTitle;
+            mArtist = metadataReader.mArtist;
         }
-        setTitle(titleLabel);
+        updateTitle();
 
         mLoadingLastUpdateTime = getCurrentTime();
         mLoadingKeepGoing = true;
@@ -762,29 +816,64 @@ public class RingdroidEditActivity extends ComponentActivity
         final SoundFile.ProgressListener listener = fractionComplete -> {
             long now = getCurrentTime();
             if (now - mLoadingLastUpdateTime > 100) {
+                int progress = (int) (fractionComplete * 100);
                 if (mLoadingProgressBar != null) {
-                    int progress = (int) (fractionComplete * 100);
                     mLoadingProgressBar.setProgress(progress);
                 }
+                if (mLoadingSoundFile != null) {
+                    // The progress dialog is gone, show the progress in the info text instead.
+                    final String caption = getResources()
+                            .getString(R.string.progress_dialog_loading) + " " + progress + "%";
+                    runOnUiThread(() -> mInfo.setText(caption));
+                }
                 mLoadingLastUpdateTime = now;
             }
             return !mLoadingKeepGoing;
         };
 
+        // Display the waveform as soon as the first frames are decoded, and extend it as the
+        // decoding goes on.
+        mLoadingLastWaveformUpdateTime = 0;
+        final SoundFile.FrameGainsListener frameGainsListener = (soundFile, numFrames) -> {
+            long now = getCurrentTime();
+            if (now - mLoadingLastWaveformUpdateTime > 250) {
+                mLoadingLastWaveformUpdateTime = now;
+                mHandler.post(() -> showLoadingWaveform(soundFile));
+            }
+        };
+
         // Load the sound file in a background thread
         mLoadSoundFileThread = new Thread(() -> {
             boolean loadingCancelled = false;
             try {
-                mSoundFile = SoundFile.create(getCacheDir(), mFile.getAbsolutePath(), listener);
+                // The name the format of the file is judged by, for the error message below.
+                String fileName;
+                if (mUri != null) {
+                    InputSource source = InputSource.fromUri(this, mUri);
+                    fileName = source.getName();
+                    int dotIndex = fileName.lastIndexOf('.');
+                    String title = dotIndex > 0 ? fileName.substring(0, dotIndex) : fileName;
+                    runOnUiThread(() -> {
+                        mTitle = title;
+                        updateTitle();
+                    });
+                    mSoundFile = SoundFile.create(getCacheDir(), source, listener,
+                            frameGainsListener);
+                } else {
+                    fileName = mFile.getName();
+                    mSoundFile = SoundFile.create(getCacheDir(), mFile.getAbsolutePath(), listener,
+                            frameGainsListener);
+                }
 
                 if (mSoundFile == null) {
                     if (mProgressDialog != null) {
                         mProgressDialog.dismiss();
                     }
+                    mHandler.post(this::discardLoadingWaveform);
                     if (!mLoadingKeepGoing) {
                         loadingCancelled = true;
                     } else {
-                        String name = mFile.getName().toLowerCase();
+                        String name = fileName.toLowerCase();
                         String[] components = name.split("\\.");
                         String err;
                         if (components.length < 2) {
@@ -809,6 +898,7 @@ public class RingdroidEditActivity extends ComponentActivity
                 if (mProgressDialog != null) {
                     mProgressDialog.dismiss();
                 }
+                mHandler.post(this::discardLoadingWaveform);
                 Log.e(TAG, "Unexpected error", e);
                 mInfoContent = e.toString();
                 runOnUiThread(() -> setSafeText(mInfo, mInfoContent));
@@ -831,6 +921,14 @@ public class RingdroidEditActivity extends ComponentActivity
         mLoadSoundFileThread.start();
     }
 
+    private void updateTitle() {
+        String titleLabel = mTitle;
+        if (mArtist != null && !mArtist.isEmpty()) {
+            titleLabel += " - " + mArtist;
+        }
+        setTitle(titleLabel);
+    }
+
     private void recordAudio() {
         mFile = null;
         mTitle = null;
@@ -861,7 +959,13 @@ public class RingdroidEditActivity extends ComponentActivity
         } else {
             return;
         }
+        // Keep the waveform drawn behind the dialog visible while recording.
+        Window window = mAlertDialog.getWindow();
+        if (window != null) {
+            window.clearFlags(WindowManager.LayoutParams.FLAG_DIM_BEHIND);
+        }
         mTimerTextView = recordBinding.recordAudioTimer;
+        mLevelMeter = recordBinding.recordAudioLevel;
 
         final SoundFile.ProgressListener listener = elapsedTime -> {
             long now = getCurrentTime();
@@ -879,14 +983,44 @@ public class RingdroidEditActivity extends ComponentActivity
             return !mRecordingKeepGoing;
         };
 
+        // Display the waveform of the recording as it goes on.
+        mLoadingLastWaveformUpdateTime = 0;
+        final SoundFile.FrameGainsListener frameGainsListener = (soundFile, numFrames) -> {
+            long now = getCurrentTime();
+            if (now - mLoadingLastWaveformUpdateTime > 250) {
+                mLoadingLastWaveformUpdateTime = now;
+                mHandler.post(() -> showLoadingWaveform(soundFile));
+            }
+        };
+
+        // Show the RMS and peak levels in dB, at about the display rate.
+        mRecordingLastLevelUpdateTime = 0;
+        mRecordingPeak = 0;
+        final SoundFile.LevelListener levelListener = (peak, rms) -> {
+            mRecordingPeak = Math.max(mRecordingPeak, peak);
+            long now = getCurrentTime();
+            if (now - mRecordingLastLevelUpdateTime > 30) {
+                final int peakLevel = getLevelPercent(mRecordingPeak);
+                final int rmsLevel = getLevelPercent(rms);
+                mRecordingPeak = 0;
+                mRecordingLastLevelUpdateTime = now;
+                runOnUiThread(() -> {
+                    mLevelMeter.setProgress(rmsLevel);
+                    mLevelMeter.setSecondaryProgress(peakLevel);
+                });
+            }
+        };
+
         // Record the audio stream in a background thread
         mRecordAudioThread = new Thread(() -> {
             try {
-                mSoundFile = SoundFile.record(listener);
+                mSoundFile = SoundFile.record(getCacheDir(), listener, frameGainsListener,
+                        levelListener);
                 if (mSoundFile == null) {
                     if (mAlertDialog != null) {
                         mAlertDialog.dismiss();
                     }
+                    mHandler.post(this::discardLoadingWaveform);
                     Runnable runnable = () -> showFinalAlert(new Exception(),
                             getResources().getText(R.string.record_error));
                     mHandler.post(runnable);
@@ -897,6 +1031,7 @@ public class RingdroidEditActivity extends ComponentActivity
                 if (mAlertDialog != null) {
                     mAlertDialog.dismiss();
                 }
+                mHandler.post(this::discardLoadingWaveform);
                 Log.e(TAG, "Unexpected error", e);
                 mInfoContent = e.toString();
                 runOnUiThread(() -> mInfo.setText(mInfoContent));
@@ -919,22 +1054,91 @@ public class RingdroidEditActivity extends ComponentActivity
         mRecordAudioThread.start();
     }
 
+    // Maps a level between 0 and 1 to the percentage of a meter covering the 60 dB below full
+    // scale.
+    private static int getLevelPercent(float level) {
+        if (level <= 0) {
+            return 0;
+        }
+        double db = 20 * Math.log10(level);
+        return (int) Math.max(0, Math.min(100, (db + 60) * 100 / 60));
+    }
+
+    private void showLoadingWaveform(SoundFile soundFile) {
+        if ((!mLoadingKeepGoing && !mRecordingKeepGoing) || mSoundFile != null) {
+            // Loading or recording was canceled, or it is already complete.
+            return;
+        }
+        if (mLoadingSoundFile == null) {
+            // First frames decoded: replace the progress dialog by the waveform.
+            mLoadingSoundFile = soundFile;
+            if (mProgressDialog != null) {
+                mProgressDialog.dismiss();
+            }
+            mWaveformView.setSoundFile(soundFile);
+            mWaveformView.recomputeHeights(mDensity);
+
+            mMaxPos = mWaveformView.maxPos();
+            mLastDisplayedStartPos = -1;
+            mLastDisplayedEndPos = -1;
+
+            mTouchDragging = false;
+
+            mOffset = 0;
+            mOffsetGoal = 0;
+            mFlingVelocity = 0;
+            resetPositions();
+            mInfo.setText(mRecordingKeepGoing
+                    ? R.string.progress_dialog_recording
+                    : R.string.progress_dialog_loading);
+        } else {
+            mWaveformView.updateFrameGains();
+            mMaxPos = mWaveformView.maxPos();
+        }
+        updateDisplay();
+    }
+
+    // Detaches the SoundFile shown while it was loaded or recorded from the waveform, once the
+    // loading or recording was canceled or failed and the SoundFile was released. Runs after the
+    // updates of the waveform posted before.
+    private void discardLoadingWaveform() {
+        if (mLoadingSoundFile == null) {
+            return;
+        }
+        if (mWaveformView != null && mSoundFile != mLoadingSoundFile) {
+            mWaveformView.setSoundFile(null);
+        }
+        mLoadingSoundFile = null;
+        mMaxPos = 0;
+        updateDisplay();
+    }
+
     private void finishOpeningSoundFile() {
-        mWaveformView.setSoundFile(mSoundFile);
-        mWaveformView.recomputeHeights(mDensity);
+        if (mLoadingSoundFile != null && mLoadingSoundFile == mSoundFile) {
+            // The waveform has been displayed while decoding. Keep the zoom level, offset and
+            // markers the user may already have set.
+            mWaveformView.updateFrameGains();
+            mMaxPos = mWaveformView.maxPos();
+            mStartPos = trap(mStartPos);
+            mEndPos = trap(mEndPos);
+        } else {
+            mWaveformView.setSoundFile(mSoundFile);
+            mWaveformView.recomputeHeights(mDensity);
 
-        mMaxPos = mWaveformView.maxPos();
-        mLastDisplayedStartPos = -1;
-        mLastDisplayedEndPos = -1;
+            mMaxPos = mWaveformView.maxPos();
+            mLastDisplayedStartPos = -1;
+            mLastDisplayedEndPos = -1;
 
-        mTouchDragging = false;
+            mTouchDragging = false;
 
-        mOffset = 0;
-        mOffsetGoal = 0;
-        mFlingVelocity = 0;
-        resetPositions();
-        if (mEndPos > mMaxPos)
-            mEndPos = mMaxPos;
+            mOffset = 0;
+            mOffsetGoal = 0;
+            mFlingVelocity = 0;
+            resetPositions();
+            if (mEndPos > mMaxPos)
+                mEndPos = mMaxPos;
+        }
+        mLoadingSoundFile = null;
 
         mCaption = mSoundFile.getFiletype() + ", " + mSoundFile.getSampleRate() + " Hz, "
                 + mSoundFile.getAvgBitrateKbps() + " kbps, " + formatTime(mMaxPos) + " "
@@ -942,6 +1146,9 @@ public class RingdroidEditActivity extends ComponentActivity
         mInfo.setText(mCaption);
 
         updateDisplay();
+        if (Metrics.isEnabled()) {
+            Metrics.dumpToLog();
+        }
     }
     private final Runnable mTimerRunnable = new Runnable() {
         public void run() {
@@ -1353,36 +1560,72 @@ public class RingdroidEditActivity extends ComponentActivity
         // Save the sound file in a background thread
         mSaveSoundFileThread = new Thread() {
             public void run() {
-                // Try AAC first.
-                String outPath = makeRingtoneFilename(title, ".m4a");
+                // Cut MP3 files without re-encoding them if possible, then try AAC.
+                String outPath = null;
                 Uri outUri = null;
-                if (outPath == null) {
-                    Runnable runnable = () -> showFinalAlert(new Exception(),
-                            R.string.no_unique_filename);
-                    mHandler.post(runnable);
-                    return;
+                File outFile = null;
+                if (mSoundFile.canWriteMP3File()) {
+                    outPath = makeRingtoneFilename(title, ".mp3");
+                    if (outPath != null) {
+                        outFile = new File(outPath);
+                        try {
+                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                                values.put(MediaStore.Audio.Media.DISPLAY_NAME, title + ".mp3");
+                                values.put(MediaStore.Audio.Media.MIME_TYPE, "audio/mpeg");
+                                outUri = getContentResolver().insert(
+                                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, values);
+                                mSoundFile.WriteMP3File(mContext, outUri, startFrame,
+                                        endFrame - startFrame);
+                            } else {
+                                mSoundFile.WriteMP3File(outFile, startFrame, endFrame - startFrame);
+                            }
+                        } catch (Exception e) {
+                            // log the error and try to create a .m4a file instead
+                            if (outUri != null) {
+                                getContentResolver().delete(outUri, null, null);
+                                outUri = null;
+                            }
+                            if (outFile.exists()) {
+                                boolean status = outFile.delete();
+                                Log.d(TAG, "Delete file: " + outPath + " status: " + status);
+                            }
+                            Log.e(TAG, "Error: Failed to create " + outPath, e);
+                            outPath = null;
+                        }
+                    }
                 }
-                File outFile = new File(outPath);
+
                 boolean fallbackToWAV = false;
-                try {
-                    // Write the new file
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                        values.put(MediaStore.Audio.Media.DISPLAY_NAME, title + ".m4a");
-                        values.put(MediaStore.Audio.Media.MIME_TYPE, "audio/mp4a-latm");
-                        outUri = getContentResolver()
-                                .insert(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, values);
-                        mSoundFile.WriteFile(mContext, outUri, startFrame, endFrame - startFrame);
-                    } else {
-                        mSoundFile.WriteFile(outFile, startFrame, endFrame - startFrame);
+                if (outPath == null) {
+                    outPath = makeRingtoneFilename(title, ".m4a");
+                    if (outPath == null) {
+                        Runnable runnable = () -> showFinalAlert(new Exception(),
+                                R.string.no_unique_filename);
+                        mHandler.post(runnable);
+                        return;
                     }
-                } catch (Exception e) {
-                    // log the error and try to create a .wav file instead
-                    if (outFile.exists()) {
-                        boolean status = outFile.delete();
-                        Log.d(TAG, "Delete file: " + outPath + " status: " + status);
+                    outFile = new File(outPath);
+                    try {
+                        // Write the new file
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                            values.put(MediaStore.Audio.Media.DISPLAY_NAME, title + ".m4a");
+                            values.put(MediaStore.Audio.Media.MIME_TYPE, "audio/mp4a-latm");
+                            outUri = getContentResolver()
+                                    .insert(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, values);
+                            mSoundFile.WriteFile(mContext, outUri, startFrame,
+                                    endFrame - startFrame);
+                        } else {
+                            mSoundFile.WriteFile(outFile, startFrame, endFrame - startFrame);
+                        }
+                    } catch (Exception e) {
+                        // log the error and try to create a .wav file instead
+                        if (outFile.exists()) {
+                            boolean status = outFile.delete();
+                            Log.d(TAG, "Delete file: " + outPath + " status: " + status);
+                        }
+                        Log.e(TAG, "Error: Failed to create " + outPath, e);
+                        fallbackToWAV = true;
                     }
-                    Log.e(TAG, "Error: Failed to create " + outPath, e);
-                    fallbackToWAV = true;
                 }
 
                 // Try to create a .wav file if creating a .m4a file failed.
@@ -1447,7 +1690,12 @@ public class RingdroidEditActivity extends ComponentActivity
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU && outUri != null) {
                         SoundFile.uriExists(mContext, outUri);
                     } else {
-                        SoundFile.create(mContext.getCacheDir(), outPath, listener);
+                        // Without a cache directory, so that the saved file is not added to the
+                        // PCM cache, evicting the files being edited.
+                        SoundFile savedSoundFile = SoundFile.create(null, outPath, listener);
+                        if (savedSoundFile != null) {
+                            savedSoundFile.release();
+                        }
                     }
                 } catch (final Exception e) {
                     mProgressDialog.dismiss();
@@ -1496,7 +1744,7 @@ public class RingdroidEditActivity extends ComponentActivity
             } else if (outPath.endsWith(".wav")) {
                 mimeType = "audio/wav";
             } else {
-                // This should never happen.
+                // .mp3 file, cut without re-encoding.
                 mimeType = "audio/mpeg";
             }
 
@@ -1592,6 +1840,10 @@ public class RingdroidEditActivity extends ComponentActivity
     }
 
     private void onSave() {
+        if (mSoundFile == null) {
+            // Still loading.
+            return;
+        }
         if (mIsPlaying) {
             handlePause();
         }
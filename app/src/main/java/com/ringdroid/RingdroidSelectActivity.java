@@ -621,13 +621,9 @@ public class RingdroidSelectActivity extends ComponentActivity {
             }
         }
 
+        // The editor reads content URIs through file descriptors, without resolving their path.
         if (audioUri != null) {
-            File file = FilesUtil.getFileFromUri(this, audioUri);
-            if (file != null) {
-                startRingdroidEditor(Uri.fromFile(file));
-            } else {
-                Log.e(TAG, "Could not resolve file: " + audioUri);
-            }
+            startRingdroidEditor(audioUri);
         }
     }
 
@@ -657,6 +653,7 @@ public class RingdroidSelectActivity extends ComponentActivity {
     private void startRingdroidEditor(Uri filename) {
         try {
             Intent intent = new Intent(Intent.ACTION_EDIT, filename);
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
             intent.putExtra("was_get_content_intent", mWasGetContentIntent);
             intent.setClass(this, RingdroidEditActivity.class);
             mEditActivityLauncher.launch(intent);
@@ -19,25 +19,28 @@ package com.ringdroid;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioTrack;
+import android.util.Log;
 
+import com.ringdroid.soundfile.SampleBuffer;
 import com.ringdroid.soundfile.SoundFile;
 
-import java.nio.ShortBuffer;
+import java.io.UncheckedIOException;
 
 class SamplePlayer {
-    private final ShortBuffer mSamples;
+    private static final String TAG = "SamplePlayer";
+    private final SampleBuffer mSamples;
 
     private final int mSampleRate;
     private final int mChannels;
-    private final int mNumSamples; // Number of samples per channel.
+    private final long mNumSamples; // Number of samples per channel.
     private final AudioTrack mAudioTrack;
     private final short[] mBuffer;
-    private int mPlaybackStart; // Start offset, in samples.
+    private long mPlaybackStart; // Start offset, in samples.
     private Thread mPlayThread;
     private boolean mKeepPlaying;
     private OnCompletionListener mListener;
 
-    public SamplePlayer(ShortBuffer samples, int sampleRate, int channels, int numSamples) {
+    public SamplePlayer(SampleBuffer samples, int sampleRate, int channels, long numSamples) {
         if (samples == null) {
             throw new IllegalArgumentException("samples cannot be null");
         }
@@ -64,7 +67,7 @@ class SamplePlayer {
                 .setBufferSizeInBytes(mBuffer.length * 2).build();
         // Check when player played all the given data and notify user if mListener is
         // set.
-        mAudioTrack.setNotificationMarkerPosition(mNumSamples - 1); // Set the marker to the end.
+        setEndMarker(); // Set the marker to the end.
         mAudioTrack.setPlaybackPositionUpdateListener(
                 new AudioTrack.OnPlaybackPositionUpdateListener() {
                     @Override
@@ -110,12 +113,18 @@ class SamplePlayer {
         // Setting thread feeding the audio samples to the audio hardware.
         // (Assumes mChannels = 1 or 2).
         mPlayThread = new Thread(() -> {
-            int position = mPlaybackStart * mChannels;
+            long position = mPlaybackStart * mChannels;
             mSamples.position(position);
-            int limit = mNumSamples * mChannels;
+            long limit = mNumSamples * mChannels;
             while (mSamples.position() < limit && mKeepPlaying) {
-                int toWrite = Math.min(limit - mSamples.position(), mBuffer.length);
-                mSamples.get(mBuffer, 0, toWrite);
+                int toWrite = (int) Math.min(limit - mSamples.position(), mBuffer.length);
+                try {
+                    mSamples.get(mBuffer, 0, toWrite);
+                } catch (UncheckedIOException e) {
+                    // The samples of lazily decoded files are decoded here, which can fail.
+                    Log.e(TAG, "Cannot read the samples to play", e);
+                    break;
+                }
                 mAudioTrack.write(mBuffer, 0, toWrite);
             }
         });
@@ -153,11 +162,11 @@ class SamplePlayer {
     public void seekTo(int msec) {
         boolean wasPlaying = isPlaying();
         stop();
-        mPlaybackStart = (int) (msec * (mSampleRate / 1000.0));
+        mPlaybackStart = (long) (msec * (mSampleRate / 1000.0));
         if (mPlaybackStart > mNumSamples) {
             mPlaybackStart = mNumSamples; // Nothing to play...
         }
-        mAudioTrack.setNotificationMarkerPosition(mNumSamples - 1 - mPlaybackStart);
+        setEndMarker();
         if (wasPlaying) {
             start();
         }
@@ -168,6 +177,14 @@ class SamplePlayer {
                 * (1000.0 / mSampleRate));
     }
 
+    // Sets the notification marker to the last sample, counted from the playback start. The
+    // marker is an int, so a single playback of more than 2^31 samples (13.5 hours at 44.1kHz)
+    // completes early.
+    private void setEndMarker() {
+        mAudioTrack.setNotificationMarkerPosition(
+                (int) Math.min(mNumSamples - 1 - mPlaybackStart, Integer.MAX_VALUE));
+    }
+
     public interface OnCompletionListener {
         void onCompletion();
     }
@@ -29,12 +29,14 @@ import android.view.View;
 
 import androidx.core.content.ContextCompat;
 
+import com.ringdroid.soundfile.Metrics;
+import com.ringdroid.soundfile.PeakPyramid;
 import com.ringdroid.soundfile.SoundFile;
 
 /**
  * WaveformView is an Android view that displays a visual representation of an audio waveform. It
- * retrieves the frame gains from a CheapSoundFile object and recomputes the shape contour at
- * several zoom levels.
+ * reads the peaks of the samples displayed by each pixel from a SoundFile object, at a zoom level
+ * where each pixel displays a power of two number of samples.
  *
  * <p>
  * This class doesn't handle selection or any of the touch interactions directly, so it exposes a
@@ -47,6 +49,10 @@ import com.ringdroid.soundfile.SoundFile;
  */
 public class WaveformView extends View {
     private static final String TAG = "WaveformView";
+    // The zoom level z displays PeakPyramid.BASE_BLOCK_SIZE << z samples per pixel.
+    private static final int NUM_ZOOM_LEVELS = 11;
+    // Number of ranges of samples whose peaks are read to scale the waveform to the view.
+    private static final int NUM_SCALE_RANGES = 1024;
 
     // Colors
     private final Paint mGridPaint;
@@ -60,12 +66,12 @@ public class WaveformView extends View {
     private final GestureDetector mGestureDetector;
     private final ScaleGestureDetector mScaleGestureDetector;
     private SoundFile mSoundFile;
-    private int[] mLenByZoomLevel;
-    private double[][] mValuesByZoomLevel;
-    private double[] mZoomFactorByZoomLevel;
-    private int[] mHeightsAtThisZoomLevel;
+    private long mNumSamples; // Number of samples per channel displayed.
+    private int mPeak; // Highest absolute peak of the samples displayed, at least 1.
+    // Peaks of the samples displayed by each visible pixel.
+    private byte[] mMinPeaks = new byte[0];
+    private byte[] mMaxPeaks = new byte[0];
     private int mZoomLevel;
-    private int mNumZoomLevels;
     private int mSampleRate;
     private int mSamplesPerFrame;
     private int mOffset;
@@ -147,9 +153,8 @@ public class WaveformView extends View {
                 });
 
         mSoundFile = null;
-        mLenByZoomLevel = null;
-        mValuesByZoomLevel = null;
-        mHeightsAtThisZoomLevel = null;
+        mNumSamples = 0;
+        mPeak = 1;
         mOffset = 0;
         mPlaybackPos = -1;
         mSelectionStart = 0;
@@ -195,9 +200,32 @@ public class WaveformView extends View {
         if (soundFile != null) {
             mSampleRate = mSoundFile.getSampleRate();
             mSamplesPerFrame = mSoundFile.getSamplesPerFrame();
-            computeDoublesForAllZoomLevels();
+            updateNumSamples();
+            // Pick a zoom level showing about the same duration whatever the file length.
+            long numFrames = mNumSamples / mSamplesPerFrame;
+            if (numFrames > 5000) {
+                mZoomLevel = 6;
+            } else if (numFrames > 1000) {
+                mZoomLevel = 5;
+            } else if (numFrames > 300) {
+                mZoomLevel = 4;
+            } else {
+                mZoomLevel = 3;
+            }
+            mInitialized = true;
+        }
+    }
+
+    /**
+     * Called when the sound file, still being decoded, has more frame gains available. The waveform
+     * is extended to the new frames while keeping the current zoom level.
+     */
+    public void updateFrameGains() {
+        if (mSoundFile == null) {
+            return;
         }
-        mHeightsAtThisZoomLevel = null;
+        updateNumSamples();
+        invalidate();
     }
 
     public boolean isInitialized() {
@@ -226,7 +254,6 @@ public class WaveformView extends View {
             mZoomLevel--;
             mSelectionStart *= 2;
             mSelectionEnd *= 2;
-            mHeightsAtThisZoomLevel = null;
             int offsetCenter = mOffset + getMeasuredWidth() / 2;
             offsetCenter *= 2;
             mOffset = offsetCenter - getMeasuredWidth() / 2;
@@ -237,7 +264,7 @@ public class WaveformView extends View {
     }
 
     public boolean canZoomOut() {
-        return (mZoomLevel < mNumZoomLevels - 1);
+        return (mZoomLevel < NUM_ZOOM_LEVELS - 1);
     }
 
     public void zoomOut() {
@@ -250,16 +277,12 @@ public class WaveformView extends View {
             mOffset = offsetCenter - getMeasuredWidth() / 2;
             if (mOffset < 0)
                 mOffset = 0;
-            mHeightsAtThisZoomLevel = null;
             invalidate();
         }
     }
 
     public int maxPos() {
-        if (mLenByZoomLevel == null) {
-            return 0;
-        }
-        return mLenByZoomLevel[mZoomLevel];
+        return (int) ((mNumSamples + getSamplesPerPixel() - 1) / getSamplesPerPixel());
     }
 
     public int secondsToFrames(double seconds) {
@@ -267,34 +290,34 @@ public class WaveformView extends View {
     }
 
     public int secondsToPixels(double seconds) {
-        if (mZoomFactorByZoomLevel == null) {
+        if (mSoundFile == null) {
             return 0;
         }
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = getZoomFactor();
         return (int) (z * seconds * mSampleRate / mSamplesPerFrame + 0.5);
     }
 
     public double pixelsToSeconds(int pixels) {
-        if (mZoomFactorByZoomLevel == null) {
+        if (mSoundFile == null) {
             return 0.0;
         }
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = getZoomFactor();
         return (pixels * (double) mSamplesPerFrame / (mSampleRate * z));
     }
 
     public int millisecsToPixels(int msecs) {
-        if (mZoomFactorByZoomLevel == null) {
+        if (mSoundFile == null) {
             return 0;
         }
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = getZoomFactor();
         return (int) ((msecs * 1.0 * mSampleRate * z) / (1000.0 * mSamplesPerFrame) + 0.5);
     }
 
     public int pixelsToMillisecs(int pixels) {
-        if (mZoomFactorByZoomLevel == null) {
+        if (mSoundFile == null) {
             return 0;
         }
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = getZoomFactor();
         return (int) (pixels * (1000.0 * mSamplesPerFrame) / (mSampleRate * z) + 0.5);
     }
 
@@ -325,7 +348,6 @@ public class WaveformView extends View {
     }
 
     public void recomputeHeights(float density) {
-        mHeightsAtThisZoomLevel = null;
         mDensity = density;
         mTimecodePaint.setTextSize((int) (12 * density));
 
@@ -341,19 +363,23 @@ public class WaveformView extends View {
         super.onDraw(canvas);
         if (mSoundFile == null)
             return;
-
-        if (mHeightsAtThisZoomLevel == null)
-            computeIntsForThisZoomLevel();
+        long startNs = Metrics.begin(Metrics.Stage.RENDER);
 
         // Draw waveform
         int measuredWidth = getMeasuredWidth();
         int measuredHeight = getMeasuredHeight();
         int start = mOffset;
-        int width = mHeightsAtThisZoomLevel.length - start;
         int ctr = measuredHeight / 2;
 
-        if (width > measuredWidth)
-            width = measuredWidth;
+        // Only the peaks of the visible pixels are read.
+        if (mMinPeaks.length < measuredWidth) {
+            mMinPeaks = new byte[measuredWidth];
+            mMaxPeaks = new byte[measuredWidth];
+        }
+        int width = Math.min(measuredWidth, Math.max(0, maxPos() - start));
+        width = mSoundFile.getPeaks((long) start * getSamplesPerPixel(), getSamplesPerPixel(),
+                width, mMinPeaks, mMaxPeaks);
+        double scale = (ctr - 1) / (double) mPeak;
 
         // Draw grid
         double onePixelInSecs = pixelsToSeconds(1);
@@ -382,8 +408,8 @@ public class WaveformView extends View {
                 drawWaveformLine(canvas, i, 0, measuredHeight, mUnselectedBkgndLinePaint);
                 paint = mUnselectedLinePaint;
             }
-            drawWaveformLine(canvas, i, ctr - mHeightsAtThisZoomLevel[start + i],
-                    ctr + 1 + mHeightsAtThisZoomLevel[start + i], paint);
+            drawWaveformLine(canvas, i, ctr - (int) (Math.min(mMaxPeaks[i], mPeak) * scale),
+                    ctr + 1 - (int) (Math.max(mMinPeaks[i], -mPeak) * scale), paint);
 
             if (i + start == mPlaybackPos) {
                 canvas.drawLine(i, 0, i, measuredHeight, mPlaybackLinePaint);
@@ -434,146 +460,36 @@ public class WaveformView extends View {
                 canvas.drawText(timecodeStr, i - offset, (int) (12 * mDensity), mTimecodePaint);
             }
         }
+        Metrics.end(Metrics.Stage.RENDER, startNs);
 
         if (mListener != null) {
             mListener.waveformDraw();
         }
     }
 
-    /**
-     * Called once when a new sound file is added
-     */
-    private void computeDoublesForAllZoomLevels() {
-        int numFrames = mSoundFile.getNumFrames();
-        int[] frameGains = mSoundFile.getFrameGains();
-        double[] smoothedGains = new double[numFrames];
-        if (numFrames == 1) {
-            smoothedGains[0] = frameGains[0];
-        } else if (numFrames == 2) {
-            smoothedGains[0] = frameGains[0];
-            smoothedGains[1] = frameGains[1];
-        } else if (numFrames > 2) {
-            smoothedGains[0] = (frameGains[0] / 2.0) + (frameGains[1] / 2.0);
-            for (int i = 1; i < numFrames - 1; i++) {
-                smoothedGains[i] = (frameGains[i - 1] / 3.0) + (frameGains[i] / 3.0)
-                        + (frameGains[i + 1] / 3.0);
-            }
-            smoothedGains[numFrames - 1] = (frameGains[numFrames - 2] / 2.0)
-                    + (frameGains[numFrames - 1] / 2.0);
-        }
-
-        // Make sure the range is no more than 0 - 255
-        double maxGain = 1.0;
-        for (int i = 0; i < numFrames; i++) {
-            if (smoothedGains[i] > maxGain) {
-                maxGain = smoothedGains[i];
-            }
-        }
-        double scaleFactor = 1.0;
-        if (maxGain > 255.0) {
-            scaleFactor = 255 / maxGain;
-        }
-
-        // Build histogram of 256 bins and figure out the new scaled max
-        maxGain = 0;
-        int[] gainHist = new int[256];
-        for (int i = 0; i < numFrames; i++) {
-            int smoothedGain = (int) (smoothedGains[i] * scaleFactor);
-            if (smoothedGain < 0)
-                smoothedGain = 0;
-            if (smoothedGain > 255)
-                smoothedGain = 255;
-
-            if (smoothedGain > maxGain)
-                maxGain = smoothedGain;
-
-            gainHist[smoothedGain]++;
-        }
-
-        // Re-calibrate the min to be 5%
-        double minGain = 0;
-        int sum = 0;
-        while (minGain < 255 && sum < numFrames / 20) {
-            sum += gainHist[(int) minGain];
-            minGain++;
-        }
-
-        // Re-calibrate the max to be 99%
-        sum = 0;
-        while (maxGain > 2 && sum < numFrames / 100) {
-            sum += gainHist[(int) maxGain];
-            maxGain--;
-        }
-
-        // Compute the heights
-        double[] heights = new double[numFrames];
-        double range = maxGain - minGain;
-        for (int i = 0; i < numFrames; i++) {
-            double value = (smoothedGains[i] * scaleFactor - minGain) / range;
-            if (value < 0.0)
-                value = 0.0;
-            if (value > 1.0)
-                value = 1.0;
-            heights[i] = value * value;
-        }
-
-        mNumZoomLevels = 5;
-        mLenByZoomLevel = new int[5];
-        mZoomFactorByZoomLevel = new double[5];
-        mValuesByZoomLevel = new double[5][];
-
-        // Level 0 is doubled, with interpolated values
-        mLenByZoomLevel[0] = numFrames * 2;
-        mZoomFactorByZoomLevel[0] = 2.0;
-        mValuesByZoomLevel[0] = new double[mLenByZoomLevel[0]];
-        if (numFrames > 0) {
-            mValuesByZoomLevel[0][0] = 0.5 * heights[0];
-            mValuesByZoomLevel[0][1] = heights[0];
-        }
-        for (int i = 1; i < numFrames; i++) {
-            mValuesByZoomLevel[0][2 * i] = 0.5 * (heights[i - 1] + heights[i]);
-            mValuesByZoomLevel[0][2 * i + 1] = heights[i];
-        }
-
-        // Level 1 is normal
-        mLenByZoomLevel[1] = numFrames;
-        mValuesByZoomLevel[1] = new double[mLenByZoomLevel[1]];
-        mZoomFactorByZoomLevel[1] = 1.0;
-        System.arraycopy(heights, 0, mValuesByZoomLevel[1], 0, mLenByZoomLevel[1]);
-
-        // 3 more levels are each halved
-        for (int j = 2; j < 5; j++) {
-            mLenByZoomLevel[j] = mLenByZoomLevel[j - 1] / 2;
-            mValuesByZoomLevel[j] = new double[mLenByZoomLevel[j]];
-            mZoomFactorByZoomLevel[j] = mZoomFactorByZoomLevel[j - 1] / 2.0;
-            for (int i = 0; i < mLenByZoomLevel[j]; i++) {
-                mValuesByZoomLevel[j][i] = 0.5
-                        * (mValuesByZoomLevel[j - 1][2 * i] + mValuesByZoomLevel[j - 1][2 * i + 1]);
-            }
-        }
-
-        if (numFrames > 5000) {
-            mZoomLevel = 3;
-        } else if (numFrames > 1000) {
-            mZoomLevel = 2;
-        } else if (numFrames > 300) {
-            mZoomLevel = 1;
-        } else {
-            mZoomLevel = 0;
-        }
+    private long getSamplesPerPixel() {
+        return (long) PeakPyramid.BASE_BLOCK_SIZE << mZoomLevel;
+    }
 
-        mInitialized = true;
+    // Number of pixels per frame of the sound file.
+    private double getZoomFactor() {
+        return mSamplesPerFrame / (double) getSamplesPerPixel();
     }
 
     /**
-     * Called the first time we need to draw when the zoom level has changed or the screen is
-     * resized
+     * Called once when a new sound file is added, and again each time more frames are available if
+     * the sound file is still being decoded. Updates the length of the waveform, and the scale of
+     * its peaks so that the highest one fills the view.
      */
-    private void computeIntsForThisZoomLevel() {
-        int halfHeight = (getMeasuredHeight() / 2) - 1;
-        mHeightsAtThisZoomLevel = new int[mLenByZoomLevel[mZoomLevel]];
-        for (int i = 0; i < mLenByZoomLevel[mZoomLevel]; i++) {
-            mHeightsAtThisZoomLevel[i] = (int) (mValuesByZoomLevel[mZoomLevel][i] * halfHeight);
+    private void updateNumSamples() {
+        mNumSamples = (long) mSoundFile.getNumFrames() * mSamplesPerFrame;
+        long samplesPerRange = Math.max(1, (mNumSamples + NUM_SCALE_RANGES - 1) / NUM_SCALE_RANGES);
+        byte[] min = new byte[NUM_SCALE_RANGES];
+        byte[] max = new byte[NUM_SCALE_RANGES];
+        int numRanges = mSoundFile.getPeaks(0, samplesPerRange, NUM_SCALE_RANGES, min, max);
+        mPeak = 1;
+        for (int i = 0; i < numRanges; i++) {
+            mPeak = Math.max(mPeak, Math.max(-min[i], max[i]));
         }
     }
 
@@ -0,0 +1,498 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Cuts the AAC track of an MP4 (.m4a) file without re-encoding it: the access units covering a
+ * selection are copied as they are into a new file, whose header is built by {@link MP4Header}.
+ *
+ * <p>
+ * The sample tables of the track (stts, stsz, stsc and stco or co64) are read from the moov atom of
+ * the source with {@link Atom#parse}, to locate each access unit in the file. Only AAC LC tracks
+ * with 1024 samples per frame are supported, since these are the only ones MP4Header can describe.
+ * The selection is extended to whole AAC frames, and preceded by the access unit before its first
+ * frame: AAC frames overlap, and the first frame would otherwise be decoded faded in.
+ */
+class AACCutter {
+    private static final int SAMPLES_PER_FRAME = 1024;
+    private static final int AAC_LC = 2;
+    private static final int[] SAMPLING_FREQUENCIES = new int[]{96000, 88200, 64000, 48000, 44100,
+            32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    // Backward compatible signaling of the absence of SBR, appended to the AudioSpecificConfig
+    // of AAC LC streams by some encoders.
+    private static final byte[] NO_SBR_EXTENSION = new byte[]{0x56, (byte) 0xE5, 0x00};
+    private static final long MAX_MOOV_SIZE = 64 << 20;
+    private static final int MOOV_TYPE = 0x6D6F6F76; // "moov"
+
+    private final InputSource mSource;
+    private final int mSampleRate;
+    private final int mChannels;
+    // The 2 bytes AudioSpecificConfig of the stream, written as the first frame of the output,
+    // as the AAC encoder does.
+    private final byte[] mConfig;
+    // Offsets in the file and sizes of the access units, which follow each other in time.
+    private final long[] mOffsets;
+    private final int[] mSizes;
+    // Media time of the first access unit, and of the first sample decoded by MediaCodec.
+    private final long mFirstFrameTime;
+    private long mDecodedStart;
+
+    private AACCutter(InputSource source, int sampleRate, int channels, byte[] config,
+            long[] offsets, int[] sizes, long firstFrameTime) {
+        mSource = source;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mConfig = config;
+        mOffsets = offsets;
+        mSizes = sizes;
+        mFirstFrameTime = firstFrameTime;
+        mDecodedStart = firstFrameTime;
+    }
+
+    // Parses the first audio track of source. decodedNumSamples is the number of samples per
+    // channel MediaCodec decoded from the file, used to tell whether the decoder skipped the
+    // priming samples before the start of the edit list. Returns null if source is not an MP4 file
+    // with an AAC LC track which can be cut.
+    static AACCutter create(InputSource source, long decodedNumSamples) throws IOException {
+        byte[] moov;
+        try (FileChannel channel = source.openChannel()) {
+            moov = readMoov(channel);
+        }
+        Atom[] atoms = moov != null ? Atom.parse(moov, 0, moov.length) : null;
+        if (atoms == null) {
+            return null;
+        }
+        for (Atom trak : atoms) {
+            Atom hdlr = trak.getChild("mdia.hdlr");
+            if (trak.getTypeStr().equals("trak") && hdlr != null && hdlr.getData().length >= 12
+                    && getInt(hdlr.getData(), 8) == 0x736F756E) { // "soun"
+                try {
+                    return create(source, trak, decodedNumSamples);
+                } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+                    return null; // Truncated atom.
+                }
+            }
+        }
+        return null;
+    }
+
+    private static AACCutter create(InputSource source, Atom trak, long decodedNumSamples) {
+        Atom stbl = trak.getChild("mdia.minf.stbl");
+        Atom mdhd = trak.getChild("mdia.mdhd");
+        if (stbl == null || mdhd == null) {
+            return null;
+        }
+        byte[] config = getAudioSpecificConfig(stbl.getChild("stsd"));
+        if (config == null) {
+            return null;
+        }
+        int sampleRate = SAMPLING_FREQUENCIES[((config[0] & 0x07) << 1)
+                | ((config[1] & 0xFF) >> 7)];
+        int channels = (config[1] >> 3) & 0x0F;
+        byte[] data = mdhd.getData();
+        int timescale = getInt(data, data[0] == 1 ? 20 : 12);
+        if (timescale != sampleRate) {
+            return null;
+        }
+
+        int[] sizes = getSampleSizes(stbl.getChild("stsz"));
+        int[] durations = sizes != null
+                ? getSampleDurations(stbl.getChild("stts"), sizes.length)
+                : null;
+        long[] offsets = sizes != null ? getSampleOffsets(stbl, sizes) : null;
+        if (durations == null || offsets == null) {
+            return null;
+        }
+        // Keep the access units holding audio, dropping the codec config frame of the files
+        // written by MP4Header.
+        int numFrames = 0;
+        long time = 0;
+        long firstFrameTime = -1;
+        for (int i = 0; i < sizes.length; i++) {
+            if (durations[i] == 0) {
+                continue;
+            }
+            if (durations[i] != SAMPLES_PER_FRAME && i != sizes.length - 1) {
+                return null;
+            }
+            if (firstFrameTime < 0) {
+                firstFrameTime = time;
+            }
+            sizes[numFrames] = sizes[i];
+            offsets[numFrames] = offsets[i];
+            numFrames++;
+            time += durations[i];
+        }
+        if (numFrames == 0) {
+            return null;
+        }
+        AACCutter cutter = new AACCutter(source, sampleRate, channels, Arrays.copyOf(config, 2),
+                Arrays.copyOf(offsets, numFrames), Arrays.copyOf(sizes, numFrames), firstFrameTime);
+        // Depending on the version of Android, the decoder either outputs the priming samples
+        // before the start of the edit list or skips them: pick the start which matches the
+        // number of decoded samples best.
+        long mediaStart = getMediaStart(trak.getChild("edts.elst"));
+        long numSamples = (long) numFrames * SAMPLES_PER_FRAME;
+        if (mediaStart > firstFrameTime
+                && Math.abs(decodedNumSamples - (numSamples - (mediaStart - firstFrameTime))) < Math
+                        .abs(decodedNumSamples - numSamples)) {
+            cutter.mDecodedStart = mediaStart;
+        }
+        return cutter;
+    }
+
+    // Returns a cutter of the access units of an AAC LC stream written one after the other to
+    // source, e.g. by RecordingEncoder, at the given offsets and with the given sizes. The first
+    // sample of the decoded audio is sample delay of the stream, after the priming samples.
+    static AACCutter fromAccessUnits(InputSource source, int sampleRate, int channels,
+            byte[] config, long[] offsets, int[] sizes, long delay) {
+        AACCutter cutter = new AACCutter(source, sampleRate, channels, config, offsets, sizes, 0);
+        cutter.mDecodedStart = delay;
+        return cutter;
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    int getChannels() {
+        return mChannels;
+    }
+
+    // Number of access units of the track.
+    int getNumFrames() {
+        return mSizes.length;
+    }
+
+    // Writes to outputStream an .m4a file holding the access units which cover numSamples samples
+    // per channel, starting at startSample, counted from the first sample decoded by MediaCodec,
+    // after the access unit preceding them, if any. The selection therefore starts between 1024
+    // and 2047 samples after the beginning of the decoded file, or before 1024 samples when it
+    // starts in the first access unit. outputStream is not closed.
+    void write(OutputStream outputStream, long startSample, long numSamples) throws IOException {
+        long start = mDecodedStart + startSample - mFirstFrameTime;
+        long end = start + numSamples;
+        int firstFrame = (int) Math.max(0, Math.floorDiv(start, SAMPLES_PER_FRAME));
+        int lastFrame = (int) Math.min(mSizes.length, Math.max(firstFrame + 1,
+                Math.floorDiv(end + SAMPLES_PER_FRAME - 1, SAMPLES_PER_FRAME)));
+        if (firstFrame >= mSizes.length) {
+            throw new IOException("Start sample " + startSample + " past the end of " + mSource);
+        }
+        // The first half of the samples of an access unit are added to the second half of the
+        // ones of the previous access unit, which must be decoded first.
+        firstFrame = Math.max(0, firstFrame - 1);
+
+        long headerStartNs = Metrics.begin(Metrics.Stage.ENCODE_HEADER);
+        int[] frameSizes = new int[1 + lastFrame - firstFrame];
+        frameSizes[0] = mConfig.length;
+        long totalSize = 0;
+        for (int i = firstFrame; i < lastFrame; i++) {
+            frameSizes[1 + i - firstFrame] = mSizes[i];
+            totalSize += mSizes[i];
+        }
+        int bitrate = (int) (totalSize * 8 * mSampleRate
+                / ((long) (lastFrame - firstFrame) * SAMPLES_PER_FRAME));
+        byte[] header = MP4Header.getMP4Header(mSampleRate, mChannels, frameSizes, bitrate);
+        Metrics.end(Metrics.Stage.ENCODE_HEADER, headerStartNs);
+        if (header == null) {
+            throw new IOException("Failed to build the header of the cut of " + mSource);
+        }
+
+        long writeStartNs = Metrics.begin(Metrics.Stage.ENCODE_WRITE);
+        outputStream.write(header);
+        outputStream.write(mConfig);
+        WritableByteChannel out = Channels.newChannel(outputStream);
+        try (FileChannel in = mSource.openChannel()) {
+            // Copy the runs of access units which follow each other in the file at once.
+            int i = firstFrame;
+            while (i < lastFrame) {
+                long offset = mOffsets[i];
+                long length = 0;
+                do {
+                    length += mSizes[i++];
+                } while (i < lastFrame && mOffsets[i] == offset + length);
+                while (length > 0) {
+                    long copied = in.transferTo(offset, length, out);
+                    if (copied <= 0) {
+                        throw new IOException("Unexpected end of " + mSource);
+                    }
+                    offset += copied;
+                    length -= copied;
+                }
+            }
+        }
+        Metrics.end(Metrics.Stage.ENCODE_WRITE, writeStartNs,
+                header.length + mConfig.length + totalSize,
+                (long) (lastFrame - firstFrame) * SAMPLES_PER_FRAME * 1000000 / mSampleRate);
+    }
+
+    // Returns the content of the top level moov atom of the file read by channel, or null if
+    // there is none.
+    private static byte[] readMoov(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long offset = 0;
+        while (fileSize - offset >= 8) {
+            header.clear().limit((int) Math.min(16, fileSize - offset));
+            readFully(channel, header, offset);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            int headerSize = 8;
+            if (size == 1 && header.limit() == 16) { // 64 bits size.
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) { // The atom extends to the end of the file.
+                size = fileSize - offset;
+            }
+            if (size < headerSize || size > fileSize - offset) {
+                return null;
+            }
+            if (header.getInt(4) == MOOV_TYPE) {
+                if (size - headerSize > MAX_MOOV_SIZE) {
+                    return null;
+                }
+                ByteBuffer moov = ByteBuffer.allocate((int) (size - headerSize));
+                readFully(channel, moov, offset + headerSize);
+                return moov.array();
+            }
+            offset += size;
+        }
+        return null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    // Returns the AudioSpecificConfig of the mp4a entry of an stsd atom, if it describes an AAC
+    // LC stream which MP4Header can describe too, or null.
+    private static byte[] getAudioSpecificConfig(Atom stsd) {
+        if (stsd == null) {
+            return null;
+        }
+        byte[] data = stsd.getData();
+        // Version and flags, entry count, then the first sample entry.
+        int entrySize = getInt(data, 8);
+        if (getInt(data, 4) < 1 || getInt(data, 12) != 0x6D703461) { // "mp4a"
+            return null;
+        }
+        // 8 bytes of header and 28 bytes of AudioSampleEntry, extended by QuickTime versions.
+        int version = ((data[24] & 0xFF) << 8) | (data[25] & 0xFF);
+        int childrenOffset = 8 + 36 + (version == 1 ? 16 : version == 2 ? 36 : 0);
+        Atom[] children = Atom.parse(data, childrenOffset, entrySize - (childrenOffset - 8));
+        if (children == null) {
+            return null;
+        }
+        byte[] config = null;
+        for (Atom child : children) {
+            if (child.getTypeStr().equals("esds")) {
+                config = getDecoderSpecificInfo(
+                        ByteBuffer.wrap(child.getData(), 4, child.getData().length - 4));
+            }
+        }
+        if (config == null || config.length < 2) {
+            return null;
+        }
+        int objectType = (config[0] & 0xFF) >> 3;
+        int frequencyIndex = ((config[0] & 0x07) << 1) | ((config[1] & 0xFF) >> 7);
+        int channelConfig = (config[1] >> 3) & 0x0F;
+        // The last 3 bits are frameLengthFlag (960 samples per frame), dependsOnCoreCoder and
+        // extensionFlag.
+        if (objectType != AAC_LC || frequencyIndex >= SAMPLING_FREQUENCIES.length
+                || channelConfig < 1 || channelConfig > 6 || (config[1] & 0x07) != 0) {
+            return null;
+        }
+        if (config.length > 2
+                && !Arrays.equals(Arrays.copyOfRange(config, 2, config.length), NO_SBR_EXTENSION)) {
+            return null;
+        }
+        return config;
+    }
+
+    // Returns the DecoderSpecificInfo of the ES_Descriptor held by esds, if the stream is an
+    // ISO/IEC 14496-3 audio stream, or null. See section 7.2.6 of ISO/IEC 14496-1.
+    private static byte[] getDecoderSpecificInfo(ByteBuffer esds) {
+        try {
+            if (esds.get() != 0x03) { // ES_DescrTag
+                return null;
+            }
+            readDescriptorLength(esds);
+            esds.getShort(); // ES_ID
+            int flags = esds.get() & 0xFF;
+            if ((flags & 0x80) != 0) { // streamDependenceFlag
+                esds.getShort();
+            }
+            if ((flags & 0x40) != 0) { // URL_Flag
+                esds.position(esds.position() + (esds.get() & 0xFF));
+            }
+            if ((flags & 0x20) != 0) { // OCRstreamFlag
+                esds.getShort();
+            }
+            if (esds.get() != 0x04 || readDescriptorLength(esds) < 13) { // DecoderConfigDescrTag
+                return null;
+            }
+            if ((esds.get() & 0xFF) != 0x40) { // objectTypeIndication: Audio ISO/IEC 14496-3
+                return null;
+            }
+            esds.position(esds.position() + 12); // Stream type, buffer size and bitrates.
+            if (esds.get() != 0x05) { // DecSpecificInfoTag
+                return null;
+            }
+            byte[] info = new byte[readDescriptorLength(esds)];
+            esds.get(info);
+            return info;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int readDescriptorLength(ByteBuffer buffer) {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = buffer.get() & 0xFF;
+            length = (length << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    // Returns the size of each sample listed by an stsz atom, or null.
+    private static int[] getSampleSizes(Atom stsz) {
+        if (stsz == null) {
+            return null;
+        }
+        byte[] data = stsz.getData();
+        int sampleSize = getInt(data, 4);
+        int count = getInt(data, 8);
+        if (count <= 0 || (sampleSize == 0 && 12 + 4L * count > data.length)) {
+            return null;
+        }
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = sampleSize != 0 ? sampleSize : getInt(data, 12 + 4 * i);
+            if (sizes[i] < 0) {
+                return null;
+            }
+        }
+        return sizes;
+    }
+
+    // Returns the duration of each of the numSamples samples listed by an stts atom, or null.
+    private static int[] getSampleDurations(Atom stts, int numSamples) {
+        if (stts == null) {
+            return null;
+        }
+        byte[] data = stts.getData();
+        int[] durations = new int[numSamples];
+        int sample = 0;
+        int numEntries = getInt(data, 4);
+        for (int i = 0; i < numEntries && sample < numSamples; i++) {
+            int count = getInt(data, 8 + 8 * i);
+            int duration = getInt(data, 12 + 8 * i);
+            if (count < 0 || duration < 0) {
+                return null;
+            }
+            for (int j = 0; j < count && sample < numSamples; j++) {
+                durations[sample++] = duration;
+            }
+        }
+        return sample == numSamples ? durations : null;
+    }
+
+    // Returns the offset in the file of each sample, from the chunks listed by the stsc and the
+    // stco or co64 atoms of stbl, or null.
+    private static long[] getSampleOffsets(Atom stbl, int[] sizes) {
+        Atom stsc = stbl.getChild("stsc");
+        Atom stco = stbl.getChild("stco");
+        Atom co64 = stbl.getChild("co64");
+        if (stsc == null || (stco == null && co64 == null)) {
+            return null;
+        }
+        byte[] chunks = stco != null ? stco.getData() : co64.getData();
+        int numChunks = getInt(chunks, 4);
+        byte[] entries = stsc.getData();
+        int numEntries = getInt(entries, 4);
+        if (numEntries <= 0) {
+            return null;
+        }
+        long[] offsets = new long[sizes.length];
+        int sample = 0;
+        int entry = 0;
+        for (int chunk = 0; chunk < numChunks && sample < sizes.length; chunk++) {
+            // stsc entries start at their first chunk, counted from 1.
+            while (entry + 1 < numEntries && getInt(entries, 8 + 12 * (entry + 1)) <= chunk + 1) {
+                entry++;
+            }
+            int samplesPerChunk = getInt(entries, 12 + 12 * entry);
+            long offset = stco != null
+                    ? getInt(chunks, 8 + 4 * chunk) & 0xFFFFFFFFL
+                    : getLong(chunks, 8 + 8 * chunk);
+            for (int i = 0; i < samplesPerChunk && sample < sizes.length; i++) {
+                offsets[sample] = offset;
+                offset += sizes[sample++];
+            }
+        }
+        return sample == sizes.length ? offsets : null;
+    }
+
+    // Returns the media time at which the presentation of the track starts according to its
+    // edit list, or 0 if it has none.
+    private static long getMediaStart(Atom elst) {
+        if (elst == null) {
+            return 0;
+        }
+        byte[] data = elst.getData();
+        boolean is64Bits = data[0] == 1;
+        int entrySize = is64Bits ? 20 : 12;
+        int numEntries = getInt(data, 4);
+        for (int i = 0; i < numEntries; i++) {
+            int offset = 8 + entrySize * i;
+            long mediaTime = is64Bits ? getLong(data, offset + 8) : getInt(data, offset + 4);
+            if (mediaTime >= 0) { // -1 for an empty edit.
+                return mediaTime;
+            }
+        }
+        return 0;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        if (offset < 0 || offset + 4 > data.length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " out of " + data.length);
+        }
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ((long) getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+}
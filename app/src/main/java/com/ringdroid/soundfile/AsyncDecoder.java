@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Decodes an audio track with a MediaCodec running in asynchronous mode.
+ *
+ * <p>
+ * Instead of being polled with short timeouts, the codec notifies a dedicated handler thread
+ * whenever an input buffer can be filled or an output buffer is available, so no CPU time is spent
+ * waiting for the codec. The calling thread blocks on a future which is completed when the end of
+ * the stream is reached, when the decoding is canceled or when an error occurs.
+ */
+class AsyncDecoder {
+    private final MediaExtractor mExtractor;
+    private final MediaFormat mFormat;
+    private final Callback mCallback;
+    private final CompletableFuture<Boolean> mResult = new CompletableFuture<>();
+    // Only accessed from the handler thread.
+    private boolean mDoneReading = false;
+    private boolean mFirstSampleData = true;
+
+    // Decodes the selected track of extractor, whose format is format. The callback methods are
+    // called from the handler thread.
+    AsyncDecoder(MediaExtractor extractor, MediaFormat format, Callback callback) {
+        mExtractor = extractor;
+        mFormat = format;
+        mCallback = callback;
+    }
+
+    // Decodes the whole track, and returns when done. Returns false if the decoding has been
+    // canceled.
+    boolean decode() throws IOException {
+        HandlerThread thread = new HandlerThread("AsyncDecoder");
+        thread.start();
+        MediaCodec codec = null;
+        try {
+            codec = CodecPool.acquireDecoder(mFormat, new CodecCallback(),
+                    new Handler(thread.getLooper()));
+            codec.start();
+            return mResult.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException
+                    ? (IOException) cause
+                    : new IOException("Asynchronous decoding failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Asynchronous decoding interrupted");
+        } finally {
+            // A callback may still be running on the handler thread, reading the extractor or
+            // using the codec, and more may be queued. The callbacks queued from now on return
+            // right away, and the handler thread is waited for, so that the codec can be reset and
+            // the extractor released by the caller once this returns.
+            mResult.complete(false);
+            thread.quitSafely();
+            joinUninterruptibly(thread);
+            if (codec != null) {
+                CodecPool.recycle(codec);
+            }
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    interface Callback {
+        // Called after each compressed sample is queued to the codec. Returns true to cancel the
+        // decoding.
+        boolean onSampleRead(int sampleSize);
+
+        void onOutputFormatChanged(MediaFormat outputFormat);
+
+        // Called with each decoded buffer, whose samples are between its position and its limit.
+        // Returns true if no more samples are needed.
+        boolean onDecodedBuffer(ByteBuffer buffer) throws IOException;
+    }
+
+    private class CodecCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (mResult.isDone() || mDoneReading) {
+                return;
+            }
+            try {
+                ByteBuffer inputBuffer = Objects.requireNonNull(codec.getInputBuffer(index));
+                inputBuffer.clear();
+                long extractStartNs = Metrics.begin(Metrics.Stage.DECODE_EXTRACT);
+                int sampleSize = mExtractor.readSampleData(inputBuffer, 0);
+                Metrics.end(Metrics.Stage.DECODE_EXTRACT, extractStartNs, Math.max(sampleSize, 0),
+                        0);
+                if (mFirstSampleData && Objects.equals(mFormat.getString(MediaFormat.KEY_MIME),
+                        "audio/mp4a-latm") && sampleSize == 2) {
+                    // Skip the AAC codec config, see SoundFile.ReadFile().
+                    mExtractor.advance();
+                    mCallback.onSampleRead(sampleSize);
+                    inputBuffer.clear();
+                    sampleSize = mExtractor.readSampleData(inputBuffer, 0);
+                }
+                mFirstSampleData = false;
+                if (sampleSize < 0) {
+                    // All samples have been read.
+                    codec.queueInputBuffer(index, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mDoneReading = true;
+                } else {
+                    codec.queueInputBuffer(index, 0, sampleSize, mExtractor.getSampleTime(), 0);
+                    mExtractor.advance();
+                    if (mCallback.onSampleRead(sampleSize)) {
+                        mResult.complete(false);
+                    }
+                }
+            } catch (RuntimeException e) {
+                mResult.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            if (mResult.isDone()) {
+                return;
+            }
+            try {
+                boolean done = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                if (info.size > 0) {
+                    ByteBuffer outputBuffer = Objects.requireNonNull(codec.getOutputBuffer(index));
+                    outputBuffer.position(info.offset);
+                    outputBuffer.limit(info.offset + info.size);
+                    done |= mCallback.onDecodedBuffer(outputBuffer);
+                }
+                codec.releaseOutputBuffer(index, false);
+                if (done) {
+                    mResult.complete(true);
+                }
+            } catch (IOException | RuntimeException e) {
+                mResult.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            mResult.completeExceptionally(new IOException("Codec error", e));
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            mCallback.onOutputFormatChanged(format);
+        }
+    }
+}
@@ -16,6 +16,11 @@
 
 package com.ringdroid.soundfile;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class Atom { // note: latest versions of spec simply call it 'box' instead of 'atom'.
     private final int mType;
     private final byte mVersion; // if negative, then the atom does not contain version and flags
@@ -25,6 +30,10 @@ public class Atom { // note: latest versions of spec simply call it 'box' instea
     private byte[] mData; // an atom can either contain data or children, but not both.
     private Atom[] mChildren;
 
+    // types of the atoms whose content is parsed as children by parse().
+    private static final List<String> CONTAINER_TYPES = Arrays.asList("moov", "trak", "edts",
+            "mdia", "minf", "stbl");
+
     // create an empty atom of the given type.
     public Atom(String type) {
         mSize = 8;
@@ -68,10 +77,10 @@ public class Atom { // note: latest versions of spec simply call it 'box' instea
 
     private int getTypeInt(String type_str) {
         int type = 0;
-        type |= (byte) (type_str.charAt(0)) << 24;
-        type |= (byte) (type_str.charAt(1)) << 16;
-        type |= (byte) (type_str.charAt(2)) << 8;
-        type |= (byte) (type_str.charAt(3));
+        type |= (type_str.charAt(0) & 0xFF) << 24;
+        type |= (type_str.charAt(1) & 0xFF) << 16;
+        type |= (type_str.charAt(2) & 0xFF) << 8;
+        type |= (type_str.charAt(3) & 0xFF);
         return type;
     }
 
@@ -133,6 +142,48 @@ public class Atom { // note: latest versions of spec simply call it 'box' instea
         return null;
     }
 
+    // return the children of this atom, in order. The array is empty if the atom contains data.
+    public Atom[] getChildren() {
+        return mChildren != null ? mChildren.clone() : new Atom[0];
+    }
+
+    // parse the atoms contained in length bytes of data, starting at offset. The content of
+    // container atoms (moov, trak, ...) is parsed as children, and the content of other atoms,
+    // including their version and flags if any, is kept as data.
+    // return null if the atoms are malformed.
+    public static Atom[] parse(byte[] data, int offset, int length) {
+        List<Atom> atoms = new ArrayList<>();
+        int end = offset + length;
+        while (offset < end) {
+            if (end - offset < 8) {
+                return null;
+            }
+            long size = ((data[offset] & 0xFFL) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                    | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+            if (size == 0) { // the atom extends to the end of its parent.
+                size = end - offset;
+            }
+            if (size < 8 || size > end - offset) { // 64 bits sizes are not supported here.
+                return null;
+            }
+            String type = new String(data, offset + 4, 4, StandardCharsets.ISO_8859_1);
+            Atom atom = new Atom(type);
+            if (CONTAINER_TYPES.contains(type)) {
+                Atom[] children = parse(data, offset + 8, (int) size - 8);
+                if (children == null) {
+                    return null;
+                }
+                atom.mChildren = children;
+                atom.setSize();
+            } else {
+                atom.setData(Arrays.copyOfRange(data, offset + 8, offset + (int) size));
+            }
+            atoms.add(atom);
+            offset += (int) size;
+        }
+        return atoms.toArray(new Atom[0]);
+    }
+
     // return a byte array containing the full content of the atom (including
     // header)
     public byte[] getBytes() {
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free ring of direct buffers passing captured audio from a single producer thread, which
+ * reads an AudioRecord, to a single consumer thread, which stores and analyzes it.
+ *
+ * <p>
+ * The producer fills the buffer returned by {@link #getWriteBuffer} and publishes it with
+ * {@link #publish}. The consumer takes the published buffers in order with {@link #take} and hands
+ * them back with {@link #release}. The buffers are allocated once, and neither thread ever waits
+ * for the other to make room: when the consumer falls behind and the ring is full, the producer
+ * reads into a spare buffer whose data is dropped, and an overrun is counted.
+ */
+class CaptureRing {
+    // Longest time the consumer sleeps without checking for new buffers, in case it missed a
+    // wake-up.
+    private static final long MAX_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ByteBuffer[] mBuffers;
+    private final ByteBuffer mSpare;
+    // Number of buffers published by the producer, and released by the consumer. Each counter is
+    // only written by one of the threads.
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mReleased = new AtomicLong();
+    private final AtomicLong mOverruns = new AtomicLong();
+    private final AtomicLong mDroppedBytes = new AtomicLong();
+    private volatile Thread mConsumer = null;
+    private volatile boolean mClosed = false;
+
+    // Creates a ring of numBuffers direct buffers of bufferSize bytes, in little endian order.
+    CaptureRing(int numBuffers, int bufferSize) {
+        mBuffers = new ByteBuffer[numBuffers];
+        for (int i = 0; i < numBuffers; i++) {
+            mBuffers[i] = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mSpare = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Called by the producer. Returns the cleared buffer to fill next, which is a spare buffer
+    // whose data will be dropped if the ring is full.
+    ByteBuffer getWriteBuffer() {
+        long published = mPublished.get();
+        ByteBuffer buffer = published - mReleased.get() < mBuffers.length
+                ? mBuffers[(int) (published % mBuffers.length)]
+                : mSpare;
+        buffer.clear();
+        return buffer;
+    }
+
+    // Called by the producer. Publishes the buffer returned by getWriteBuffer, holding length
+    // bytes from its start, or counts an overrun if it is the spare buffer.
+    void publish(ByteBuffer buffer, int length) {
+        if (buffer == mSpare) {
+            if (length > 0) {
+                mOverruns.incrementAndGet();
+                mDroppedBytes.addAndGet(length);
+            }
+            return;
+        }
+        buffer.position(0);
+        buffer.limit(length);
+        // The ordered write makes the content of the buffer visible to the consumer first.
+        mPublished.lazySet(mPublished.get() + 1);
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    // Called by the producer once it has published its last buffer.
+    void close() {
+        mClosed = true;
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    // Called by the consumer. Returns the next published buffer, between its position and its
+    // limit, waiting for it if needed, or null once the ring is closed and all the buffers were
+    // taken. The buffer must be handed back with release() before the next call.
+    ByteBuffer take() {
+        mConsumer = Thread.currentThread();
+        long released = mReleased.get();
+        while (mPublished.get() == released) {
+            if (mClosed) {
+                // Check again, in case the last buffers were published just before closing.
+                if (mPublished.get() == released) {
+                    return null;
+                }
+                break;
+            }
+            LockSupport.parkNanos(this, MAX_WAIT_NS);
+        }
+        return mBuffers[(int) (released % mBuffers.length)];
+    }
+
+    // Called by the consumer. Hands back the buffer returned by take() to the producer.
+    void release() {
+        mReleased.lazySet(mReleased.get() + 1);
+    }
+
+    // Number of buffers dropped because the ring was full.
+    long getOverruns() {
+        return mOverruns.get();
+    }
+
+    // Number of bytes dropped because the ring was full.
+    long getDroppedBytes() {
+        return mDroppedBytes.get();
+    }
+
+    // Number of buffers published and not released yet.
+    int getPendingBuffers() {
+        return (int) (mPublished.get() - mReleased.get());
+    }
+}
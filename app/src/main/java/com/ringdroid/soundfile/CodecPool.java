@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of MediaCodec instances, so that opening, editing and saving files does not pay for the
+ * creation of a new codec each time one is needed.
+ *
+ * <p>
+ * Codecs are pooled by MIME type and direction (decoder or encoder): the format of each use is
+ * applied when the codec is handed out, by configuring it. A codec handed back to the pool is reset
+ * and kept idle until it is reused or IDLE_TIMEOUT_MS passes, at most MAX_IDLE_CODECS being kept.
+ *
+ * <p>
+ * At most MAX_ACTIVE_CODECS codecs can be in use at the same time, since the number of codec
+ * instances of a device is limited: acquiring one more waits for another one to be handed back.
+ */
+final class CodecPool {
+    private static final String TAG = "CodecPool";
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    private static final int MAX_IDLE_CODECS = 4;
+    // Enough for a parallel decoding on 8 cores, alongside an encoder and a lazy decoder.
+    private static final int MAX_ACTIVE_CODECS = 12;
+    private static final long ACQUIRE_TIMEOUT_MS = 10000;
+
+    private static final Object sLock = new Object();
+    // Keys of the codecs in use.
+    private static final Map<MediaCodec, String> sActiveCodecs = new IdentityHashMap<>();
+    // Number of codecs in use or being created.
+    private static int sNumActiveCodecs = 0;
+    // Idle codecs, the least recently used first.
+    private static final ArrayDeque<IdleCodec> sIdleCodecs = new ArrayDeque<>();
+    private static ScheduledExecutorService sEvictor = null;
+
+    private CodecPool() {
+    }
+
+    // Returns a decoder configured for format, in the Configured state.
+    static MediaCodec acquireDecoder(MediaFormat format) throws IOException {
+        return acquire(format, false, null, null);
+    }
+
+    // Returns a decoder configured for format in asynchronous mode, calling callback on handler.
+    static MediaCodec acquireDecoder(MediaFormat format, MediaCodec.Callback callback,
+            Handler handler) throws IOException {
+        return acquire(format, false, callback, handler);
+    }
+
+    // Returns an encoder configured for format, in the Configured state.
+    static MediaCodec acquireEncoder(MediaFormat format) throws IOException {
+        return acquire(format, true, null, null);
+    }
+
+    // Hands back a codec returned by one of the acquire methods, in any state. The codec must not
+    // be used afterwards.
+    static void recycle(MediaCodec codec) {
+        String key;
+        synchronized (sLock) {
+            key = sActiveCodecs.remove(codec);
+            if (key != null) {
+                sNumActiveCodecs--;
+                sLock.notifyAll();
+            }
+        }
+        if (key == null) {
+            Log.w(TAG, "Releasing a codec which does not belong to the pool");
+            codec.release();
+            return;
+        }
+        try {
+            // Also stops the codec and recovers it from the Error state.
+            codec.reset();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to reset a " + key + " codec", e);
+            codec.release();
+            return;
+        }
+        List<MediaCodec> evicted = new ArrayList<>();
+        synchronized (sLock) {
+            sIdleCodecs.addLast(new IdleCodec(codec, key, SystemClock.uptimeMillis()));
+            while (sIdleCodecs.size() > MAX_IDLE_CODECS) {
+                evicted.add(sIdleCodecs.removeFirst().codec);
+            }
+            if (sEvictor == null) {
+                sEvictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            sEvictor.schedule(CodecPool::evictIdleCodecs, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        for (MediaCodec idle : evicted) {
+            idle.release();
+        }
+    }
+
+    // Releases all the idle codecs, e.g. when the app is asked to trim its memory.
+    static void releaseIdleCodecs() {
+        List<MediaCodec> idle = new ArrayList<>();
+        synchronized (sLock) {
+            for (IdleCodec idleCodec : sIdleCodecs) {
+                idle.add(idleCodec.codec);
+            }
+            sIdleCodecs.clear();
+        }
+        for (MediaCodec codec : idle) {
+            codec.release();
+        }
+    }
+
+    private static MediaCodec acquire(MediaFormat format, boolean encoder,
+            MediaCodec.Callback callback, Handler handler) throws IOException {
+        String mime = Objects.requireNonNull(format.getString(MediaFormat.KEY_MIME));
+        String key = (encoder ? "encoder/" : "decoder/") + mime;
+        MediaCodec codec = null;
+        synchronized (sLock) {
+            long deadline = SystemClock.uptimeMillis() + ACQUIRE_TIMEOUT_MS;
+            while (sNumActiveCodecs >= MAX_ACTIVE_CODECS) {
+                long timeout = deadline - SystemClock.uptimeMillis();
+                if (timeout <= 0) {
+                    throw new IOException("No codec available for " + key);
+                }
+                try {
+                    sLock.wait(timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a codec");
+                }
+            }
+            sNumActiveCodecs++;
+            // Reuse the most recently used idle codec of the same kind, if any.
+            for (Iterator<IdleCodec> it = sIdleCodecs.descendingIterator(); it.hasNext();) {
+                IdleCodec idleCodec = it.next();
+                if (idleCodec.key.equals(key)) {
+                    it.remove();
+                    codec = idleCodec.codec;
+                    Metrics.count("codec.reused", 1);
+                    break;
+                }
+            }
+        }
+        try {
+            if (codec == null) {
+                codec = encoder
+                        ? MediaCodec.createEncoderByType(mime)
+                        : MediaCodec.createDecoderByType(mime);
+                Metrics.count("codec.created", 1);
+            }
+            // A reset codec keeps its callback, which would configure it in asynchronous mode.
+            codec.setCallback(callback, handler);
+            codec.configure(format, null, null, encoder ? MediaCodec.CONFIGURE_FLAG_ENCODE : 0);
+        } catch (IOException | RuntimeException e) {
+            if (codec != null) {
+                codec.release();
+            }
+            synchronized (sLock) {
+                sNumActiveCodecs--;
+                sLock.notifyAll();
+            }
+            throw e;
+        }
+        synchronized (sLock) {
+            sActiveCodecs.put(codec, key);
+        }
+        return codec;
+    }
+
+    // Releases the codecs which have been idle for IDLE_TIMEOUT_MS.
+    private static void evictIdleCodecs() {
+        List<MediaCodec> evicted = new ArrayList<>();
+        synchronized (sLock) {
+            long now = SystemClock.uptimeMillis();
+            while (!sIdleCodecs.isEmpty()
+                    && now - sIdleCodecs.peekFirst().idleSince >= IDLE_TIMEOUT_MS) {
+                evicted.add(sIdleCodecs.removeFirst().codec);
+            }
+        }
+        for (MediaCodec codec : evicted) {
+            codec.release();
+        }
+    }
+
+    private static class IdleCodec {
+        final MediaCodec codec;
+        final String key;
+        final long idleSince;
+
+        IdleCodec(MediaCodec codec, String key, long idleSince) {
+            this.codec = codec;
+            this.key = key;
+            this.idleSince = idleSince;
+        }
+    }
+}
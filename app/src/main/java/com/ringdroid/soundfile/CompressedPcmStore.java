@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores 16 bits little endian PCM data in memory, compressed without loss in independent blocks.
+ *
+ * <p>
+ * The data is split into blocks of BLOCK_FRAMES samples per channel, each compressed as soon as it
+ * is complete, as in FLAC: each channel of a block is predicted from its previous samples with the
+ * fixed polynomial predictor of order 0 to 3 which leaves the smallest residuals, and these are
+ * Rice coded with a parameter fitted to their mean. Since blocks do not depend on each other, any
+ * sample is read by decompressing its block only. The most recently read blocks are kept
+ * decompressed, so that playback and export, which read blocks one after the other, decompress each
+ * block once.
+ *
+ * <p>
+ * Music is typically stored in 50% to 70% of its size, and decompressed at tens of times real time.
+ * Data is appended as by {@link PcmStore}, and must not be read while it is being appended. Reads
+ * are synchronized, since they update the cache of decompressed blocks.
+ */
+class CompressedPcmStore implements PcmSource {
+    // About 93ms at 44.1kHz.
+    static final int BLOCK_FRAMES = 4096;
+    // 32 blocks of 44.1kHz stereo audio take 512KB.
+    private static final int MAX_CACHED_BLOCKS = 32;
+    private static final int MAX_ORDER = 3;
+    // Residuals whose quotient by 2^k reaches ESCAPE_QUOTIENT are written as is on RAW_BITS bits.
+    private static final int ESCAPE_QUOTIENT = 32;
+    private static final int RAW_BITS = 21;
+
+    private final int mChannels;
+    private final int mBlockSize; // Size of a block once decompressed, in bytes.
+    private final List<byte[]> mBlocks = new ArrayList<>();
+    // Data appended after the last complete block, not compressed yet.
+    private final ByteBuffer mPending;
+    private final Map<Integer, ByteBuffer> mCache = new LinkedHashMap<Integer, ByteBuffer>(16,
+            0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest) {
+            return size() > MAX_CACHED_BLOCKS;
+        }
+    };
+    private final short[] mSamples; // Samples of the block being compressed.
+    private long mCompressedSize = 0;
+    private long mSize = 0; // Number of bytes stored.
+
+    CompressedPcmStore(int channels) {
+        if (channels <= 0) {
+            throw new IllegalArgumentException("Invalid number of channels: " + channels);
+        }
+        mChannels = channels;
+        mBlockSize = BLOCK_FRAMES * channels * 2;
+        mPending = ByteBuffer.allocate(mBlockSize).order(ByteOrder.LITTLE_ENDIAN);
+        mSamples = new short[BLOCK_FRAMES * channels];
+    }
+
+    int getChannels() {
+        return mChannels;
+    }
+
+    // Number of bytes stored, once decompressed.
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    // Number of bytes the data takes in memory, compressed.
+    long getCompressedSize() {
+        return mCompressedSize + mPending.position();
+    }
+
+    // Appends the bytes between the position and the limit of src, compressing the blocks which
+    // are complete. The position of src is advanced to its limit.
+    void append(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), mPending.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            mPending.put(part);
+            src.position(src.position() + length);
+            mSize += length;
+            if (!mPending.hasRemaining()) {
+                mPending.flip();
+                mPending.asShortBuffer().get(mSamples);
+                byte[] block = compress(mSamples, BLOCK_FRAMES, mChannels);
+                mBlocks.add(block);
+                mCompressedSize += block.length;
+                Metrics.count("pcm.allocated_bytes", block.length);
+                mPending.clear();
+            }
+        }
+    }
+
+    // Drops the data stored after the first size bytes, which must not be compressed yet. Used to
+    // drop the last incomplete sample of a stream.
+    void setSize(long size) {
+        long compressed = (long) mBlocks.size() * mBlockSize;
+        if (size < compressed || size > mSize) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        mPending.position((int) (size - compressed));
+        mSize = size;
+    }
+
+    @Override
+    public synchronized int get(long offset, byte[] dst, int dstOffset, int length) {
+        int copied = 0;
+        while (copied < length && offset < mSize) {
+            ByteBuffer block = getBlockAt(offset);
+            int n = Math.min(length - copied, block.remaining());
+            block.get(dst, dstOffset + copied, n);
+            copied += n;
+            offset += n;
+        }
+        return copied;
+    }
+
+    @Override
+    public synchronized short getShort(long index) {
+        long offset = index * 2;
+        if (index < 0 || offset + 2 > mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + mSize / 2);
+        }
+        ByteBuffer block = getBlockAt(offset);
+        return block.getShort(block.position());
+    }
+
+    @Override
+    public synchronized void getShorts(long index, short[] dst, int dstOffset, int length) {
+        if (index < 0 || length < 0 || (index + length) * 2 > mSize) {
+            throw new IndexOutOfBoundsException(
+                    "Range " + index + "+" + length + " out of " + mSize / 2);
+        }
+        while (length > 0) {
+            ByteBuffer block = getBlockAt(index * 2);
+            int n = Math.min(length, block.remaining() / 2);
+            block.asShortBuffer().get(dst, dstOffset, n);
+            index += n;
+            dstOffset += n;
+            length -= n;
+        }
+    }
+
+    // Returns a little endian view of the block containing the byte at offset, decompressing it if
+    // needed, positioned at offset and limited to the end of the block or of the stored data.
+    private ByteBuffer getBlockAt(long offset) {
+        int blockIndex = (int) (offset / mBlockSize);
+        ByteBuffer block;
+        if (blockIndex == mBlocks.size()) {
+            block = mPending.duplicate();
+            block.limit((int) (mSize % mBlockSize));
+        } else {
+            block = mCache.get(blockIndex);
+            if (block == null) {
+                short[] samples = new short[BLOCK_FRAMES * mChannels];
+                decompress(mBlocks.get(blockIndex), samples, BLOCK_FRAMES, mChannels);
+                block = ByteBuffer.allocate(mBlockSize).order(ByteOrder.LITTLE_ENDIAN);
+                block.asShortBuffer().put(samples);
+                mCache.put(blockIndex, block);
+            }
+            block = block.duplicate();
+        }
+        block.order(ByteOrder.LITTLE_ENDIAN).position((int) (offset % mBlockSize));
+        return block;
+    }
+
+    // Compresses numFrames interleaved samples of channels channels. For each channel, the block
+    // holds the order of the predictor on 2 bits, the Rice parameter on 5 bits, the first order
+    // samples on 16 bits, and then the Rice codes of the residuals of the other samples.
+    static byte[] compress(short[] samples, int numFrames, int channels) {
+        BitWriter writer = new BitWriter(numFrames * channels * 2);
+        for (int c = 0; c < channels; c++) {
+            // Pick the order whose residuals have the smallest sum.
+            long[] sums = new long[MAX_ORDER + 1];
+            for (int i = MAX_ORDER; i < numFrames; i++) {
+                for (int order = 0; order <= MAX_ORDER; order++) {
+                    sums[order] += Math.abs(residual(samples, i, c, channels, order));
+                }
+            }
+            int order = 0;
+            for (int o = 1; o <= MAX_ORDER; o++) {
+                if (sums[o] < sums[order]) {
+                    order = o;
+                }
+            }
+            order = Math.min(order, numFrames);
+            // 2^k is at most the mean of the zigzag encoded residuals, which is twice the mean of
+            // their absolute values.
+            long count = Math.max(1, numFrames - MAX_ORDER);
+            int k = 0;
+            while (k < RAW_BITS && (count << (k + 1)) <= sums[order] * 2) {
+                k++;
+            }
+            writer.write(order, 2);
+            writer.write(k, 5);
+            for (int i = 0; i < order; i++) {
+                writer.write(samples[i * channels + c] & 0xFFFF, 16);
+            }
+            for (int i = order; i < numFrames; i++) {
+                int r = residual(samples, i, c, channels, order);
+                int u = (r << 1) ^ (r >> 31); // Zigzag: 0, -1, 1, -2... become 0, 1, 2, 3...
+                int q = u >>> k;
+                if (q < ESCAPE_QUOTIENT) {
+                    writer.writeUnary(q);
+                    writer.write(u & ((1 << k) - 1), k);
+                } else {
+                    writer.writeUnary(ESCAPE_QUOTIENT);
+                    writer.write(u, RAW_BITS);
+                }
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    // Decompresses a block compressed by compress() into samples.
+    static void decompress(byte[] block, short[] samples, int numFrames, int channels) {
+        BitReader reader = new BitReader(block);
+        for (int c = 0; c < channels; c++) {
+            int order = reader.read(2);
+            int k = reader.read(5);
+            for (int i = 0; i < order; i++) {
+                samples[i * channels + c] = (short) reader.read(16);
+            }
+            for (int i = order; i < numFrames; i++) {
+                int q = reader.readUnary();
+                int u = q < ESCAPE_QUOTIENT ? (q << k) | reader.read(k) : reader.read(RAW_BITS);
+                int r = (u >>> 1) ^ -(u & 1);
+                samples[i * channels
+                        + c] = (short) (prediction(samples, i, c, channels, order) + r);
+            }
+        }
+    }
+
+    private static int prediction(short[] samples, int i, int c, int channels, int order) {
+        switch (order) {
+            case 0 :
+                return 0;
+            case 1 :
+                return samples[(i - 1) * channels + c];
+            case 2 :
+                return 2 * samples[(i - 1) * channels + c] - samples[(i - 2) * channels + c];
+            default :
+                return 3 * samples[(i - 1) * channels + c] - 3 * samples[(i - 2) * channels + c]
+                        + samples[(i - 3) * channels + c];
+        }
+    }
+
+    private static int residual(short[] samples, int i, int c, int channels, int order) {
+        return samples[i * channels + c] - prediction(samples, i, c, channels, order);
+    }
+
+    // Writes bits in big endian order to a growing array.
+    private static class BitWriter {
+        private byte[] mData;
+        private int mSize = 0; // Number of complete bytes.
+        private long mBits = 0; // Bits not written to mData yet, in the low mNumBits bits.
+        private int mNumBits = 0;
+
+        BitWriter(int capacity) {
+            mData = new byte[Math.max(capacity, 16)];
+        }
+
+        // Writes the numBits low bits of value, numBits being at most 32.
+        void write(int value, int numBits) {
+            if (numBits == 0) {
+                return;
+            }
+            mBits = (mBits << numBits) | (value & (-1L >>> (64 - numBits)));
+            mNumBits += numBits;
+            flush();
+        }
+
+        // Writes value ones followed by a zero.
+        void writeUnary(int value) {
+            while (value >= 32) {
+                write(-1, 32);
+                value -= 32;
+            }
+            write(((1 << value) - 1) << 1, value + 1);
+        }
+
+        private void flush() {
+            while (mNumBits >= 8) {
+                if (mSize == mData.length) {
+                    mData = Arrays.copyOf(mData, mData.length * 2);
+                }
+                mNumBits -= 8;
+                mData[mSize++] = (byte) (mBits >>> mNumBits);
+            }
+        }
+
+        byte[] toByteArray() {
+            if (mNumBits > 0) {
+                write(0, 8 - mNumBits);
+            }
+            return Arrays.copyOf(mData, mSize);
+        }
+    }
+
+    // Reads bits in big endian order. Reading past the end returns zeros.
+    private static class BitReader {
+        private final byte[] mData;
+        private int mPosition = 0; // Next byte to load into mBits.
+        private long mBits = 0; // Bits not read yet, in the low mNumBits bits.
+        private int mNumBits = 0;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        // Reads numBits bits, numBits being at most 32.
+        int read(int numBits) {
+            if (numBits == 0) {
+                return 0;
+            }
+            fill();
+            mNumBits -= numBits;
+            return (int) ((mBits >>> mNumBits) & (-1L >>> (64 - numBits)));
+        }
+
+        // Reads ones up to the next zero, and returns their number.
+        int readUnary() {
+            int value = 0;
+            while (true) {
+                fill();
+                // Look for the first zero among the bits available.
+                long bits = ~mBits & (-1L >>> (64 - mNumBits));
+                if (bits != 0) {
+                    int ones = mNumBits - (64 - Long.numberOfLeadingZeros(bits));
+                    mNumBits -= ones + 1;
+                    return value + ones;
+                }
+                value += mNumBits;
+                mNumBits = 0;
+            }
+        }
+
+        private void fill() {
+            while (mNumBits <= 56) {
+                mBits = (mBits << 8) | (mPosition < mData.length ? mData[mPosition] & 0xFF : 0);
+                mPosition++;
+                mNumBits += 8;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Computes the frame gains of 16 bits little endian interleaved PCM data incrementally, buffer by
+ * buffer, as the data is decoded. The state of the current frame is carried across buffers, so the
+ * buffers do not need to be aligned on frames, samples or even bytes.
+ *
+ * <p>
+ * The gain of a frame is the square root of the highest value, over the samples of the frame, of
+ * the average absolute value of the channels.
+ *
+ * <p>
+ * The gains can be read from another thread while the data is being processed: getNumFrames() must
+ * then be called before getFrameGains().
+ */
+class FrameGainAnalyzer {
+    private final int mChannels;
+    private final int mSamplesPerFrame;
+    private final int mFirstFrame;
+    private volatile int[] mFrameGains;
+    private volatile int mNumFrames = 0;
+    // State of the current frame.
+    private int mSamplesInFrame;
+    private boolean mFrameHasSamples = false;
+    private int mFrameMax = 0;
+    // State of the current sample.
+    private int mChannel = 0;
+    private int mChannelsSum = 0;
+    private int mPendingByte = -1;
+
+    // firstSample is the position (per channel) in the whole stream of the first sample which will
+    // be processed: if it is not the first sample of a frame, the first frame computed is partial.
+    FrameGainAnalyzer(int channels, int samplesPerFrame, long firstSample, int expectedNumFrames) {
+        mChannels = channels;
+        mSamplesPerFrame = samplesPerFrame;
+        mFirstFrame = (int) (firstSample / samplesPerFrame);
+        mSamplesInFrame = (int) (firstSample % samplesPerFrame);
+        mFrameGains = new int[Math.max(expectedNumFrames, 16)];
+    }
+
+    // Same as above, starting with initialGains as the gains of the frames not computed yet, so
+    // that getFrameGains() returns them until they are computed.
+    FrameGainAnalyzer(int channels, int samplesPerFrame, long firstSample, int[] initialGains) {
+        this(channels, samplesPerFrame, firstSample, initialGains.length);
+        System.arraycopy(initialGains, 0, mFrameGains, 0, initialGains.length);
+    }
+
+    // Index, in the whole stream, of the first frame computed.
+    int getFirstFrame() {
+        return mFirstFrame;
+    }
+
+    // Number of frames whose gain has been computed.
+    int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Gains of the frames computed so far, starting with the first frame. The array may be longer
+    // than getNumFrames().
+    int[] getFrameGains() {
+        return mFrameGains;
+    }
+
+    // Processes the bytes between the position and the limit of samples. The position of samples
+    // is left unchanged.
+    void process(ByteBuffer samples) {
+        ByteBuffer buffer = samples.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = buffer.position();
+        int limit = buffer.limit();
+        if (mPendingByte >= 0 && position < limit) {
+            addSample((short) (mPendingByte | (buffer.get(position++) << 8)));
+            mPendingByte = -1;
+        }
+        for (; position + 1 < limit; position += 2) {
+            addSample(buffer.getShort(position));
+        }
+        if (position < limit) {
+            mPendingByte = buffer.get(position) & 0xFF;
+        }
+    }
+
+    // Computes the gain of the last frame, as if it was padded with silence.
+    void finish() {
+        if (mFrameHasSamples) {
+            addFrame();
+        }
+    }
+
+    private void addSample(short value) {
+        mChannelsSum += Math.abs(value);
+        if (++mChannel < mChannels) {
+            return;
+        }
+        int average = mChannelsSum / mChannels;
+        if (mFrameMax < average) {
+            mFrameMax = average;
+        }
+        mChannel = 0;
+        mChannelsSum = 0;
+        mFrameHasSamples = true;
+        if (++mSamplesInFrame == mSamplesPerFrame) {
+            addFrame();
+        }
+    }
+
+    private void addFrame() {
+        int[] frameGains = mFrameGains;
+        if (mNumFrames == frameGains.length) {
+            // Make room for 50% more frames.
+            frameGains = Arrays.copyOf(frameGains, frameGains.length * 3 / 2);
+            mFrameGains = frameGains;
+        }
+        frameGains[mNumFrames] = (int) Math.sqrt(mFrameMax);
+        mNumFrames++;
+        mFrameMax = 0;
+        mSamplesInFrame = 0;
+        mFrameHasSamples = false;
+    }
+}
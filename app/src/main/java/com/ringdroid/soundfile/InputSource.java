@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaExtractor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * The audio file a SoundFile is read from: a file, or a content URI of any document provider.
+ *
+ * <p>
+ * Content URIs are neither resolved to a path nor copied. MediaExtractor reads them from a file
+ * descriptor opened by the ContentResolver, and the data read directly, such as the samples of WAV
+ * files or the frames copied by the cutters, is mapped from a channel on such a descriptor.
+ */
+public class InputSource {
+    private final File mFile;
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String mName;
+    private final long mLength;
+    private final long mLastModified;
+
+    InputSource(File file) {
+        mFile = file;
+        mResolver = null;
+        mUri = null;
+        mName = file.getName();
+        mLength = file.length();
+        mLastModified = file.lastModified();
+    }
+
+    private InputSource(ContentResolver resolver, Uri uri, String name, long length,
+            long lastModified) {
+        mFile = null;
+        mResolver = resolver;
+        mUri = uri;
+        mName = name;
+        mLength = length;
+        mLastModified = lastModified;
+    }
+
+    // Returns the source of a file or content URI. The name of a content URI is its display name,
+    // completed by the extension of its MIME type if it has none. Throws FileNotFoundException if
+    // the URI cannot be opened, and IOException if it is not seekable, e.g. a pipe.
+    public static InputSource fromUri(Context context, Uri uri) throws IOException {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            File file = new File(uri.getPath());
+            if (!file.exists()) {
+                throw new FileNotFoundException(file.getPath());
+            }
+            return new InputSource(file);
+        }
+        ContentResolver resolver = context.getContentResolver();
+        String name = null;
+        long lastModified = 0;
+        try (Cursor cursor = resolver.query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int index = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                if (index >= 0 && !cursor.isNull(index)) {
+                    name = cursor.getString(index);
+                }
+                index = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (index >= 0 && !cursor.isNull(index)) {
+                    lastModified = cursor.getLong(index);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Some providers do not support queries, the descriptor is all that is needed.
+        }
+        long length;
+        try (ParcelFileDescriptor pfd = openFileDescriptor(resolver, uri)) {
+            // The size of pipes and sockets is unknown, and MediaExtractor cannot seek in them.
+            length = pfd.getStatSize();
+        }
+        if (length < 0) {
+            throw new IOException(uri + " is not seekable");
+        }
+        if (name == null) {
+            name = uri.getLastPathSegment() != null ? uri.getLastPathSegment() : "";
+        }
+        if (name.lastIndexOf('.') <= 0) {
+            String extension = MimeTypeMap.getSingleton()
+                    .getExtensionFromMimeType(resolver.getType(uri));
+            if (extension != null) {
+                name += "." + extension;
+            }
+        }
+        return new InputSource(resolver, uri, name, length, lastModified);
+    }
+
+    private static ParcelFileDescriptor openFileDescriptor(ContentResolver resolver, Uri uri)
+            throws FileNotFoundException {
+        ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return pfd;
+    }
+
+    // Name of the file, whose extension tells the type of its content.
+    public String getName() {
+        return mName;
+    }
+
+    long length() {
+        return mLength;
+    }
+
+    // Time of the last modification of the file in milliseconds, or 0 if it is unknown.
+    long lastModified() {
+        return mLastModified;
+    }
+
+    // Returns a channel reading the file, which the caller must close.
+    FileChannel openChannel() throws IOException {
+        if (mFile != null) {
+            return new RandomAccessFile(mFile, "r").getChannel();
+        }
+        // Closing the channel closes the stream, which closes the descriptor.
+        return new ParcelFileDescriptor.AutoCloseInputStream(openFileDescriptor(mResolver, mUri))
+                .getChannel();
+    }
+
+    // Sets the file as the data source of extractor.
+    void setDataSource(MediaExtractor extractor) throws IOException {
+        if (mFile != null) {
+            extractor.setDataSource(mFile.getPath());
+            return;
+        }
+        // The extractor keeps its own copy of the descriptor, which can be closed right away.
+        try (ParcelFileDescriptor pfd = openFileDescriptor(mResolver, mUri)) {
+            extractor.setDataSource(pfd.getFileDescriptor());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mFile != null ? mFile.getPath() : mUri.toString();
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Cuts an MP3 file without re-encoding it: the MPEG audio frames covering a selection are copied as
+ * they are into a new MP3 file, which starts with a Xing (or Info) frame describing them.
+ *
+ * <p>
+ * The frames are found by scanning the headers of the MPEG-1, MPEG-2 and MPEG-2.5 layer III frames
+ * of the file, skipping its ID3 tags. The Xing or VBRI frame of the source is dropped, and the
+ * encoder delay and padding stored in its LAME extension are used to match the frames with the
+ * decoded samples. The selection is extended to whole frames, and preceded by the frames holding
+ * the bit reservoir of its first frame, which decoders would otherwise miss.
+ */
+class MP3Cutter {
+    // Bit rates of the layer III frames, in kbps, for MPEG-1 and for MPEG-2 and 2.5.
+    private static final int[][] BITRATES = new int[][]{
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}};
+    private static final int[] MPEG1_SAMPLE_RATES = new int[]{44100, 48000, 32000};
+    // Sync word, version, layer and sampling frequency, which are the same for all the frames.
+    private static final int FIXED_HEADER_MASK = 0xFFFE0C00;
+    private static final int VERSION_1 = 3;
+    private static final int VERSION_2_5 = 0;
+    private static final int LAYER_III = 1;
+    private static final int MODE_MONO = 3;
+    private static final int XING = 0x58696E67; // "Xing"
+    private static final int INFO = 0x496E666F; // "Info"
+    private static final int VBRI = 0x56425249; // "VBRI"
+    private static final int XING_FLAGS = 0x07; // Frames, bytes and TOC.
+    private static final int XING_SIZE = 120; // Tag, flags, frames, bytes, TOC and quality.
+    private static final int TOC_SIZE = 100;
+    // Delay of the MP3 decoders, in samples.
+    private static final int DECODER_DELAY = 529;
+
+    private final InputSource mSource;
+    private final ByteBuffer mData;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mSamplesPerFrame;
+    // Offsets in the file and sizes of the audio frames.
+    private final long[] mOffsets;
+    private final int[] mSizes;
+    // Position of the first sample decoded by MediaCodec, in the samples of the frames.
+    private long mDecodedStart = 0;
+
+    private MP3Cutter(InputSource source, ByteBuffer data, int header, long[] offsets,
+            int[] sizes) {
+        mSource = source;
+        mData = data;
+        mSampleRate = getSampleRate(header);
+        mChannels = getMode(header) == MODE_MONO ? 1 : 2;
+        mSamplesPerFrame = getSamplesPerFrame(header);
+        mOffsets = offsets;
+        mSizes = sizes;
+    }
+
+    // Scans the frames of source. decodedNumSamples is the number of samples per channel MediaCodec
+    // decoded from the file, used to tell whether the decoder skipped the encoder delay. Returns
+    // null if source is not an MP3 file which can be cut.
+    static MP3Cutter create(InputSource source, long decodedNumSamples) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = source.openChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int size = data.limit();
+        int position = getId3v2Size(data);
+        int fixedHeader = 0;
+        long[] offsets = new long[1024];
+        int[] sizes = new int[1024];
+        int numFrames = 0;
+        int delay = 0;
+        int padding = 0;
+        while (position + 4 <= size) {
+            int header = data.getInt(position);
+            int frameSize = getFrameSize(header);
+            boolean isFrame;
+            if (fixedHeader == 0) {
+                // Make sure that the first frame is not a false sync, by checking the next one.
+                isFrame = frameSize > 0
+                        && (position + frameSize == size || (position + frameSize + 4 <= size
+                                && isSameStream(header, data.getInt(position + frameSize))));
+            } else {
+                isFrame = frameSize > 0 && position + frameSize <= size
+                        && isSameStream(fixedHeader, header);
+            }
+            if (!isFrame) {
+                if (position + 3 <= size && data.get(position) == 'T'
+                        && data.get(position + 1) == 'A' && data.get(position + 2) == 'G') {
+                    break; // ID3v1 tag, at the end of the file.
+                }
+                position++; // Look for the next frame.
+                continue;
+            }
+            if (fixedHeader == 0) {
+                fixedHeader = header;
+                int tagOffset = position + 4 + getSideInfoSize(header);
+                int tag = tagOffset + 4 <= size ? data.getInt(tagOffset) : 0;
+                if (position + 4 + 32 + 4 <= size && data.getInt(position + 4 + 32) == VBRI) {
+                    position += frameSize;
+                    continue;
+                }
+                if (tag == XING || tag == INFO) {
+                    // The LAME extension follows all the Xing fields, and holds the delay and
+                    // padding on 12 bits each.
+                    int delayOffset = tagOffset + XING_SIZE + 21;
+                    if ((data.getInt(tagOffset + 4) & 0x0F) == 0x0F
+                            && delayOffset + 3 <= position + frameSize) {
+                        int value = ((data.get(delayOffset) & 0xFF) << 16)
+                                | ((data.get(delayOffset + 1) & 0xFF) << 8)
+                                | (data.get(delayOffset + 2) & 0xFF);
+                        delay = value >> 12;
+                        padding = value & 0xFFF;
+                    }
+                    position += frameSize;
+                    continue;
+                }
+            }
+            if (numFrames == offsets.length) {
+                offsets = Arrays.copyOf(offsets, numFrames * 2);
+                sizes = Arrays.copyOf(sizes, numFrames * 2);
+            }
+            offsets[numFrames] = position;
+            sizes[numFrames] = frameSize;
+            numFrames++;
+            position += frameSize;
+        }
+        if (numFrames == 0) {
+            return null;
+        }
+        MP3Cutter cutter = new MP3Cutter(source, data, fixedHeader,
+                Arrays.copyOf(offsets, numFrames), Arrays.copyOf(sizes, numFrames));
+        // Depending on the decoder, the decoder delay or the encoder delay and padding may be
+        // trimmed from the decoded samples: pick the start which matches their number best.
+        long numSamples = (long) numFrames * cutter.mSamplesPerFrame;
+        long[][] candidates = new long[][]{{0, numSamples},
+                {DECODER_DELAY, numSamples - DECODER_DELAY}, {delay, numSamples - delay - padding}};
+        long bestDistance = Long.MAX_VALUE;
+        for (long[] candidate : candidates) {
+            long distance = Math.abs(decodedNumSamples - candidate[1]);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                cutter.mDecodedStart = candidate[0];
+            }
+        }
+        return cutter;
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    int getChannels() {
+        return mChannels;
+    }
+
+    // Number of audio frames of the file, without its Xing frame.
+    int getNumFrames() {
+        return mSizes.length;
+    }
+
+    int getSamplesPerFrame() {
+        return mSamplesPerFrame;
+    }
+
+    // Writes to outputStream an MP3 file holding the frames which cover numSamples samples per
+    // channel, starting at startSample, counted from the first sample decoded by MediaCodec.
+    // outputStream is not closed.
+    void write(OutputStream outputStream, long startSample, long numSamples) throws IOException {
+        long start = mDecodedStart + startSample;
+        long end = start + numSamples;
+        int firstFrame = (int) Math.max(0, Math.floorDiv(start, mSamplesPerFrame));
+        int lastFrame = (int) Math.min(mSizes.length, Math.max(firstFrame + 1,
+                Math.floorDiv(end + mSamplesPerFrame - 1, mSamplesPerFrame)));
+        if (firstFrame >= mSizes.length) {
+            throw new IOException("Start sample " + startSample + " past the end of " + mSource);
+        }
+        // Go back to the frames holding the part of the bit reservoir used by the first frame.
+        int reservoir = getMainDataBegin(firstFrame);
+        while (reservoir > 0 && firstFrame > 0) {
+            firstFrame--;
+            reservoir -= getMainDataSize(firstFrame);
+        }
+
+        long headerStartNs = Metrics.begin(Metrics.Stage.ENCODE_HEADER);
+        byte[] header = getXingFrame(firstFrame, lastFrame);
+        Metrics.end(Metrics.Stage.ENCODE_HEADER, headerStartNs);
+
+        long writeStartNs = Metrics.begin(Metrics.Stage.ENCODE_WRITE);
+        outputStream.write(header);
+        WritableByteChannel out = Channels.newChannel(outputStream);
+        long totalSize = 0;
+        // Copy the runs of frames which follow each other in the file at once.
+        int i = firstFrame;
+        while (i < lastFrame) {
+            int offset = (int) mOffsets[i];
+            int length = 0;
+            do {
+                length += mSizes[i++];
+            } while (i < lastFrame && mOffsets[i] == offset + length);
+            ByteBuffer run = mData.duplicate();
+            run.limit(offset + length).position(offset);
+            while (run.hasRemaining()) {
+                out.write(run);
+            }
+            totalSize += length;
+        }
+        Metrics.end(Metrics.Stage.ENCODE_WRITE, writeStartNs, header.length + totalSize,
+                (long) (lastFrame - firstFrame) * mSamplesPerFrame * 1000000 / mSampleRate);
+    }
+
+    // Returns a Xing frame describing the frames from firstFrame to lastFrame (excluded), with the
+    // format of the first frame. The frame is tagged "Info" if all the frames have the same bit
+    // rate.
+    private byte[] getXingFrame(int firstFrame, int lastFrame) {
+        int numFrames = lastFrame - firstFrame;
+        int header = mData.getInt((int) mOffsets[firstFrame]);
+        boolean constantBitrate = true;
+        long totalSize = 0;
+        for (int i = firstFrame; i < lastFrame; i++) {
+            constantBitrate &= getBitrateIndex(mData.getInt((int) mOffsets[i])) == getBitrateIndex(
+                    header);
+            totalSize += mSizes[i];
+        }
+        // Use the lowest bit rate for which the frame holds the tag, without CRC nor padding.
+        int tagOffset = 4 + getSideInfoSize(header);
+        int frameSize = 0;
+        for (int index = 1; index < 15 && frameSize < tagOffset + XING_SIZE; index++) {
+            header = (header & ~0x0001F200) | 0x00010000 | (index << 12);
+            frameSize = getFrameSize(header);
+        }
+        totalSize += frameSize;
+
+        ByteBuffer frame = ByteBuffer.allocate(frameSize);
+        frame.putInt(0, header);
+        frame.putInt(tagOffset, constantBitrate ? INFO : XING);
+        frame.putInt(tagOffset + 4, XING_FLAGS);
+        frame.putInt(tagOffset + 8, numFrames);
+        frame.putInt(tagOffset + 12, (int) Math.min(totalSize, 0xFFFFFFFFL));
+        // Entry i of the table of contents is the position in the file at i% of the duration,
+        // in 1/256 of the size of the file.
+        long offset = frameSize;
+        int frameIndex = 0;
+        for (int i = 0; i < TOC_SIZE; i++) {
+            int target = (int) ((long) i * numFrames / TOC_SIZE);
+            while (frameIndex < target) {
+                offset += mSizes[firstFrame + frameIndex++];
+            }
+            frame.put(tagOffset + 16 + i, (byte) Math.min(255, offset * 256 / totalSize));
+        }
+        return frame.array();
+    }
+
+    // Returns the number of bytes of the frames preceding frame which hold the start of its main
+    // data.
+    private int getMainDataBegin(int frame) {
+        int offset = (int) mOffsets[frame];
+        int header = mData.getInt(offset);
+        offset += (header & 0x00010000) == 0 ? 6 : 4; // CRC.
+        int bits = ((mData.get(offset) & 0xFF) << 8) | (mData.get(offset + 1) & 0xFF);
+        return getVersion(header) == VERSION_1 ? bits >> 7 : bits >> 8;
+    }
+
+    // Returns the number of bytes of frame available for main data.
+    private int getMainDataSize(int frame) {
+        int header = mData.getInt((int) mOffsets[frame]);
+        return mSizes[frame] - 4 - ((header & 0x00010000) == 0 ? 2 : 0) - getSideInfoSize(header);
+    }
+
+    // Returns the size of the ID3v2 tag at the start of data, or 0 if there is none.
+    private static int getId3v2Size(ByteBuffer data) {
+        if (data.limit() < 10 || data.get(0) != 'I' || data.get(1) != 'D' || data.get(2) != '3') {
+            return 0;
+        }
+        // The size is stored on 4 bytes of 7 bits, and a footer may follow the tag.
+        int size = 0;
+        for (int i = 6; i < 10; i++) {
+            size = (size << 7) | (data.get(i) & 0x7F);
+        }
+        return Math.min(data.limit(), 10 + size + ((data.get(5) & 0x10) != 0 ? 10 : 0));
+    }
+
+    // Returns the size in bytes of the layer III frame starting with header, or -1 if header is
+    // not a valid layer III frame header. Free format frames are not supported.
+    static int getFrameSize(int header) {
+        if ((header & 0xFFE00000) != 0xFFE00000 || getVersion(header) == 1
+                || ((header >> 17) & 0x03) != LAYER_III || getBitrateIndex(header) == 0
+                || getBitrateIndex(header) == 15 || ((header >> 10) & 0x03) == 3) {
+            return -1;
+        }
+        int bitrate = BITRATES[getVersion(header) == VERSION_1 ? 0 : 1][getBitrateIndex(header)];
+        int padding = (header >> 9) & 0x01;
+        return getSamplesPerFrame(header) / 8 * bitrate * 1000 / getSampleRate(header) + padding;
+    }
+
+    private static boolean isSameStream(int header, int otherHeader) {
+        return getFrameSize(otherHeader) > 0
+                && (header & FIXED_HEADER_MASK) == (otherHeader & FIXED_HEADER_MASK)
+                && (getMode(header) == MODE_MONO) == (getMode(otherHeader) == MODE_MONO);
+    }
+
+    private static int getVersion(int header) {
+        return (header >> 19) & 0x03;
+    }
+
+    private static int getBitrateIndex(int header) {
+        return (header >> 12) & 0x0F;
+    }
+
+    private static int getMode(int header) {
+        return (header >> 6) & 0x03;
+    }
+
+    private static int getSampleRate(int header) {
+        int sampleRate = MPEG1_SAMPLE_RATES[(header >> 10) & 0x03];
+        switch (getVersion(header)) {
+            case VERSION_1 :
+                return sampleRate;
+            case VERSION_2_5 :
+                return sampleRate / 4;
+            default :
+                return sampleRate / 2;
+        }
+    }
+
+    private static int getSamplesPerFrame(int header) {
+        return getVersion(header) == VERSION_1 ? 1152 : 576;
+    }
+
+    private static int getSideInfoSize(int header) {
+        boolean mono = getMode(header) == MODE_MONO;
+        if (getVersion(header) == VERSION_1) {
+            return mono ? 17 : 32;
+        }
+        return mono ? 9 : 17;
+    }
+}
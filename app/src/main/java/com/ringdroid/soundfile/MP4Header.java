@@ -54,15 +54,17 @@ public class MP4Header {
         mTime[1] = (byte) ((time >> 16) & 0xFF);
         mTime[2] = (byte) ((time >> 8) & 0xFF);
         mTime[3] = (byte) (time & 0xFF);
-        int numSamples = 1024 * (frame_size.length - 1); // 1st frame does not contain samples.
-        int durationMS = (numSamples * 1000) / mSampleRate;
+        // 1st frame does not contain samples. Long arithmetic, as numSamples * 1000 overflows an
+        // int for streams longer than 48 seconds.
+        long numSamples = 1024L * (frame_size.length - 1);
+        long durationMS = (numSamples * 1000) / mSampleRate;
         if ((numSamples * 1000) % mSampleRate > 0) { // round the duration up.
             durationMS++;
         }
-        mNumSamples = new byte[]{(byte) ((numSamples >> 26) & 0XFF),
+        mNumSamples = new byte[]{(byte) ((numSamples >> 24) & 0XFF),
                 (byte) ((numSamples >> 16) & 0XFF), (byte) ((numSamples >> 8) & 0XFF),
                 (byte) (numSamples & 0XFF)};
-        mDurationMS = new byte[]{(byte) ((durationMS >> 26) & 0XFF),
+        mDurationMS = new byte[]{(byte) ((durationMS >> 24) & 0XFF),
                 (byte) ((durationMS >> 16) & 0XFF), (byte) ((durationMS >> 8) & 0XFF),
                 (byte) (durationMS & 0XFF)};
         setHeader();
@@ -73,6 +75,20 @@ public class MP4Header {
         return new MP4Header(sampleRate, numChannels, frame_size, bitrate).mHeader;
     }
 
+    // Returns the size of the header getMP4Header() returns for a stream of numFrames frames,
+    // including the first one of 2 bytes, or -1 if it cannot build one. The size only depends on
+    // the number of frames, so that space can be reserved for the header before the stream is
+    // encoded, and the header written into it once the sizes of the frames are known.
+    static int getMP4HeaderSize(int sampleRate, int numChannels, int numFrames) {
+        if (numFrames < 2) {
+            return -1;
+        }
+        int[] frame_size = new int[numFrames];
+        frame_size[0] = 2;
+        byte[] header = new MP4Header(sampleRate, numChannels, frame_size, 0).mHeader;
+        return header != null ? header.length : -1;
+    }
+
     private void setHeader() {
         // create the atoms needed to build the header.
         Atom a_ftyp = getFTYPAtom();
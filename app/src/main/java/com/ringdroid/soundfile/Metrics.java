@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and throughputs of the stages of decoding, encoding and rendering audio, for profiling.
+ *
+ * <p>
+ * Each stage is timed between begin() and end(), which also delimit an android.os.Trace section
+ * named after the stage, so that the stages show up in system traces. The time of each stage is
+ * accumulated along with the number of bytes and the duration of audio it processed, from which its
+ * throughput in MB/s and in multiples of real time are computed. Named counters and histograms can
+ * also be recorded. dump() writes everything, to logcat or to a file.
+ *
+ * <p>
+ * Metrics are disabled by default, in which case begin() returns -1 without reading the clock, and
+ * end(), count() and record() return right away.
+ */
+public final class Metrics {
+    private static final String TAG = "Metrics";
+
+    /** The stages which are timed. */
+    public enum Stage {
+        // Whole decoding of a file, from opening it to its last frame gain.
+        DECODE("decode"),
+        // Reads of compressed samples by the MediaExtractor.
+        DECODE_EXTRACT("decode.extract"),
+        // Exchanges of buffers with the decoder.
+        DECODE_CODEC("decode.codec"),
+        // Copies of the decoded samples into the PCM store.
+        DECODE_STORE("decode.store"),
+        // Computation of the frame gains and of the peak pyramid.
+        DECODE_ANALYZE("decode.analyze"),
+        // Whole encoding of a file, from its first sample to its last byte written.
+        ENCODE("encode"),
+        // Exchanges of buffers with the encoder.
+        ENCODE_CODEC("encode.codec"),
+        // Building of the file header.
+        ENCODE_HEADER("encode.header"),
+        // Writes of the output file.
+        ENCODE_WRITE("encode.write"),
+        // Drawing of the waveform.
+        RENDER("render");
+
+        private final String mName;
+        private final String mSectionName;
+
+        Stage(String name) {
+            mName = name;
+            mSectionName = "ringdroid:" + name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private static volatile boolean sEnabled = false;
+    private static final Timer[] sTimers = new Timer[Stage.values().length];
+    private static final Map<String, AtomicLong> sCounters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> sHistograms = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < sTimers.length; i++) {
+            sTimers[i] = new Timer();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    // Starts timing stage on the current thread. Returns the start time to pass to end(), or -1 if
+    // metrics are disabled.
+    public static long begin(Stage stage) {
+        if (!sEnabled) {
+            return -1;
+        }
+        Trace.beginSection(stage.mSectionName);
+        return System.nanoTime();
+    }
+
+    // Stops timing stage, started at startNs by begin() on the current thread.
+    public static void end(Stage stage, long startNs) {
+        end(stage, startNs, 0, 0);
+    }
+
+    // Stops timing stage, started at startNs by begin() on the current thread, which processed
+    // bytes bytes holding audioUs microseconds of audio.
+    public static void end(Stage stage, long startNs, long bytes, long audioUs) {
+        if (startNs < 0) {
+            return;
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        Trace.endSection();
+        record(stage, elapsedNs, bytes, audioUs);
+    }
+
+    // Adds delta to the counter called name.
+    public static void count(String name, long delta) {
+        if (!sEnabled) {
+            return;
+        }
+        AtomicLong counter = sCounters.get(name);
+        if (counter == null) {
+            counter = sCounters.computeIfAbsent(name, key -> new AtomicLong());
+        }
+        counter.addAndGet(delta);
+    }
+
+    // Adds value to the histogram called name.
+    public static void record(String name, long value) {
+        if (!sEnabled) {
+            return;
+        }
+        Histogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            histogram = sHistograms.computeIfAbsent(name, key -> new Histogram());
+        }
+        histogram.add(value);
+    }
+
+    // Adds a run of stage which took elapsedNs nanoseconds, without tracing it.
+    static void record(Stage stage, long elapsedNs, long bytes, long audioUs) {
+        sTimers[stage.ordinal()].add(elapsedNs, bytes, audioUs);
+    }
+
+    // Clears all the metrics recorded so far.
+    public static void reset() {
+        for (Timer timer : sTimers) {
+            timer.reset();
+        }
+        sCounters.clear();
+        sHistograms.clear();
+    }
+
+    // Writes all the metrics recorded so far to writer, one per line.
+    public static void dump(PrintWriter writer) {
+        for (Stage stage : Stage.values()) {
+            sTimers[stage.ordinal()].dump(writer, stage.mName);
+        }
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(sCounters).entrySet()) {
+            writer.println(entry.getKey() + ": " + entry.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(sHistograms).entrySet()) {
+            writer.println(entry.getKey() + ": " + entry.getValue().describe(""));
+        }
+        writer.flush();
+    }
+
+    // Writes all the metrics recorded so far to logcat.
+    public static void dumpToLog() {
+        StringWriter out = new StringWriter();
+        dump(new PrintWriter(out));
+        for (String line : out.toString().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+
+    // Writes all the metrics recorded so far to file, replacing its content.
+    public static void dump(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            dump(writer);
+            if (writer.checkError()) {
+                throw new IOException("Failed to write " + file);
+            }
+        }
+    }
+
+    // Returns the value of the counter called name, 0 if it was never incremented.
+    static long getCount(String name) {
+        AtomicLong counter = sCounters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    // Returns the total time spent in stage, in nanoseconds.
+    static long getTotalNs(Stage stage) {
+        return sTimers[stage.ordinal()].getTotalNs();
+    }
+
+    // Counts of values in power of two ranges: bucket b holds the values in [2^b - 1, 2^(b+1) - 1).
+    static class Histogram {
+        private final long[] mBuckets = new long[64];
+        private long mCount = 0;
+        private long mSum = 0;
+        private long mMin = Long.MAX_VALUE;
+        private long mMax = Long.MIN_VALUE;
+
+        synchronized void add(long value) {
+            value = Math.max(value, 0);
+            mBuckets[63 - Long.numberOfLeadingZeros(value + 1)]++;
+            mCount++;
+            mSum += value;
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+
+        synchronized long getCount() {
+            return mCount;
+        }
+
+        synchronized long getSum() {
+            return mSum;
+        }
+
+        // Returns an upper bound of the value below which a fraction p of the values fall, which is
+        // at most twice that value.
+        synchronized long getPercentile(double p) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * mCount);
+            long seen = 0;
+            for (int b = 0; b < mBuckets.length; b++) {
+                seen += mBuckets[b];
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.max(Math.min((2L << b) - 2, mMax), mMin);
+                }
+            }
+            return mMax;
+        }
+
+        synchronized void reset() {
+            Arrays.fill(mBuckets, 0);
+            mCount = 0;
+            mSum = 0;
+            mMin = Long.MAX_VALUE;
+            mMax = Long.MIN_VALUE;
+        }
+
+        // Describes the values, each followed by unit.
+        synchronized String describe(String unit) {
+            if (mCount == 0) {
+                return "no value";
+            }
+            return String.format(Locale.US,
+                    "%d values, mean %d%s, p50 %d%s, p90 %d%s, p99 %d%s," + " min %d%s, max %d%s",
+                    mCount, mSum / mCount, unit, getPercentile(0.5), unit, getPercentile(0.9), unit,
+                    getPercentile(0.99), unit, mMin, unit, mMax, unit);
+        }
+    }
+
+    // Durations of the runs of a stage, with the bytes and the duration of audio they processed.
+    private static class Timer {
+        private final Histogram mDurationsUs = new Histogram();
+        private long mTotalNs = 0;
+        private long mBytes = 0;
+        private long mAudioUs = 0;
+
+        synchronized void add(long elapsedNs, long bytes, long audioUs) {
+            mDurationsUs.add(elapsedNs / 1000);
+            mTotalNs += elapsedNs;
+            mBytes += bytes;
+            mAudioUs += audioUs;
+        }
+
+        synchronized long getTotalNs() {
+            return mTotalNs;
+        }
+
+        synchronized void reset() {
+            mDurationsUs.reset();
+            mTotalNs = 0;
+            mBytes = 0;
+            mAudioUs = 0;
+        }
+
+        synchronized void dump(PrintWriter writer, String name) {
+            if (mDurationsUs.getCount() == 0) {
+                return;
+            }
+            StringBuilder line = new StringBuilder(name).append(": ")
+                    .append(String.format(Locale.US, "%.1f ms, ", mTotalNs / 1e6))
+                    .append(mDurationsUs.describe(" us"));
+            double seconds = Math.max(mTotalNs, 1) / 1e9;
+            if (mBytes > 0) {
+                line.append(String.format(Locale.US, ", %.1f MB/s", mBytes / 1e6 / seconds));
+            }
+            if (mAudioUs > 0) {
+                line.append(String.format(Locale.US, ", %.1fx realtime", mAudioUs / 1e6 / seconds));
+            }
+            writer.println(line);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes an audio track with several extractor/codec pairs running in parallel.
+ *
+ * <p>
+ * The track is split at sync samples into time ranges, each one decoded by its own worker into its
+ * own region of the output PCM store. A worker starts decoding a bit before its range (and stops a
+ * bit after it) so that the decoder state is fully primed, and drops the samples outside of its
+ * range. The position of the decoded samples in the output store is derived from the presentation
+ * time of the first buffer output by the worker's codec, and then advances by the number of samples
+ * decoded, so that the ranges are stitched together sample-accurately.
+ *
+ * <p>
+ * Each worker also computes the frame gains of its range while decoding it. The ranges are not
+ * aligned on frames, so the frames straddling two ranges are computed partially by both workers,
+ * and their gains are merged.
+ */
+class ParallelDecoder {
+    private static final String TAG = "ParallelDecoder";
+    // Minimum duration of a range. Shorter files are not worth the cost of the extra codecs.
+    private static final long MIN_RANGE_DURATION_US = 30 * 1000000L;
+    private static final int MAX_RANGES = 8;
+    // Audio decoded before the start of a range (and after its end) and dropped.
+    private static final long PRE_ROLL_US = 500000;
+
+    private final InputSource mSource;
+    private final int mTrackIndex;
+    private final MediaFormat mFormat;
+    private final PcmStore mOutput;
+    private final int mNumRanges;
+    private final int mSamplesPerFrame;
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final List<Worker> mWorkers = new ArrayList<>();
+    private volatile boolean mCanceled = false;
+    private long mFirstSampleTimeUs;
+    // Frame gains merged from the workers' ones.
+    private int[] mFrameGains = new int[0];
+    private int mNumFrames = 0;
+
+    // Decodes the given track of source in numRanges ranges. The decoded samples (16 bits
+    // little endian, interleaved) are written to output, whose size is left unchanged.
+    ParallelDecoder(InputSource source, int trackIndex, MediaFormat format, PcmStore output,
+            int numRanges, int samplesPerFrame) {
+        mSource = source;
+        mTrackIndex = trackIndex;
+        mFormat = format;
+        mOutput = output;
+        mNumRanges = numRanges;
+        mSamplesPerFrame = samplesPerFrame;
+    }
+
+    // Returns the number of ranges a track of the given duration should be split into, depending
+    // on the number of available cores. 1 means the track should not be decoded in parallel.
+    static int getNumRanges(long durationUs) {
+        long numRanges = Math.min(Runtime.getRuntime().availableProcessors(), MAX_RANGES);
+        return (int) Math.max(1, Math.min(numRanges, durationUs / MIN_RANGE_DURATION_US));
+    }
+
+    // Decodes the whole track. listener, if not null, is called periodically from the calling
+    // thread, and can cancel the decoding. Returns the number of samples per channel written to the
+    // output store, or -1 if the decoding has been canceled. Throws an IOException if the file
+    // could not be decoded in parallel, in which case the output store content is undefined.
+    long decode(Listener listener) throws IOException {
+        List<Long> startTimes = findRangeStartTimes();
+        for (int i = 0; i < startTimes.size(); i++) {
+            long endUs = i + 1 < startTimes.size() ? startTimes.get(i + 1) : Long.MAX_VALUE;
+            mWorkers.add(new Worker(startTimes.get(i), endUs));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(mWorkers.size());
+        boolean canceled = false;
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Worker worker : mWorkers) {
+                futures.add(executor.submit(worker));
+            }
+            for (Future<Void> future : futures) {
+                while (!future.isDone()) {
+                    mergeFrameGains();
+                    if (!canceled && listener != null && listener.onProgress(getProgress())) {
+                        canceled = true;
+                        mCanceled = true;
+                    }
+                    try {
+                        future.get(100, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException ignored) {
+                    }
+                }
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException
+                    ? (IOException) cause
+                    : new IOException("Parallel decoding failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Parallel decoding interrupted");
+        } finally {
+            // Make sure no worker writes to the output store anymore when returning.
+            mCanceled = true;
+            executor.shutdown();
+            try {
+                // Workers check mCanceled at least every 200ms.
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    Log.w(TAG, "Waiting for the decoding workers to stop");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (canceled) {
+            return -1;
+        }
+        Worker first = mWorkers.get(0);
+        for (Worker worker : mWorkers) {
+            if (worker.mSampleRate != first.mSampleRate || worker.mChannels != first.mChannels) {
+                throw new IOException("Decoded ranges have different output formats");
+            }
+        }
+        mergeFrameGains();
+        if (mFrameGains.length != mNumFrames) {
+            mFrameGains = Arrays.copyOf(mFrameGains, mNumFrames);
+        }
+        return mWorkers.get(mWorkers.size() - 1).mPosition;
+    }
+
+    // Sample rate of the decoded samples, or 0 if not known yet.
+    int getSampleRate() {
+        return mWorkers.isEmpty() ? 0 : mWorkers.get(0).mSampleRate;
+    }
+
+    // Number of channels of the decoded samples, or 0 if not known yet.
+    int getChannels() {
+        return mWorkers.isEmpty() ? 0 : mWorkers.get(0).mChannels;
+    }
+
+    // Number of frames decoded without gap from the beginning of the track.
+    int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Gains of the frames decoded without gap from the beginning of the track. The array may be
+    // longer than getNumFrames().
+    int[] getFrameGains() {
+        return mFrameGains;
+    }
+
+    // Merges the frame gains computed so far by the workers into mFrameGains, up to the first
+    // frame which has not been computed yet. The gain of a frame straddling two ranges is the
+    // highest of the gains of its two parts.
+    private void mergeFrameGains() {
+        int numFrames = 0;
+        for (Worker worker : mWorkers) {
+            FrameGainAnalyzer analyzer = worker.mFrameGainAnalyzer;
+            if (analyzer == null) {
+                break;
+            }
+            int count = analyzer.getNumFrames();
+            int[] gains = analyzer.getFrameGains();
+            int first = analyzer.getFirstFrame();
+            if (first > numFrames) {
+                break;
+            }
+            if (mFrameGains.length < first + count) {
+                mFrameGains = Arrays.copyOf(mFrameGains,
+                        Math.max(first + count, mFrameGains.length * 3 / 2));
+            }
+            for (int i = 0; i < count; i++) {
+                if (first + i < numFrames) {
+                    mFrameGains[first + i] = Math.max(mFrameGains[first + i], gains[i]);
+                } else {
+                    mFrameGains[first + i] = gains[i];
+                }
+            }
+            numFrames = Math.max(numFrames, first + count);
+            if (!worker.mDone) {
+                break;
+            }
+        }
+        mNumFrames = numFrames;
+    }
+
+    private float getProgress() {
+        return Math.min(1.0f, (float) mBytesRead.get() / mSource.length());
+    }
+
+    // Returns the start time of each range. All start times are the times of sync samples, so
+    // that the extractors can seek to them exactly.
+    private List<Long> findRangeStartTimes() throws IOException {
+        List<Long> startTimes = new ArrayList<>();
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            mSource.setDataSource(extractor);
+            extractor.selectTrack(mTrackIndex);
+            mFirstSampleTimeUs = Math.max(extractor.getSampleTime(), 0);
+            startTimes.add(0L);
+            long durationUs = mFormat.getLong(MediaFormat.KEY_DURATION);
+            for (int i = 1; i < mNumRanges; i++) {
+                extractor.seekTo(durationUs * i / mNumRanges, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                long startUs = extractor.getSampleTime();
+                if (startUs > startTimes.get(startTimes.size() - 1) + PRE_ROLL_US) {
+                    startTimes.add(startUs);
+                }
+            }
+        } finally {
+            extractor.release();
+        }
+        return startTimes;
+    }
+
+    interface Listener {
+        // Returns true to cancel the decoding.
+        boolean onProgress(float fractionComplete);
+    }
+
+    // Decodes the samples in [mStartUs, mEndUs) into the output store.
+    private class Worker implements Callable<Void> {
+        private final long mStartUs;
+        private final long mEndUs;
+        private volatile int mSampleRate = 0;
+        private volatile int mChannels = 0;
+        // End position of the samples written so far, -1 until the first buffer is decoded.
+        private volatile long mPosition = -1;
+        private volatile boolean mDone = false;
+        private volatile FrameGainAnalyzer mFrameGainAnalyzer = null;
+
+        Worker(long startUs, long endUs) {
+            mStartUs = startUs;
+            mEndUs = endUs;
+        }
+
+        private long usToSamples(long timeUs) {
+            return ((timeUs - mFirstSampleTimeUs) * mSampleRate + 500000) / 1000000;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            String mime = Objects.requireNonNull(mFormat.getString(MediaFormat.KEY_MIME));
+            MediaExtractor extractor = new MediaExtractor();
+            MediaCodec codec = null;
+            try {
+                mSource.setDataSource(extractor);
+                extractor.selectTrack(mTrackIndex);
+                if (mStartUs > 0) {
+                    extractor.seekTo(Math.max(mStartUs - PRE_ROLL_US, 0),
+                            MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                }
+                codec = CodecPool.acquireDecoder(mFormat);
+                codec.start();
+
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                boolean doneReading = false;
+                boolean firstSampleData = true;
+                long position = -1; // Position of the next decoded sample.
+                long startSample = 0;
+                long endSample = Long.MAX_VALUE;
+                int frameSize = 0; // Size of one sample for all channels, in bytes.
+                while (!mCanceled) {
+                    int inputBufferIndex = codec.dequeueInputBuffer(100);
+                    if (!doneReading && inputBufferIndex >= 0) {
+                        ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
+                        if (inputBuffer != null) {
+                            inputBuffer.clear();
+                            long extractStartNs = Metrics.begin(Metrics.Stage.DECODE_EXTRACT);
+                            int sampleSize = extractor.readSampleData(inputBuffer, 0);
+                            Metrics.end(Metrics.Stage.DECODE_EXTRACT, extractStartNs,
+                                    Math.max(sampleSize, 0), 0);
+                            if (firstSampleData && mStartUs == 0 && mime.equals("audio/mp4a-latm")
+                                    && sampleSize == 2) {
+                                // Skip the AAC codec config, see SoundFile.ReadFile().
+                                extractor.advance();
+                                mBytesRead.addAndGet(sampleSize);
+                                inputBuffer.clear();
+                                sampleSize = extractor.readSampleData(inputBuffer, 0);
+                            }
+                            firstSampleData = false;
+                            long sampleTime = extractor.getSampleTime();
+                            if (sampleSize < 0 || (mEndUs != Long.MAX_VALUE
+                                    && sampleTime >= mEndUs + PRE_ROLL_US)) {
+                                codec.queueInputBuffer(inputBufferIndex, 0, 0, -1,
+                                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                                doneReading = true;
+                            } else {
+                                codec.queueInputBuffer(inputBufferIndex, 0, sampleSize, sampleTime,
+                                        0);
+                                extractor.advance();
+                                if (sampleTime >= mStartUs && sampleTime < mEndUs) {
+                                    mBytesRead.addAndGet(sampleSize);
+                                }
+                            }
+                        }
+                    }
+
+                    long codecStartNs = Metrics.begin(Metrics.Stage.DECODE_CODEC);
+                    int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
+                    Metrics.end(Metrics.Stage.DECODE_CODEC, codecStartNs);
+                    if (outputBufferIndex < 0) {
+                        continue;
+                    }
+                    if (info.size > 0) {
+                        if (position < 0) {
+                            // First decoded buffer: anchor the range on its presentation time.
+                            MediaFormat outputFormat = codec.getOutputFormat();
+                            mSampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                            mChannels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                            frameSize = 2 * mChannels;
+                            position = mStartUs == 0 ? 0 : usToSamples(info.presentationTimeUs);
+                            startSample = mStartUs == 0 ? 0 : usToSamples(mStartUs);
+                            if (mEndUs != Long.MAX_VALUE) {
+                                endSample = usToSamples(mEndUs);
+                            }
+                            mFrameGainAnalyzer = new FrameGainAnalyzer(mChannels, mSamplesPerFrame,
+                                    startSample,
+                                    (int) (usToSamples(mEndUs == Long.MAX_VALUE
+                                            ? mFormat.getLong(MediaFormat.KEY_DURATION)
+                                            : mEndUs) - startSample) / mSamplesPerFrame + 2);
+                        }
+                        long numSamples = info.size / frameSize;
+                        long from = Math.max(position, startSample);
+                        long to = Math.min(position + numSamples, endSample);
+                        if (from < to) {
+                            if (mPosition < 0 && from != startSample) {
+                                throw new IOException(
+                                        "Range starting at " + mStartUs + "us starts at sample "
+                                                + from + " instead of " + startSample);
+                            }
+                            ByteBuffer outputBuffer = codec.getOutputBuffer(outputBufferIndex);
+                            if (outputBuffer != null) {
+                                outputBuffer.limit(info.offset + (int) (to - position) * frameSize);
+                                outputBuffer.position(
+                                        info.offset + (int) (from - position) * frameSize);
+                                int numBytes = outputBuffer.remaining();
+                                long audioUs = (to - from) * 1000000 / mSampleRate;
+                                long analyzeStartNs = Metrics.begin(Metrics.Stage.DECODE_ANALYZE);
+                                mFrameGainAnalyzer.process(outputBuffer);
+                                Metrics.end(Metrics.Stage.DECODE_ANALYZE, analyzeStartNs, numBytes,
+                                        audioUs);
+                                long storeStartNs = Metrics.begin(Metrics.Stage.DECODE_STORE);
+                                mOutput.write(outputBuffer, from * frameSize);
+                                Metrics.end(Metrics.Stage.DECODE_STORE, storeStartNs, numBytes,
+                                        audioUs);
+                            }
+                            mPosition = to;
+                        }
+                        position += numSamples;
+                    }
+                    codec.releaseOutputBuffer(outputBufferIndex, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                            || position >= endSample) {
+                        break;
+                    }
+                }
+                if (!mCanceled && endSample != Long.MAX_VALUE && position < endSample) {
+                    throw new IOException("Range starting at " + mStartUs + "us ended at sample "
+                            + position + " instead of " + endSample);
+                }
+                if (mPosition < 0) {
+                    mPosition = Math.max(startSample, 0);
+                }
+                if (mFrameGainAnalyzer != null) {
+                    mFrameGainAnalyzer.finish();
+                }
+                mDone = true;
+                return null;
+            } finally {
+                if (codec != null) {
+                    CodecPool.recycle(codec);
+                }
+                extractor.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of decoded PCM data, kept across sessions in a sub-directory of the app cache
+ * directory.
+ *
+ * <p>
+ * Entries are keyed by the identity of the source file: its size, its last modification time and a
+ * fingerprint of its content. Two different files therefore never share an entry, while reopening
+ * an unchanged file finds the PCM decoded the previous time. Each entry is made of a raw PCM file
+ * and of a small info file holding the audio format. When the total size of the cache exceeds its
+ * budget, the least recently used entries are deleted.
+ *
+ * <p>
+ * The cache also keeps the {@link PeakFile} of each key. Peak files are tiny compared to the PCM
+ * data, so they are kept when the PCM data is evicted, up to {@link #MAX_PEAK_FILES} files.
+ */
+public class PcmCache {
+    public static final long DEFAULT_MAX_BYTES = 512L << 20; // 512MB
+    // Maximum number of peak files kept in the cache.
+    public static final int MAX_PEAK_FILES = 1000;
+    private static final String DIR_NAME = "pcm_cache";
+    private static final String PCM_EXTENSION = ".pcm";
+    private static final String INFO_EXTENSION = ".info";
+    private static final String PEAKS_EXTENSION = ".peaks";
+    private static final String TEMP_PREFIX = "decoding_";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int INFO_MAGIC = 0x52445043; // "RDPC"
+    private static final int INFO_VERSION = 1;
+    // Number of bytes of the source file hashed at its beginning, middle and end.
+    private static final int FINGERPRINT_CHUNK_SIZE = 64 * 1024;
+    // Temp files last modified before this time were left by a previous process, e.g. one killed
+    // while decoding, as this class is loaded before any temp file of this process is created.
+    // The margin accounts for file systems whose clock is coarse.
+    private static final long STALE_TEMP_FILE_TIME_MS = System.currentTimeMillis() - 10000;
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    public PcmCache(File cacheDir, long maxBytes) {
+        mDir = new File(cacheDir, DIR_NAME);
+        mMaxBytes = maxBytes;
+        deleteStaleTempFiles(mDir, TEMP_PREFIX);
+    }
+
+    // Deletes the files of dir whose name starts with prefix left by a previous process. Temp
+    // files are deleted once used, but not when the process is killed while using them, and they
+    // do not count in the budget of the cache.
+    static void deleteStaleTempFiles(File dir, String prefix) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.lastModified() < STALE_TEMP_FILE_TIME_MS) {
+                file.delete();
+            }
+        }
+    }
+
+    // Returns the key identifying the given source file, or null if it cannot be read.
+    static String getKey(InputSource source) {
+        try (FileChannel channel = source.openChannel()) {
+            long size = channel.size();
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] header = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                header[i] = (byte) (size >> (56 - 8 * i));
+                header[8 + i] = (byte) (source.lastModified() >> (56 - 8 * i));
+            }
+            digest.update(header);
+            ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_CHUNK_SIZE);
+            for (long offset : new long[]{0, (size - buffer.capacity()) / 2,
+                    size - buffer.capacity()}) {
+                buffer.clear();
+                int length = channel.read(buffer, Math.max(offset, 0));
+                if (length > 0) {
+                    digest.update(buffer.array(), 0, length);
+                }
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    // Returns the cached entry for the given key, or null if there is none. The entry is marked as
+    // the most recently used one.
+    public synchronized Entry get(String key) {
+        File pcmFile = new File(mDir, key + PCM_EXTENSION);
+        File infoFile = new File(mDir, key + INFO_EXTENSION);
+        if (!pcmFile.exists() || !infoFile.exists()) {
+            return null;
+        }
+        Entry entry;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(infoFile))) {
+            if (in.readInt() != INFO_MAGIC || in.readInt() != INFO_VERSION) {
+                return null;
+            }
+            entry = new Entry(pcmFile, in.readInt(), in.readInt(), in.readLong());
+        } catch (IOException e) {
+            return null;
+        }
+        if (entry.channels <= 0 || pcmFile.length() != entry.numSamples * entry.channels * 2) {
+            // Incomplete or corrupted entry.
+            removePcm(key);
+            return null;
+        }
+        touch(pcmFile);
+        return entry;
+    }
+
+    // Returns a new temp file in the cache directory, into which PCM data can be decoded before
+    // being added to the cache with put(). Each call returns a different file, so that concurrent
+    // decodings never overwrite each other.
+    public File createTempFile() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Cannot create PCM cache directory " + mDir);
+        }
+        return File.createTempFile(TEMP_PREFIX, TEMP_EXTENSION, mDir);
+    }
+
+    // Adds the decoded PCM data in pcmFile (which must have been returned by createTempFile()) to
+    // the cache. pcmFile is renamed, and must not be deleted by the caller if the returned value
+    // is true. The least recently used entries are then evicted to stay within the budget.
+    public synchronized boolean put(String key, File pcmFile, int sampleRate, int channels,
+            long numSamples) {
+        if (numSamples * channels * 2 > mMaxBytes) {
+            return false;
+        }
+        File infoFile = new File(mDir, key + INFO_EXTENSION);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(infoFile))) {
+            out.writeInt(INFO_MAGIC);
+            out.writeInt(INFO_VERSION);
+            out.writeInt(sampleRate);
+            out.writeInt(channels);
+            out.writeLong(numSamples);
+        } catch (IOException e) {
+            infoFile.delete();
+            return false;
+        }
+        if (!pcmFile.renameTo(new File(mDir, key + PCM_EXTENSION))) {
+            infoFile.delete();
+            return false;
+        }
+        trimToSize(mMaxBytes);
+        return true;
+    }
+
+    // Returns the peak file of the given key, or null if there is none.
+    public synchronized PeakFile getPeaks(String key) {
+        File peaksFile = new File(mDir, key + PEAKS_EXTENSION);
+        if (!peaksFile.exists()) {
+            return null;
+        }
+        try {
+            PeakFile peaks = PeakFile.read(peaksFile);
+            touch(peaksFile);
+            return peaks;
+        } catch (IOException e) {
+            peaksFile.delete();
+            return null;
+        }
+    }
+
+    // Stores the peak file of the given key. The least recently used peak files are then evicted
+    // to keep at most MAX_PEAK_FILES of them.
+    public synchronized boolean putPeaks(String key, PeakFile peaks) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return false;
+        }
+        try {
+            peaks.write(new File(mDir, key + PEAKS_EXTENSION));
+        } catch (IOException e) {
+            return false;
+        }
+        File[] peaksFiles = mDir.listFiles((dir, name) -> name.endsWith(PEAKS_EXTENSION));
+        if (peaksFiles != null && peaksFiles.length > MAX_PEAK_FILES) {
+            Arrays.sort(peaksFiles, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (int i = 0; i < peaksFiles.length - MAX_PEAK_FILES; i++) {
+                peaksFiles[i].delete();
+            }
+        }
+        return true;
+    }
+
+    // Deletes the PCM data of the least recently used entries until the PCM data in the cache
+    // takes at most maxBytes bytes.
+    public synchronized void trimToSize(long maxBytes) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Map<String, Long> sizes = new HashMap<>();
+        List<File> pcmFiles = new ArrayList<>();
+        long totalSize = 0;
+        for (File file : files) {
+            String key = getKeyOf(file);
+            if (key == null || file.getName().endsWith(PEAKS_EXTENSION)) {
+                continue;
+            }
+            sizes.merge(key, file.length(), Long::sum);
+            totalSize += file.length();
+            if (file.getName().endsWith(PCM_EXTENSION)) {
+                pcmFiles.add(file);
+            }
+        }
+        pcmFiles.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File pcmFile : pcmFiles) {
+            if (totalSize <= maxBytes) {
+                break;
+            }
+            String key = getKeyOf(pcmFile);
+            removePcm(key);
+            totalSize -= sizes.get(key);
+        }
+    }
+
+    // Deletes all the files of the given entry, including its peak file.
+    public synchronized void remove(String key) {
+        removePcm(key);
+        new File(mDir, key + PEAKS_EXTENSION).delete();
+    }
+
+    // Deletes the PCM data of the given entry, but keeps its peak file.
+    private void removePcm(String key) {
+        new File(mDir, key + PCM_EXTENSION).delete();
+        new File(mDir, key + INFO_EXTENSION).delete();
+    }
+
+    // Returns the key of the entry a file of the cache directory belongs to, or null if this file
+    // is not part of an entry (e.g. a temp file being decoded).
+    private static String getKeyOf(File file) {
+        String name = file.getName();
+        if (name.endsWith(TEMP_EXTENSION)) {
+            return null;
+        }
+        int dot = name.indexOf('.');
+        return dot > 0 ? name.substring(0, dot) : null;
+    }
+
+    private static void touch(File file) {
+        // Make sure the last modification time increases, even with a coarse file system clock.
+        file.setLastModified(Math.max(System.currentTimeMillis(), file.lastModified() + 1));
+    }
+
+    // A cached PCM file, holding numSamples samples per channel of 16 bits little endian
+    // interleaved samples.
+    public static class Entry {
+        public final File pcmFile;
+        public final int sampleRate;
+        public final int channels;
+        public final long numSamples;
+
+        Entry(File pcmFile, int sampleRate, int channels, long numSamples) {
+            this.pcmFile = pcmFile;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.numSamples = numSamples;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+/**
+ * Random access to 16 bits little endian interleaved PCM data, either stored or decoded on demand.
+ * Offsets are in bytes and indices in 16 bits values.
+ *
+ * <p>
+ * A source decoding on demand throws an {@link java.io.UncheckedIOException} if the data cannot be
+ * decoded.
+ */
+interface PcmSource {
+    // Number of bytes of PCM data.
+    long size();
+
+    // Copies up to length bytes starting at offset into dst. Returns the number of bytes copied,
+    // which is less than length at the end of the data.
+    int get(long offset, byte[] dst, int dstOffset, int length);
+
+    // Returns the value at index.
+    short getShort(long index);
+
+    // Copies length values starting at index into dst.
+    void getShorts(long index, short[] dst, int dstOffset, int length);
+}
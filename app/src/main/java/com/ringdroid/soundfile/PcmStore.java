@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores 16 bits little endian PCM data in a file mapped in fixed-size segments, or in segments
+ * allocated in memory.
+ *
+ * <p>
+ * Segments are mapped or allocated one after the other as data is appended, so growing the store
+ * never remaps or copies the data already stored, and its size is not limited to the 2GB of a
+ * single mapping. The data can be read by absolute offset, or through a {@link SampleBuffer}.
+ *
+ * <p>
+ * A store is not thread-safe: data must not be read while it is being appended. Only {@link #write}
+ * may be called by several threads at once, to fill distinct ranges.
+ */
+public class PcmStore implements PcmSource {
+    // 8MB, about 47 seconds of 44.1kHz stereo audio. Must be a multiple of 2 so that no sample
+    // straddles two segments.
+    static final int DEFAULT_SEGMENT_SIZE = 8 << 20;
+    // 1MB, so that small files do not take much more memory than their data.
+    static final int MEMORY_SEGMENT_SIZE = 1 << 20;
+
+    private final FileChannel mChannel; // null for a store in memory.
+    private final FileChannel.MapMode mMode;
+    private final boolean mDirect; // Whether the segments of a store in memory are direct.
+    private final long mStart; // Offset in mChannel of the first byte stored.
+    private final int mSegmentSize;
+    private final List<ByteBuffer> mSegments = new ArrayList<>();
+    private long mSize = 0; // Number of bytes stored.
+
+    // Creates an empty store mapping channel with the given mode. Data can only be appended in
+    // READ_WRITE mode.
+    PcmStore(FileChannel channel, FileChannel.MapMode mode, int segmentSize) {
+        this(channel, mode, 0, segmentSize);
+    }
+
+    PcmStore(FileChannel channel, FileChannel.MapMode mode) {
+        this(channel, mode, DEFAULT_SEGMENT_SIZE);
+    }
+
+    private PcmStore(FileChannel channel, FileChannel.MapMode mode, long start, int segmentSize) {
+        this(channel, mode, start, segmentSize, false);
+    }
+
+    private PcmStore(FileChannel channel, FileChannel.MapMode mode, long start, int segmentSize,
+            boolean direct) {
+        if (segmentSize <= 0 || segmentSize % 2 != 0) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        mChannel = channel;
+        mMode = mode;
+        mStart = start;
+        mSegmentSize = segmentSize;
+        mDirect = direct;
+    }
+
+    // Returns an empty store allocating its segments in the Java heap, or in direct buffers
+    // outside of it if direct is true.
+    static PcmStore allocate(boolean direct, int segmentSize) {
+        return new PcmStore(null, FileChannel.MapMode.READ_WRITE, 0, segmentSize, direct);
+    }
+
+    static PcmStore allocate(boolean direct) {
+        return allocate(direct, MEMORY_SEGMENT_SIZE);
+    }
+
+    // Returns a read-only store mapping the size bytes of channel starting at start, e.g. the
+    // data chunk of a WAV file.
+    static PcmStore map(FileChannel channel, long start, long size, int segmentSize)
+            throws IOException {
+        PcmStore store = new PcmStore(channel, FileChannel.MapMode.READ_ONLY, start, segmentSize);
+        store.setSize(size);
+        return store;
+    }
+
+    static PcmStore map(FileChannel channel, long start, long size) throws IOException {
+        return map(channel, start, size, DEFAULT_SEGMENT_SIZE);
+    }
+
+    // Returns a read-only store holding the bytes of buffer between 0 and its limit.
+    static PcmStore wrap(ByteBuffer buffer) {
+        PcmStore store = new PcmStore(null, FileChannel.MapMode.READ_ONLY,
+                Math.max(2, (buffer.limit() + 1) & ~1));
+        ByteBuffer segment = buffer.duplicate();
+        segment.position(0);
+        store.mSegments.add(segment.slice().order(ByteOrder.LITTLE_ENDIAN));
+        store.mSize = buffer.limit();
+        return store;
+    }
+
+    // Number of bytes stored.
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    // Appends the bytes between the position and the limit of src, mapping new segments as
+    // needed. The position of src is advanced to its limit.
+    void append(ByteBuffer src) throws IOException {
+        if (mMode != FileChannel.MapMode.READ_WRITE) {
+            throw new ReadOnlyBufferException();
+        }
+        while (src.hasRemaining()) {
+            ByteBuffer segment = getSegment(mSize);
+            int offset = (int) (mSize % mSegmentSize);
+            int length = Math.min(src.remaining(), mSegmentSize - offset);
+            ByteBuffer dst = segment.duplicate();
+            dst.position(offset);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            dst.put(part);
+            src.position(src.position() + length);
+            mSize += length;
+        }
+    }
+
+    // Writes the bytes between the position and the limit of src at offset, mapping or allocating
+    // new segments as needed, without changing the size of the store: setSize() must be called
+    // once all the data is written. The position of src is advanced to its limit.
+    void write(ByteBuffer src, long offset) throws IOException {
+        if (mMode != FileChannel.MapMode.READ_WRITE) {
+            throw new ReadOnlyBufferException();
+        }
+        while (src.hasRemaining()) {
+            ByteBuffer segment;
+            synchronized (this) {
+                segment = getSegment(offset);
+            }
+            int segmentOffset = (int) (offset % mSegmentSize);
+            int length = Math.min(src.remaining(), mSegmentSize - segmentOffset);
+            ByteBuffer dst = segment.duplicate();
+            dst.position(segmentOffset);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            dst.put(part);
+            src.position(src.position() + length);
+            offset += length;
+        }
+    }
+
+    // Sets the number of bytes stored, mapping the segments needed to read them. Used after data
+    // has been written directly to the channel, or to drop data which has been appended.
+    void setSize(long size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        if (size > 0) {
+            getSegment(size - 1);
+        }
+        mSize = size;
+    }
+
+    // Returns a read-only view of the segment containing the byte at offset, positioned at
+    // offset and limited to the end of the segment or of the stored data. The returned buffer
+    // shares the stored data: this is how large ranges are read without copying them.
+    ByteBuffer slice(long offset) {
+        if (offset < 0 || offset >= mSize) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " out of " + mSize);
+        }
+        ByteBuffer segment = mSegments.get((int) (offset / mSegmentSize));
+        long segmentStart = offset - offset % mSegmentSize;
+        ByteBuffer slice = segment.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit((int) Math.min(slice.capacity(), mSize - segmentStart));
+        slice.position((int) (offset - segmentStart));
+        return slice;
+    }
+
+    // Writes all the data stored to channel, at its current position.
+    void writeTo(WritableByteChannel channel) throws IOException {
+        for (long offset = 0; offset < mSize;) {
+            ByteBuffer slice = slice(offset);
+            offset += slice.remaining();
+            while (slice.hasRemaining()) {
+                channel.write(slice);
+            }
+        }
+    }
+
+    @Override
+    public int get(long offset, byte[] dst, int dstOffset, int length) {
+        int copied = 0;
+        while (copied < length && offset < mSize) {
+            ByteBuffer slice = slice(offset);
+            int n = Math.min(length - copied, slice.remaining());
+            slice.get(dst, dstOffset + copied, n);
+            copied += n;
+            offset += n;
+        }
+        return copied;
+    }
+
+    @Override
+    public short getShort(long index) {
+        long offset = index * 2;
+        if (index < 0 || offset + 2 > mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + mSize / 2);
+        }
+        return mSegments.get((int) (offset / mSegmentSize)).getShort((int) (offset % mSegmentSize));
+    }
+
+    @Override
+    public void getShorts(long index, short[] dst, int dstOffset, int length) {
+        if (index < 0 || length < 0 || (index + length) * 2 > mSize) {
+            throw new IndexOutOfBoundsException(
+                    "Range " + index + "+" + length + " out of " + mSize / 2);
+        }
+        while (length > 0) {
+            ByteBuffer slice = slice(index * 2);
+            int n = Math.min(length, slice.remaining() / 2);
+            slice.asShortBuffer().get(dst, dstOffset, n);
+            index += n;
+            dstOffset += n;
+            length -= n;
+        }
+    }
+
+    // Returns the segment containing the byte at offset, mapping it and the segments before it if
+    // needed.
+    private ByteBuffer getSegment(long offset) throws IOException {
+        int index = (int) (offset / mSegmentSize);
+        while (mSegments.size() <= index) {
+            if (mChannel == null) {
+                if (mMode != FileChannel.MapMode.READ_WRITE) {
+                    throw new IOException("Cannot grow a store wrapping a buffer");
+                }
+                ByteBuffer segment = mDirect
+                        ? ByteBuffer.allocateDirect(mSegmentSize)
+                        : ByteBuffer.allocate(mSegmentSize);
+                Metrics.count("pcm.allocated_bytes", mSegmentSize);
+                mSegments.add(segment.order(ByteOrder.LITTLE_ENDIAN));
+                continue;
+            }
+            long start = (long) mSegments.size() * mSegmentSize;
+            long length = mSegmentSize;
+            if (mMode == FileChannel.MapMode.READ_ONLY) {
+                // A read-only mapping cannot extend the file.
+                length = Math.min(length, mChannel.size() - mStart - start);
+                if (length <= 0) {
+                    throw new IOException("Offset " + offset + " beyond the end of the file");
+                }
+            }
+            mSegments.add(
+                    mChannel.map(mMode, mStart + start, length).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        return mSegments.get(index);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The frame gains of a decoded audio file, along with its format, so that its waveform can be
+ * displayed without decoding it again.
+ *
+ * <p>
+ * A frame gain is the square root of the highest absolute sample value of the frame, hence at most
+ * 181, and is stored as a single unsigned byte. A peak file is therefore about 1000 times smaller
+ * than the decoded PCM data.
+ */
+public class PeakFile {
+    private static final int MAGIC = 0x5244504b; // "RDPK"
+    private static final int VERSION = 1;
+
+    public final int sampleRate;
+    public final int channels;
+    public final long numSamples; // Number of samples per channel.
+    public final int samplesPerFrame;
+    public final int[] frameGains;
+
+    public PeakFile(int sampleRate, int channels, long numSamples, int samplesPerFrame,
+            int[] frameGains) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.numSamples = numSamples;
+        this.samplesPerFrame = samplesPerFrame;
+        this.frameGains = frameGains;
+    }
+
+    public static PeakFile read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a peak file: " + file);
+            }
+            int sampleRate = in.readInt();
+            int channels = in.readInt();
+            long numSamples = in.readLong();
+            int samplesPerFrame = in.readInt();
+            int numFrames = in.readInt();
+            if (samplesPerFrame <= 0
+                    || numFrames != (numSamples + samplesPerFrame - 1) / samplesPerFrame) {
+                throw new IOException("Corrupted peak file: " + file);
+            }
+            byte[] gains = new byte[numFrames];
+            in.readFully(gains);
+            int[] frameGains = new int[numFrames];
+            for (int i = 0; i < numFrames; i++) {
+                frameGains[i] = gains[i] & 0xFF;
+            }
+            return new PeakFile(sampleRate, channels, numSamples, samplesPerFrame, frameGains);
+        }
+    }
+
+    // Writes the peak file to a temp file first, then renames it, so that a partially written
+    // file can never be read.
+    public void write(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sampleRate);
+            out.writeInt(channels);
+            out.writeLong(numSamples);
+            out.writeInt(samplesPerFrame);
+            out.writeInt(frameGains.length);
+            for (int gain : frameGains) {
+                out.writeByte(Math.min(gain, 255));
+            }
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+        }
+    }
+}
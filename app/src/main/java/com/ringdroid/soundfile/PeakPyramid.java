@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The lowest and highest sample values of each channel of 16 bits little endian interleaved PCM
+ * data, over blocks of at least BASE_BLOCK_SIZE samples and over each power of two number of
+ * consecutive blocks, so that the peaks of any range of samples can be read in constant time.
+ *
+ * <p>
+ * Level k of the pyramid holds the peaks of blocks of getBlockSize() << k samples, each block of
+ * level k + 1 merging two blocks of level k. Only the most significant byte of the samples is kept,
+ * so the pyramid takes about 4 bytes per channel and per block of the lowest level.
+ *
+ * <p>
+ * The levels are stored in chunks of CHUNK_BLOCKS blocks, so that they grow without being copied,
+ * and take about DEFAULT_MAX_BYTES at most. The blocks of long files are larger than
+ * BASE_BLOCK_SIZE so that their pyramid fits in it, and once more data than expected has been
+ * processed, e.g. while recording, the lowest level is dropped and the size of the blocks doubled.
+ *
+ * <p>
+ * The pyramid is computed incrementally, buffer by buffer, as the data is decoded, and can be read
+ * from another thread in the meantime.
+ */
+public class PeakPyramid {
+    // Minimum number of samples per channel of the blocks of the lowest level.
+    public static final int BASE_BLOCK_SIZE = 64;
+    private static final int BASE_BLOCK_SHIFT = 6;
+    // Maximum size of the levels, in bytes.
+    static final long DEFAULT_MAX_BYTES = 8L << 20;
+    // Number of blocks per chunk of a level. The first chunk of a level starts smaller, and grows
+    // up to this size.
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_BLOCKS = 1 << CHUNK_SHIFT;
+    private static final int FIRST_CHUNK_BLOCKS = 16;
+
+    private final int mChannels;
+    private final long mMaxBytes;
+    // Chunk i of level k holds the peaks of the blocks of level k from i * CHUNK_BLOCKS, and there
+    // are mCounts[k] blocks in level k: for block b of a chunk and channel c, the lowest value is
+    // at 2 * (b * mChannels + c) and the highest one right after it.
+    private byte[][][] mLevels = new byte[0][][];
+    private int[] mCounts = new int[0];
+    private long mNumBytes = 0; // Size of all the chunks.
+    private int mBlockShift; // log2 of the number of samples per block of level 0.
+    private long mNumSamples = 0; // Number of samples per channel in the blocks of level 0.
+    private boolean mFinished = false;
+    // State of the current block.
+    private final byte[] mBlock;
+    private int mSamplesInBlock = 0;
+    private int mChannel = 0;
+    private int mPendingByte = -1;
+
+    public PeakPyramid(int channels) {
+        this(channels, 0);
+    }
+
+    // expectedNumSamples is the number of samples per channel expected to be processed, from
+    // which the size of the blocks is chosen, or 0 if it is not known.
+    public PeakPyramid(int channels, long expectedNumSamples) {
+        this(channels, expectedNumSamples, DEFAULT_MAX_BYTES);
+    }
+
+    PeakPyramid(int channels, long expectedNumSamples, long maxBytes) {
+        mChannels = channels;
+        mMaxBytes = maxBytes;
+        mBlock = new byte[2 * channels];
+        mBlockShift = BASE_BLOCK_SHIFT;
+        // All the levels together take about twice as much as the lowest one.
+        while (2 * (expectedNumSamples >> mBlockShift) * mBlock.length > maxBytes) {
+            mBlockShift++;
+        }
+        resetBlock();
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    // Number of samples per channel of the blocks of the lowest level, a power of two not lower
+    // than BASE_BLOCK_SIZE. Peaks are not known for ranges of fewer samples.
+    public synchronized int getBlockSize() {
+        return 1 << mBlockShift;
+    }
+
+    // Number of samples per channel whose peaks can be read.
+    public synchronized long getNumSamples() {
+        return mNumSamples;
+    }
+
+    // Size of the levels, in bytes.
+    synchronized long getNumBytes() {
+        return mNumBytes;
+    }
+
+    // Processes the bytes between the position and the limit of samples. The position of samples
+    // is left unchanged.
+    public synchronized void process(ByteBuffer samples) {
+        if (mFinished) {
+            throw new IllegalStateException("Pyramid already finished");
+        }
+        ByteBuffer buffer = samples.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = buffer.position();
+        int limit = buffer.limit();
+        if (mPendingByte >= 0 && position < limit) {
+            addSample((short) (mPendingByte | (buffer.get(position++) << 8)));
+            mPendingByte = -1;
+        }
+        for (; position + 1 < limit; position += 2) {
+            addSample(buffer.getShort(position));
+        }
+        if (position < limit) {
+            mPendingByte = buffer.get(position) & 0xFF;
+        }
+    }
+
+    // Adds the last partial block, and completes the levels above it. No data can be processed
+    // afterwards.
+    public synchronized void finish() {
+        if (mFinished) {
+            return;
+        }
+        if (mSamplesInBlock > 0) {
+            mNumSamples += mSamplesInBlock;
+            addBlock(0, mBlock, 0);
+        }
+        // A block left without a sibling is merged alone into the level above.
+        for (int level = 0; level < mCounts.length && mCounts[level] > 1; level++) {
+            if (mCounts[level] % 2 != 0) {
+                mergeBlocks(level, mCounts[level] - 1, 1);
+            }
+        }
+        mFinished = true;
+    }
+
+    // Fills min and max, from index 0, with the lowest and highest values of channel (or of all
+    // channels if channel is -1), divided by 256, of numPixels consecutive ranges of
+    // samplesPerPixel samples starting at firstSample. Returns the number of ranges filled, which
+    // is less than numPixels if the ranges go past the end of the processed data.
+    public synchronized int getPeaks(long firstSample, long samplesPerPixel, int numPixels,
+            int channel, byte[] min, byte[] max) {
+        int firstChannel = channel < 0 ? 0 : channel;
+        int lastChannel = channel < 0 ? mChannels - 1 : channel;
+        // The highest level whose blocks are not larger than a pixel, so that a pixel spans at
+        // most 3 of its blocks.
+        int pixelLevel = Math.max(0, 63 - Long.numberOfLeadingZeros(samplesPerPixel) - mBlockShift);
+        for (int i = 0; i < numPixels; i++) {
+            long start = firstSample + i * samplesPerPixel;
+            long end = Math.min(start + samplesPerPixel, mNumSamples);
+            if (start >= end) {
+                return i;
+            }
+            // While the data is being processed, the last blocks of a level may not be merged
+            // in the level above yet.
+            int level = Math.min(pixelLevel, mCounts.length - 1);
+            while (level > 0 && end > ((long) mCounts[level] << (mBlockShift + level))) {
+                level--;
+            }
+            byte[][] chunks = mLevels[level];
+            int lo = Byte.MAX_VALUE;
+            int hi = Byte.MIN_VALUE;
+            int lastBlock = (int) ((end - 1) >> (mBlockShift + level));
+            for (int b = (int) (start >> (mBlockShift + level)); b <= lastBlock; b++) {
+                byte[] peaks = chunks[b >> CHUNK_SHIFT];
+                int offset = getOffset(b);
+                for (int c = firstChannel; c <= lastChannel; c++) {
+                    lo = Math.min(lo, peaks[offset + 2 * c]);
+                    hi = Math.max(hi, peaks[offset + 2 * c + 1]);
+                }
+            }
+            min[i] = (byte) lo;
+            max[i] = (byte) hi;
+        }
+        return numPixels;
+    }
+
+    private void resetBlock() {
+        for (int c = 0; c < mChannels; c++) {
+            mBlock[2 * c] = Byte.MAX_VALUE;
+            mBlock[2 * c + 1] = Byte.MIN_VALUE;
+        }
+        mSamplesInBlock = 0;
+    }
+
+    private void addSample(short value) {
+        byte peak = (byte) (value >> 8);
+        int index = 2 * mChannel;
+        if (peak < mBlock[index]) {
+            mBlock[index] = peak;
+        }
+        if (peak > mBlock[index + 1]) {
+            mBlock[index + 1] = peak;
+        }
+        if (++mChannel < mChannels) {
+            return;
+        }
+        mChannel = 0;
+        if (++mSamplesInBlock == 1 << mBlockShift) {
+            mNumSamples += mSamplesInBlock;
+            addBlock(0, mBlock, 0);
+            resetBlock();
+            while (mNumBytes > mMaxBytes && mCounts.length > 1) {
+                dropLowestLevel();
+            }
+        }
+    }
+
+    // Drops level 0, so that level 1 becomes the lowest level and the blocks are twice as large.
+    // The last block of level 0 is not merged into level 1 yet if it has no sibling, and becomes
+    // the beginning of the current block instead.
+    private void dropLowestLevel() {
+        int count = mCounts[0];
+        if (count % 2 != 0) {
+            byte[] peaks = mLevels[0][(count - 1) >> CHUNK_SHIFT];
+            int offset = getOffset(count - 1);
+            for (int i = 0; i < mBlock.length; i += 2) {
+                mBlock[i] = (byte) Math.min(mBlock[i], peaks[offset + i]);
+                mBlock[i + 1] = (byte) Math.max(mBlock[i + 1], peaks[offset + i + 1]);
+            }
+            mSamplesInBlock += 1 << mBlockShift;
+            mNumSamples -= 1 << mBlockShift;
+        }
+        for (byte[] chunk : mLevels[0]) {
+            mNumBytes -= chunk.length;
+        }
+        mLevels = Arrays.copyOfRange(mLevels, 1, mLevels.length);
+        mCounts = Arrays.copyOfRange(mCounts, 1, mCounts.length);
+        mBlockShift++;
+    }
+
+    // Appends to level the block of src at srcOffset.
+    private void addBlock(int level, byte[] src, int srcOffset) {
+        byte[] chunk = newBlock(level);
+        System.arraycopy(src, srcOffset, chunk, getOffset(mCounts[level]), mBlock.length);
+        blockAdded(level);
+    }
+
+    // Merges numBlocks (1 or 2) blocks of level, starting with block first, into a new block of
+    // the level above.
+    private void mergeBlocks(int level, int first, int numBlocks) {
+        byte[] merged = newBlock(level + 1);
+        int offset = getOffset(mCounts[level + 1]);
+        // Both blocks are in the same chunk, as first is even.
+        byte[] peaks = mLevels[level][first >> CHUNK_SHIFT];
+        int src = getOffset(first);
+        System.arraycopy(peaks, src, merged, offset, mBlock.length);
+        if (numBlocks == 2) {
+            src += mBlock.length;
+            for (int i = 0; i < mBlock.length; i += 2) {
+                merged[offset + i] = (byte) Math.min(merged[offset + i], peaks[src + i]);
+                merged[offset + i + 1] = (byte) Math.max(merged[offset + i + 1],
+                        peaks[src + i + 1]);
+            }
+        }
+        blockAdded(level + 1);
+    }
+
+    // Makes room for a new block at the end of level, and returns the chunk holding it.
+    private byte[] newBlock(int level) {
+        if (level == mCounts.length) {
+            mLevels = Arrays.copyOf(mLevels, level + 1);
+            mLevels[level] = new byte[0][];
+            mCounts = Arrays.copyOf(mCounts, level + 1);
+        }
+        byte[][] chunks = mLevels[level];
+        int count = mCounts[level];
+        int index = count >> CHUNK_SHIFT;
+        if (index == chunks.length) {
+            chunks = Arrays.copyOf(chunks, index + 1);
+            chunks[index] = new byte[(index == 0 ? FIRST_CHUNK_BLOCKS : CHUNK_BLOCKS)
+                    * mBlock.length];
+            mNumBytes += chunks[index].length;
+            mLevels[level] = chunks;
+        } else if (getOffset(count) == chunks[index].length) {
+            // The first chunk is full but smaller than CHUNK_BLOCKS: double it.
+            mNumBytes += chunks[index].length;
+            chunks[index] = Arrays.copyOf(chunks[index], 2 * chunks[index].length);
+        }
+        return chunks[index];
+    }
+
+    // Offset of block in its chunk.
+    private int getOffset(int block) {
+        return (block & (CHUNK_BLOCKS - 1)) * mBlock.length;
+    }
+
+    // Counts the block just written at the end of level, and merges it with its sibling into the
+    // level above.
+    private void blockAdded(int level) {
+        int count = ++mCounts[level];
+        if (count % 2 == 0) {
+            mergeBlocks(level, count - 2, 2);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Computes approximate frame gains of a whole audio track by decoding only a fraction of it, so
+ * that the waveform can be displayed long before the track is fully decoded.
+ *
+ * <p>
+ * The compressed samples of the track are read in order, but only RUN_LENGTH consecutive samples
+ * out of every stride ones are fed to the codec, the others being skipped without being decoded.
+ * The codec is not flushed across skips: the first decoded sample of a run may be distorted, as the
+ * codec still holds the state of the previous run, which is why runs are longer than one sample.
+ * The decoded audio is reduced on the fly to one mono value per frame, placed by the presentation
+ * time of each output buffer, and the gains of the frames which were skipped are interpolated from
+ * their neighbours.
+ */
+class PreviewDecoder {
+    // Number of consecutive compressed samples decoded at a time.
+    private static final int RUN_LENGTH = 2;
+    // Duration of audio decoded by a preview of a track shorter than MAX_STRIDE / RUN_LENGTH times
+    // this duration. Longer tracks have RUN_LENGTH / MAX_STRIDE of their length decoded.
+    private static final long DECODED_DURATION_US = 60 * 1000000L;
+    // Maximum number of compressed samples per run, so that the preview is not too coarse.
+    private static final int MAX_STRIDE = 32;
+    // A stride shorter than this decodes too much of the track for the preview to be worth it.
+    private static final int MIN_STRIDE = 4 * RUN_LENGTH;
+
+    private final InputSource mSource;
+    private final int mTrackIndex;
+    private final MediaFormat mFormat;
+    private final int mStride;
+    private final int mSamplesPerFrame;
+    private int mSampleRate;
+    private int mChannels;
+    private int[] mFrameGains = new int[0];
+
+    // Decodes one run of every stride compressed samples of the given track of source.
+    PreviewDecoder(InputSource source, int trackIndex, MediaFormat format, int stride,
+            int samplesPerFrame) {
+        mSource = source;
+        mTrackIndex = trackIndex;
+        mFormat = format;
+        mStride = stride;
+        mSamplesPerFrame = samplesPerFrame;
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+    }
+
+    // Returns the stride a preview of a track of the given duration should use, or 0 if the track
+    // is too short for a preview to be faster than decoding it.
+    static int getStride(long durationUs) {
+        long stride = Math.min(MAX_STRIDE, durationUs * RUN_LENGTH / DECODED_DURATION_US);
+        return stride >= MIN_STRIDE ? (int) stride : 0;
+    }
+
+    // Returns the fraction of the time taken to open a track, preview and full decoding included,
+    // which is spent on a preview with the given stride, so that the progress of both decodings
+    // can be reported as a whole.
+    static float getProgressShare(int stride) {
+        return (float) RUN_LENGTH / (stride + RUN_LENGTH);
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    int getChannels() {
+        return mChannels;
+    }
+
+    // Approximate gains of all the frames of the track, one per element.
+    int[] getFrameGains() {
+        return mFrameGains;
+    }
+
+    // Decodes the preview of a track of numSamples samples per channel. listener, if not null, is
+    // called after each compressed sample decoded, and can cancel the decoding. Returns false if
+    // the decoding has been canceled.
+    boolean decode(long numSamples, SoundFile.ProgressListener listener) throws IOException {
+        int numFrames = (int) ((numSamples + mSamplesPerFrame - 1) / mSamplesPerFrame);
+        // -1 for the frames with no decoded sample.
+        int[] frameGains = new int[numFrames];
+        Arrays.fill(frameGains, -1);
+        String mime = Objects.requireNonNull(mFormat.getString(MediaFormat.KEY_MIME));
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            mSource.setDataSource(extractor);
+            extractor.selectTrack(mTrackIndex);
+            long firstSampleTimeUs = Math.max(extractor.getSampleTime(), 0);
+            long durationUs = Math.max(mFormat.getLong(MediaFormat.KEY_DURATION), 1);
+            codec = CodecPool.acquireDecoder(mFormat);
+            codec.start();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int sampleIndex = 0;
+            boolean firstSampleData = true;
+            boolean doneReading = false;
+            while (true) {
+                int inputBufferIndex = doneReading ? -1 : codec.dequeueInputBuffer(100);
+                if (inputBufferIndex >= 0) {
+                    ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
+                    if (inputBuffer != null) {
+                        // Skip the compressed samples between two runs, without reading them.
+                        while (sampleIndex % mStride >= RUN_LENGTH && extractor.advance()) {
+                            sampleIndex++;
+                        }
+                        inputBuffer.clear();
+                        int sampleSize = extractor.readSampleData(inputBuffer, 0);
+                        if (firstSampleData && mime.equals("audio/mp4a-latm") && sampleSize == 2) {
+                            // Skip the AAC codec config, see SoundFile.ReadFile().
+                            extractor.advance();
+                            inputBuffer.clear();
+                            sampleSize = extractor.readSampleData(inputBuffer, 0);
+                        }
+                        firstSampleData = false;
+                        if (sampleSize < 0) {
+                            codec.queueInputBuffer(inputBufferIndex, 0, 0, -1,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            doneReading = true;
+                        } else {
+                            codec.queueInputBuffer(inputBufferIndex, 0, sampleSize,
+                                    extractor.getSampleTime(), 0);
+                            extractor.advance();
+                            sampleIndex++;
+                            long timeUs = extractor.getSampleTime();
+                            float progress = timeUs < 0
+                                    ? 1
+                                    : (float) (timeUs - firstSampleTimeUs) / durationUs;
+                            if (listener != null && listener.reportProgress(progress)) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+
+                int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
+                if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    mSampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    mChannels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else if (outputBufferIndex >= 0) {
+                    ByteBuffer outputBuffer = codec.getOutputBuffer(outputBufferIndex);
+                    if (outputBuffer != null && info.size > 0) {
+                        outputBuffer.position(info.offset);
+                        outputBuffer.limit(info.offset + info.size);
+                        long position = ((info.presentationTimeUs - firstSampleTimeUs) * mSampleRate
+                                + 500000) / 1000000;
+                        addFrameGains(outputBuffer, Math.max(position, 0), frameGains);
+                    }
+                    codec.releaseOutputBuffer(outputBufferIndex, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+        } catch (IllegalStateException e) {
+            // Some codecs cannot decode runs of samples cut out of their context.
+            throw new IOException("Failed to decode a preview of " + mSource, e);
+        } finally {
+            if (codec != null) {
+                CodecPool.recycle(codec);
+            }
+            extractor.release();
+        }
+        interpolate(frameGains);
+        mFrameGains = frameGains;
+        return true;
+    }
+
+    // Reduces the decoded samples of buffer, the first of which is at position in the track, to
+    // the gains of the frames they belong to. A frame decoded by several buffers keeps the highest
+    // gain, as gains are the maximum over the samples of the frame.
+    private void addFrameGains(ByteBuffer buffer, long position, int[] frameGains) {
+        FrameGainAnalyzer analyzer = new FrameGainAnalyzer(mChannels, mSamplesPerFrame, position,
+                buffer.remaining() / (2 * mChannels) / mSamplesPerFrame + 2);
+        analyzer.process(buffer);
+        analyzer.finish();
+        int[] gains = analyzer.getFrameGains();
+        int firstFrame = analyzer.getFirstFrame();
+        int numFrames = Math.min(analyzer.getNumFrames(), frameGains.length - firstFrame);
+        for (int i = 0; i < numFrames; i++) {
+            frameGains[firstFrame + i] = Math.max(frameGains[firstFrame + i], gains[i]);
+        }
+    }
+
+    // Replaces the -1 gains of the frames with no decoded sample by linear interpolations of the
+    // gains of the closest decoded frames.
+    static void interpolate(int[] frameGains) {
+        int previous = -1; // Last decoded frame.
+        for (int i = 0; i <= frameGains.length; i++) {
+            if (i < frameGains.length && frameGains[i] < 0) {
+                continue;
+            }
+            int from = previous < 0
+                    ? (i < frameGains.length ? frameGains[i] : 0)
+                    : frameGains[previous];
+            int to = i < frameGains.length ? frameGains[i] : from;
+            for (int j = previous + 1; j < i; j++) {
+                frameGains[j] = previous < 0
+                        ? from
+                        : from + (to - from) * (j - previous) / (i - previous);
+            }
+            previous = i;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Encodes a recording to AAC while it is captured, so that selections of it can be saved by copying
+ * their access units with an {@link AACCutter} instead of being encoded again.
+ *
+ * <p>
+ * The access units are appended to a file as the encoder outputs them, and their offsets and sizes
+ * are kept in memory: access unit i covers the samples of the recording from i * 1024 -
+ * {@link #ENCODER_DELAY}. The stream has the format SoundFile writes .m4a files in: mono recordings
+ * are encoded in stereo, at 64kbps per channel.
+ */
+class RecordingEncoder {
+    private static final String TAG = "RecordingEncoder";
+    private static final String MIME_TYPE = "audio/mp4a-latm";
+    // Priming samples output by the AAC encoders before the first sample of the recording.
+    static final int ENCODER_DELAY = 2 * 1024;
+    // Longest time to wait for an input buffer of the encoder, in microseconds.
+    private static final long INPUT_TIMEOUT_US = 10000;
+
+    private final File mFile;
+    private final FileChannel mOutput;
+    private final int mSampleRate;
+    private final int mInputChannels;
+    private final int mChannels;
+    private final MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    // Number of samples per channel fed to the encoder.
+    private long mNumInputSamples = 0;
+    private byte[] mConfig = null;
+    private long[] mOffsets = new long[1024];
+    private int[] mSizes = new int[1024];
+    private int mNumFrames = 0;
+    private long mNumBytes = 0;
+    private boolean mFinished = false;
+
+    // Creates an encoder of the 16 bits samples of a recording with the given format, writing the
+    // access units to file.
+    RecordingEncoder(File file, int sampleRate, int channels) throws IOException {
+        mFile = file;
+        mSampleRate = sampleRate;
+        mInputChannels = channels;
+        // Some devices have problems reading mono AAC files, see SoundFile.EncodeSamples().
+        mChannels = channels == 1 ? 2 : channels;
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, mChannels);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 64000 * mChannels);
+        mOutput = new FileOutputStream(file).getChannel();
+        try {
+            mCodec = CodecPool.acquireEncoder(format);
+            mCodec.start();
+        } catch (IOException | RuntimeException e) {
+            mOutput.close();
+            throw e;
+        }
+    }
+
+    // Feeds the samples between the position and the limit of samples to the encoder, and writes
+    // the access units it outputs. The position of samples is not changed.
+    void encode(ByteBuffer samples) throws IOException {
+        ByteBuffer input = samples.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int frameSize = 2 * mInputChannels;
+        while (input.remaining() >= frameSize) {
+            int index = mCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+            if (index < 0) {
+                drain(false);
+                continue;
+            }
+            ByteBuffer buffer = mCodec.getInputBuffer(index);
+            if (buffer == null) {
+                continue;
+            }
+            buffer.clear();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int numSamples = Math.min(input.remaining() / frameSize,
+                    buffer.remaining() / (2 * mChannels));
+            if (mInputChannels == 1) {
+                for (int i = 0; i < numSamples; i++) {
+                    short sample = input.getShort();
+                    buffer.putShort(sample);
+                    buffer.putShort(sample);
+                }
+            } else {
+                ByteBuffer slice = input.duplicate();
+                slice.limit(slice.position() + numSamples * frameSize);
+                buffer.put(slice);
+                input.position(slice.limit());
+            }
+            long presentationTimeUs = mNumInputSamples * 1000000 / mSampleRate;
+            mCodec.queueInputBuffer(index, 0, buffer.position(), presentationTimeUs, 0);
+            mNumInputSamples += numSamples;
+            drain(false);
+        }
+    }
+
+    // Signals the end of the recording to the encoder, and writes its last access units.
+    void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        int index;
+        while ((index = mCodec.dequeueInputBuffer(INPUT_TIMEOUT_US)) < 0) {
+            drain(false);
+        }
+        long presentationTimeUs = mNumInputSamples * 1000000 / mSampleRate;
+        mCodec.queueInputBuffer(index, 0, 0, presentationTimeUs,
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        drain(true);
+        mFinished = true;
+        CodecPool.recycle(mCodec);
+        mOutput.close();
+    }
+
+    // Writes the access units output by the encoder, until the end of the stream if endOfStream
+    // is true, or else until no output is ready.
+    private void drain(boolean endOfStream) throws IOException {
+        while (true) {
+            int index = mCodec.dequeueOutputBuffer(mInfo, endOfStream ? INPUT_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (endOfStream) {
+                    continue;
+                }
+                return;
+            }
+            if (index < 0) {
+                continue; // Output format or buffers changed.
+            }
+            ByteBuffer buffer = mCodec.getOutputBuffer(index);
+            if (buffer != null && mInfo.size > 0) {
+                buffer.position(mInfo.offset);
+                buffer.limit(mInfo.offset + mInfo.size);
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    mConfig = new byte[mInfo.size];
+                    buffer.get(mConfig);
+                } else {
+                    addFrame(buffer);
+                }
+            }
+            mCodec.releaseOutputBuffer(index, false);
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    private void addFrame(ByteBuffer frame) throws IOException {
+        if (mNumFrames == mSizes.length) {
+            mOffsets = Arrays.copyOf(mOffsets, 2 * mNumFrames);
+            mSizes = Arrays.copyOf(mSizes, 2 * mNumFrames);
+        }
+        mOffsets[mNumFrames] = mNumBytes;
+        mSizes[mNumFrames] = frame.remaining();
+        mNumFrames++;
+        while (frame.hasRemaining()) {
+            mNumBytes += mOutput.write(frame);
+        }
+    }
+
+    // Returns a cutter of the access units of the recording, or null if the encoding is not
+    // finished or its stream cannot be cut.
+    AACCutter getCutter() {
+        if (!mFinished || mConfig == null || mConfig.length < 2 || mNumFrames == 0) {
+            return null;
+        }
+        return AACCutter.fromAccessUnits(new InputSource(mFile), mSampleRate, mChannels,
+                Arrays.copyOf(mConfig, 2), Arrays.copyOf(mOffsets, mNumFrames),
+                Arrays.copyOf(mSizes, mNumFrames), ENCODER_DELAY);
+    }
+
+    // Releases the encoder if the encoding was not finished, and deletes the file.
+    void release() {
+        if (!mFinished) {
+            mFinished = true;
+            mConfig = null;
+            CodecPool.recycle(mCodec);
+            try {
+                mOutput.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (!mFile.delete() && mFile.exists()) {
+            Log.w(TAG, "Failed to delete the encoded recording: " + mFile);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Decodes the regions of an audio track which are actually read, instead of the whole track.
+ *
+ * <p>
+ * The track is split into blocks of BLOCK_SAMPLES samples. A block is decoded the first time one of
+ * its samples is read: the extractor seeks to a sync sample at least PRE_ROLL_US before the block,
+ * so that the codec has settled when the block starts, and the samples decoded before the block are
+ * dropped. The block following the last decoded one is decoded without seeking again, so that
+ * playback and export stream through the track. The most recently used blocks are cached.
+ *
+ * <p>
+ * Seeks only go to the sync samples of a seek index, built by scanning the sample times of the
+ * track, so that they land on a known sample whatever the precision of the container's own seeking.
+ * The position of the decoded samples is anchored on the presentation time of the first buffer
+ * decoded after each seek, as in ParallelDecoder.
+ *
+ * <p>
+ * The decoder is shared by all readers, hence the synchronized methods.
+ */
+class RegionDecoder implements PcmSource {
+    private static final String TAG = "RegionDecoder";
+    // About 1.5 seconds at 44.1kHz.
+    static final int BLOCK_SAMPLES = 1 << 16;
+    // 8MB of 44.1kHz stereo audio.
+    private static final int MAX_CACHED_BLOCKS = 32;
+    // Minimum time between two entries of the seek index.
+    private static final long INDEX_INTERVAL_US = 1000000;
+    // Audio decoded before the start of a block and dropped.
+    private static final long PRE_ROLL_US = 500000;
+    // Longest time the codec may go without outputting any buffer while a block is decoded.
+    private static final long STALL_TIMEOUT_MS = 5000;
+
+    private final InputSource mSource;
+    private final int mTrackIndex;
+    private final MediaFormat mFormat;
+    private final String mMime;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final long mNumSamples;
+    private final int mFrameSize; // Size of one sample for all channels, in bytes.
+    private final long mBlockSize; // Size of a full block, in bytes.
+    private final Map<Long, ByteBuffer> mBlocks = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+            return size() > MAX_CACHED_BLOCKS;
+        }
+    };
+    // Times of the sync samples the extractor can seek to, in increasing order.
+    private long[] mIndex = new long[0];
+    private long mFirstSampleTimeUs = 0;
+    private boolean mReleased = false;
+    // Decoding state, valid while mCodec is not null.
+    private MediaExtractor mExtractor = null;
+    private MediaCodec mCodec = null;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private boolean mFromStart; // Whether the last seek went to the first sample.
+    private boolean mFirstSampleData;
+    private boolean mDoneReading;
+    private long mPosition; // Position of the next decoded sample, -1 until anchored.
+    // Block being decoded, null if the decoder must seek before decoding a block.
+    private ByteBuffer mPendingBlock = null;
+    private long mPendingBlockIndex = -1;
+
+    // Decodes the given track of source, whose decoded format and length are known.
+    RegionDecoder(InputSource source, int trackIndex, MediaFormat format, int sampleRate,
+            int channels, long numSamples) {
+        mSource = source;
+        mTrackIndex = trackIndex;
+        mFormat = format;
+        mMime = Objects.requireNonNull(format.getString(MediaFormat.KEY_MIME));
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mNumSamples = numSamples;
+        mFrameSize = 2 * channels;
+        mBlockSize = (long) BLOCK_SAMPLES * mFrameSize;
+    }
+
+    // Returns the most memory taken by the blocks cached by a decoder of a track with the given
+    // number of channels.
+    static long getCacheBytes(int channels) {
+        return (long) (MAX_CACHED_BLOCKS + 1) * BLOCK_SAMPLES * 2 * channels;
+    }
+
+    // Builds the seek index by reading the sample times and flags of the track, without reading
+    // or decoding the samples themselves.
+    void buildIndex() throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            mSource.setDataSource(extractor);
+            extractor.selectTrack(mTrackIndex);
+            mFirstSampleTimeUs = Math.max(extractor.getSampleTime(), 0);
+            long[] index = new long[64];
+            int size = 0;
+            for (long timeUs = extractor.getSampleTime(); timeUs >= 0; timeUs = extractor
+                    .getSampleTime()) {
+                if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                        && (size == 0 || timeUs >= index[size - 1] + INDEX_INTERVAL_US)) {
+                    if (size == index.length) {
+                        index = Arrays.copyOf(index, size * 2);
+                    }
+                    index[size++] = timeUs;
+                }
+                if (!extractor.advance()) {
+                    break;
+                }
+            }
+            if (size == 0) {
+                throw new IOException("No sync sample found in " + mSource);
+            }
+            mIndex = Arrays.copyOf(index, size);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    @Override
+    public long size() {
+        return mNumSamples * mFrameSize;
+    }
+
+    @Override
+    public synchronized int get(long offset, byte[] dst, int dstOffset, int length) {
+        int copied = 0;
+        while (copied < length && offset < size()) {
+            ByteBuffer block = getBlockAt(offset);
+            block.position((int) (offset % mBlockSize));
+            int n = Math.min(length - copied, block.remaining());
+            block.get(dst, dstOffset + copied, n);
+            copied += n;
+            offset += n;
+        }
+        return copied;
+    }
+
+    @Override
+    public synchronized short getShort(long index) {
+        long offset = index * 2;
+        if (index < 0 || offset + 2 > size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + size() / 2);
+        }
+        return getBlockAt(offset).getShort((int) (offset % mBlockSize));
+    }
+
+    @Override
+    public synchronized void getShorts(long index, short[] dst, int dstOffset, int length) {
+        if (index < 0 || length < 0 || (index + length) * 2 > size()) {
+            throw new IndexOutOfBoundsException(
+                    "Range " + index + "+" + length + " out of " + size() / 2);
+        }
+        while (length > 0) {
+            long offset = index * 2;
+            ByteBuffer block = getBlockAt(offset);
+            block.position((int) (offset % mBlockSize));
+            int n = Math.min(length, block.remaining() / 2);
+            block.asShortBuffer().get(dst, dstOffset, n);
+            index += n;
+            dstOffset += n;
+            length -= n;
+        }
+    }
+
+    // Releases the codec and the cached blocks. No sample can be read afterwards.
+    synchronized void release() {
+        mReleased = true;
+        closeCodec();
+        mBlocks.clear();
+        mPendingBlock = null;
+        mPendingBlockIndex = -1;
+    }
+
+    // Returns a little endian view of the block containing the byte at offset, decoding it if
+    // needed.
+    private ByteBuffer getBlockAt(long offset) {
+        try {
+            return getBlock(offset / mBlockSize).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ByteBuffer getBlock(long blockIndex) throws IOException {
+        ByteBuffer block = mBlocks.get(blockIndex);
+        if (block != null) {
+            return block;
+        }
+        if (mPendingBlockIndex != blockIndex) {
+            seek(blockIndex);
+        }
+        block = mPendingBlock;
+        // The block is done once all its samples are decoded, or the end of the stream is
+        // reached. Codecs which stop outputting buffers before either happens, e.g. which never
+        // signal the end of the stream, are given up on.
+        long deadline = SystemClock.uptimeMillis() + STALL_TIMEOUT_MS;
+        while (mPendingBlockIndex == blockIndex) {
+            if (decodeNextBuffer()) {
+                deadline = SystemClock.uptimeMillis() + STALL_TIMEOUT_MS;
+            } else if (SystemClock.uptimeMillis() > deadline) {
+                // Start over with a new codec and a seek at the next read.
+                closeCodec();
+                mPendingBlock = null;
+                mPendingBlockIndex = -1;
+                throw new IOException("Decoder stalled in block " + blockIndex + " of " + mSource);
+            }
+        }
+        return block;
+    }
+
+    private long usToSamples(long timeUs) {
+        return ((timeUs - mFirstSampleTimeUs) * mSampleRate + 500000) / 1000000;
+    }
+
+    // Positions the decoder so that it decodes the given block next.
+    private void seek(long blockIndex) throws IOException {
+        if (mReleased) {
+            throw new IOException("Decoder released");
+        }
+        if (mCodec == null) {
+            mExtractor = new MediaExtractor();
+            mSource.setDataSource(mExtractor);
+            mExtractor.selectTrack(mTrackIndex);
+            mCodec = CodecPool.acquireDecoder(mFormat);
+            mCodec.start();
+        } else {
+            mCodec.flush();
+        }
+        long targetUs = mFirstSampleTimeUs + blockIndex * BLOCK_SAMPLES * 1000000 / mSampleRate
+                - PRE_ROLL_US;
+        int i = Arrays.binarySearch(mIndex, targetUs);
+        if (i < 0) {
+            i = Math.max(-i - 2, 0); // Last entry before targetUs.
+        }
+        mExtractor.seekTo(mIndex[i], MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        mFromStart = mIndex[i] <= mFirstSampleTimeUs;
+        mFirstSampleData = true;
+        mDoneReading = false;
+        mPosition = -1;
+        startBlock(blockIndex);
+    }
+
+    private void startBlock(long blockIndex) {
+        long start = blockIndex * BLOCK_SAMPLES;
+        if (start >= mNumSamples) {
+            mPendingBlock = null;
+            mPendingBlockIndex = -1;
+            return;
+        }
+        int numSamples = (int) Math.min(BLOCK_SAMPLES, mNumSamples - start);
+        mPendingBlock = ByteBuffer.allocate(numSamples * mFrameSize).order(ByteOrder.LITTLE_ENDIAN);
+        mPendingBlockIndex = blockIndex;
+    }
+
+    // Caches the pending block and starts the next one.
+    private void finishBlock() {
+        mBlocks.put(mPendingBlockIndex, mPendingBlock);
+        startBlock(mPendingBlockIndex + 1);
+    }
+
+    // Feeds the codec with one compressed sample and copies the next decoded buffer, if any, into
+    // the pending blocks. Returns whether the codec output samples or the end of the stream.
+    private boolean decodeNextBuffer() throws IOException {
+        int inputBufferIndex = mCodec.dequeueInputBuffer(100);
+        if (!mDoneReading && inputBufferIndex >= 0) {
+            ByteBuffer inputBuffer = mCodec.getInputBuffer(inputBufferIndex);
+            if (inputBuffer != null) {
+                inputBuffer.clear();
+                int sampleSize = mExtractor.readSampleData(inputBuffer, 0);
+                if (mFirstSampleData && mFromStart && mMime.equals("audio/mp4a-latm")
+                        && sampleSize == 2) {
+                    // Skip the AAC codec config, see SoundFile.ReadFile().
+                    mExtractor.advance();
+                    inputBuffer.clear();
+                    sampleSize = mExtractor.readSampleData(inputBuffer, 0);
+                }
+                mFirstSampleData = false;
+                if (sampleSize < 0) {
+                    mCodec.queueInputBuffer(inputBufferIndex, 0, 0, -1,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mDoneReading = true;
+                } else {
+                    mCodec.queueInputBuffer(inputBufferIndex, 0, sampleSize,
+                            mExtractor.getSampleTime(), 0);
+                    mExtractor.advance();
+                }
+            }
+        }
+
+        int outputBufferIndex = mCodec.dequeueOutputBuffer(mInfo, 100);
+        if (outputBufferIndex < 0) {
+            return false;
+        }
+        if (mInfo.size > 0) {
+            if (mPosition < 0) {
+                MediaFormat outputFormat = mCodec.getOutputFormat();
+                if (outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) != mSampleRate
+                        || outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != mChannels) {
+                    throw new IOException("Unexpected output format: " + outputFormat);
+                }
+                mPosition = mFromStart ? 0 : usToSamples(mInfo.presentationTimeUs);
+                if (mPosition > mPendingBlockIndex * BLOCK_SAMPLES) {
+                    Log.w(TAG, "Seek landed at sample " + mPosition + ", after block "
+                            + mPendingBlockIndex + ": its start is left silent");
+                }
+            }
+            ByteBuffer outputBuffer = mCodec.getOutputBuffer(outputBufferIndex);
+            long numSamples = mInfo.size / mFrameSize;
+            if (outputBuffer != null) {
+                copyToBlocks(outputBuffer, mInfo.offset, numSamples);
+            }
+            mPosition += numSamples;
+        }
+        mCodec.releaseOutputBuffer(outputBufferIndex, false);
+        if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && mPendingBlock != null) {
+            // The track is shorter than expected: the rest of the block is left silent, and the
+            // next block will need a seek.
+            mBlocks.put(mPendingBlockIndex, mPendingBlock);
+            mPendingBlock = null;
+            mPendingBlockIndex = -1;
+        }
+        return mInfo.size > 0 || (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    // Copies the numSamples samples starting at offset in buffer, the first one being at
+    // mPosition, into the pending block, and into the following blocks if they overlap them.
+    private void copyToBlocks(ByteBuffer buffer, int offset, long numSamples) {
+        long end = mPosition + numSamples;
+        while (mPendingBlock != null) {
+            long blockStart = mPendingBlockIndex * BLOCK_SAMPLES;
+            long blockEnd = blockStart + mPendingBlock.capacity() / mFrameSize;
+            long from = Math.max(mPosition, blockStart);
+            long to = Math.min(end, blockEnd);
+            if (from < to) {
+                ByteBuffer src = buffer.duplicate();
+                src.limit(offset + (int) (to - mPosition) * mFrameSize);
+                src.position(offset + (int) (from - mPosition) * mFrameSize);
+                ByteBuffer dst = mPendingBlock.duplicate();
+                dst.position((int) (from - blockStart) * mFrameSize);
+                dst.put(src);
+            }
+            if (end < blockEnd) {
+                break;
+            }
+            finishBlock();
+        }
+    }
+
+    private void closeCodec() {
+        if (mCodec != null) {
+            CodecPool.recycle(mCodec);
+            mCodec = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+    }
+}
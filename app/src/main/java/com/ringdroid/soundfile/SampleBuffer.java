@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.nio.BufferUnderflowException;
+
+/**
+ * A read-only view of the samples of a {@link PcmSource}, with the same relative and absolute get
+ * methods as a read-only {@link java.nio.ShortBuffer}. Positions are long, as the source can hold
+ * more than 2^31 samples.
+ *
+ * <p>
+ * Each view has its own position, so several threads can read the same source through their own
+ * views.
+ */
+public class SampleBuffer {
+    private final PcmSource mSource;
+    private final long mCapacity;
+    private long mPosition = 0;
+    private long mLimit;
+
+    // A view of the first capacity samples of source.
+    SampleBuffer(PcmSource source, long capacity) {
+        if (capacity < 0 || capacity * 2 > source.size()) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mSource = source;
+        mCapacity = capacity;
+        mLimit = capacity;
+    }
+
+    public long capacity() {
+        return mCapacity;
+    }
+
+    public long position() {
+        return mPosition;
+    }
+
+    public SampleBuffer position(long position) {
+        if (position < 0 || position > mLimit) {
+            throw new IllegalArgumentException("Invalid position: " + position);
+        }
+        mPosition = position;
+        return this;
+    }
+
+    public long limit() {
+        return mLimit;
+    }
+
+    public SampleBuffer limit(long limit) {
+        if (limit < 0 || limit > mCapacity) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+        mLimit = limit;
+        mPosition = Math.min(mPosition, limit);
+        return this;
+    }
+
+    public SampleBuffer rewind() {
+        mPosition = 0;
+        return this;
+    }
+
+    public long remaining() {
+        return mLimit - mPosition;
+    }
+
+    public boolean hasRemaining() {
+        return mPosition < mLimit;
+    }
+
+    public short get() {
+        if (mPosition >= mLimit) {
+            throw new BufferUnderflowException();
+        }
+        return mSource.getShort(mPosition++);
+    }
+
+    public short get(long index) {
+        if (index < 0 || index >= mLimit) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + mLimit);
+        }
+        return mSource.getShort(index);
+    }
+
+    public SampleBuffer get(short[] dst, int offset, int length) {
+        if (length > remaining()) {
+            throw new BufferUnderflowException();
+        }
+        mSource.getShorts(mPosition, dst, offset, length);
+        mPosition += length;
+        return this;
+    }
+
+    public SampleBuffer get(short[] dst) {
+        return get(dst, 0, dst.length);
+    }
+
+    // Returns a new view sharing the same samples, with the same capacity, limit and position.
+    public SampleBuffer duplicate() {
+        SampleBuffer buffer = new SampleBuffer(mSource, mCapacity);
+        buffer.mLimit = mLimit;
+        buffer.mPosition = mPosition;
+        return buffer;
+    }
+}
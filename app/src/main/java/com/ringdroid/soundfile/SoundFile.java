@@ -35,43 +35,97 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serial;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
-import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SoundFile {
     private static final String TAG = "SoundFile";
-    // VisibleForTesting
-    static long sMaxAllowedMemoryOverride = -1;
+    // Maximum size of the PCM data of a file, in bytes, whatever its storage. -1 for no limit.
+    private static long sPcmBudgetBytes = -1;
+    // Memory class of the device, in MB, or 0 to use the maximum heap size instead.
+    private static int sMemoryClass = 0;
+    // Minimum number of new frames to decode before notifying the frame gains listener.
+    private static final int FRAME_GAINS_CHUNK = 256;
+    // Duration of the recordings for which their storage is chosen.
+    private static final int RECORDING_EXPECTED_SECONDS = 10 * 60;
+    // Size of the buffers passed from the capture thread to the writer thread of recordings, in
+    // samples, and number of such buffers: about 3 seconds of audio at 44100Hz.
+    private static final int RECORDING_BUFFER_SAMPLES = 1024;
+    private static final int RECORDING_NUM_BUFFERS = 128;
+    // Prefix of the names of the temp files written to the cache directory.
+    private static final String TEMP_FILE_PREFIX = "ringdroid_";
+    // Maximum size of the decoded PCM cache, in bytes. 0 disables the cache.
+    private static long sPcmCacheMaxBytes = PcmCache.DEFAULT_MAX_BYTES;
+    // Whether long files may be decoded with several codecs in parallel.
+    private static boolean sParallelDecoding = false;
+    // Whether files are decoded with an asynchronous codec instead of polling it.
+    private static boolean sAsyncDecoding = false;
+    // Whether only the regions of files which are read are decoded, instead of whole files.
+    private static boolean sLazyDecoding = false;
+    // Whether the approximate frame gains of long files are computed first from a preview.
+    private static boolean sPreviewDecoding = true;
+    // Whether the AAC track of .m4a files is cut without being re-encoded, when possible.
+    private static boolean sLosslessCutting = true;
+    // Whether recordings are encoded to AAC while they are captured.
+    private static boolean sEncodeWhileRecording = true;
     private ProgressListener mProgressListener = null;
-    private File mInputFile = null;
+    private FrameGainsListener mFrameGainsListener = null;
+    private InputSource mSource = null;
     // Member variables representing frame data
     private String mFileType;
-    private int mFileSize;
+    private long mFileSize;
     private int mAvgBitRate; // Average bit rate in kbps.
     private int mSampleRate;
     private int mChannels;
-    private int mNumSamples; // total number of samples per channel in audio file
-    private ByteBuffer mDecodedBytes; // Raw audio data (memory-mapped from disk for large files)
+    private long mNumSamples; // total number of samples per channel in audio file
+    // Raw audio data, memory-mapped from disk in segments so that files of any size can be decoded.
+    // null when the file is decoded lazily by mRegionDecoder.
+    private PcmStore mPcm;
+    private CompressedPcmStore mCompressedPcm = null; // Set instead of mPcm when compressing.
+    private RegionDecoder mRegionDecoder = null;
+    // Number of bytes decoded so far while reading the file.
+    private long mNumDecodedBytes;
     // mDecodedSamples has the following format:
     // {s1c1, s1c2, ..., s1cM, s2c1, ..., s2cM, ..., sNc1, ..., sNcM}
     // where sicj is the ith sample of the jth channel (a sample is a signed short)
     // M is the number of channels (e.g. 2 for stereo) and N is the number of
     // samples per channel.
-    private ShortBuffer mDecodedSamples; // shared buffer with mDecodedBytes.
-    // Temp file backing the memory-mapped PCM buffer (null for short files).
+    private SampleBuffer mDecodedSamples; // view of mPcm, set once the whole file is read.
+    // Directory of the temp files written while the file is saved, or null for the default one.
+    private File mCacheDir = null;
+    // Temp file backing the memory-mapped PCM buffer, deleted on release(). null when the buffer
+    // is backed by a file of the PCM cache.
     private File mPcmTempFile = null;
     private RandomAccessFile mPcmRaf = null;
     private FileChannel mPcmChannel = null;
     // Member variables for hack (making it work with old version, until app just
     // uses the samples).
-    private int mNumFrames;
-    private int[] mFrameGains;
+    // Both are written by the decoding thread while the file is being read and can be read
+    // concurrently from other threads: mNumFrames must be read before mFrameGains.
+    private volatile int mNumFrames;
+    private volatile int[] mFrameGains;
+    // Number of frames whose gain has been computed from the decoded samples. While the file is
+    // being decoded after a preview, mNumFrames is the number of frames of the preview, and the
+    // gains of the frames after the first mNumDecodedFrames ones are the preview's.
+    private int mNumDecodedFrames;
+    private int mNumPreviewFrames;
+    private int mLastNotifiedNumFrames;
+    // Computes the frame gains while the file is being decoded, null otherwise.
+    private FrameGainAnalyzer mFrameGainAnalyzer = null;
+    // Peaks of the samples analyzed so far, written by the decoding thread. null if the samples
+    // have not been analyzed, e.g. when the frame gains were read from a peak file.
+    private volatile PeakPyramid mPeakPyramid = null;
     private float mGain = 1.0f;
+    // AAC encoding of the recording, done while it is captured, or null.
+    private RecordingEncoder mRecordingEncoder = null;
+    // Number of buffers of a recording dropped because they could not be written fast enough.
+    private long mRecordingOverruns = 0;
 
     // A SoundFile object should only be created using the static methods create()
     // and record().
@@ -109,12 +163,48 @@ public class SoundFile {
     // Create and return a SoundFile object using the file fileName.
     public static SoundFile create(File cacheDir, String fileName,
             ProgressListener progressListener) throws java.io.IOException, InvalidInputException {
-        // First check that the file exists and that its extension is supported.
+        return create(cacheDir, fileName, progressListener, null);
+    }
+
+    // Create and return a SoundFile object using the file fileName. frameGainsListener, if not
+    // null, is notified from the decoding thread each time a new chunk of frame gains is available,
+    // so that the waveform can be displayed before the whole file is decoded.
+    public static SoundFile create(File cacheDir, String fileName,
+            ProgressListener progressListener, FrameGainsListener frameGainsListener)
+            throws java.io.IOException, InvalidInputException {
+        // First check that the file exists.
         File f = new File(fileName);
         if (!f.exists()) {
             throw new java.io.FileNotFoundException(fileName);
         }
-        String name = f.getName().toLowerCase();
+        return create(cacheDir, new InputSource(f), progressListener, frameGainsListener);
+    }
+
+    // Create and return a SoundFile object using the file or content URI uri. Content URIs of any
+    // document provider are read through file descriptors, without being resolved to a path or
+    // copied.
+    public static SoundFile create(Context context, Uri uri, ProgressListener progressListener)
+            throws java.io.IOException, InvalidInputException {
+        return create(context, uri, progressListener, null);
+    }
+
+    // Create and return a SoundFile object using the file or content URI uri, notifying
+    // frameGainsListener as the frame gains are computed.
+    public static SoundFile create(Context context, Uri uri, ProgressListener progressListener,
+            FrameGainsListener frameGainsListener)
+            throws java.io.IOException, InvalidInputException {
+        return create(context.getCacheDir(), InputSource.fromUri(context, uri), progressListener,
+                frameGainsListener);
+    }
+
+    // Create and return a SoundFile object reading source, e.g. a content URI opened with
+    // InputSource.fromUri(), whose name can be shown while it is decoded. Returns null if the
+    // extension of this name is not supported, or if the decoding is canceled.
+    public static SoundFile create(File cacheDir, InputSource source,
+            ProgressListener progressListener, FrameGainsListener frameGainsListener)
+            throws java.io.IOException, InvalidInputException {
+        // Check that the extension of the file is supported.
+        String name = source.getName().toLowerCase();
         String[] components = name.split("\\.");
         if (components.length < 2) {
             return null;
@@ -124,9 +214,11 @@ public class SoundFile {
         }
         SoundFile soundFile = new SoundFile();
         soundFile.setProgressListener(progressListener);
+        soundFile.mFrameGainsListener = frameGainsListener;
         boolean readCompleted = false;
+        long startNs = Metrics.begin(Metrics.Stage.DECODE);
         try {
-            soundFile.ReadFile(cacheDir, f);
+            soundFile.ReadFile(cacheDir, source);
             readCompleted = true;
             // Decoding can return early when canceled by the progress listener.
             // In that case, ensure temp PCM resources are freed and report no file loaded.
@@ -136,24 +228,123 @@ public class SoundFile {
             }
             return soundFile;
         } finally {
+            long numBytes = soundFile.mNumSamples * soundFile.mChannels * 2;
+            Metrics.end(Metrics.Stage.DECODE, startNs, numBytes,
+                    soundFile.getPcmDurationUs(numBytes));
             if (!readCompleted) {
                 soundFile.release();
             }
         }
     }
 
-    // Create and return a SoundFile object by recording a mono audio stream.
-    public static SoundFile record(ProgressListener progressListener) {
+    // Set the maximum size, in bytes, of the cache keeping the decoded PCM data of the most
+    // recently opened files across sessions. 0 disables the cache.
+    public static void setPcmCacheMaxBytes(long maxBytes) {
+        sPcmCacheMaxBytes = maxBytes;
+    }
+
+    // Allow long files to be split into several ranges decoded in parallel, one per CPU core,
+    // whether their PCM data is mapped or kept in memory. Files are decoded sequentially if this
+    // fails, e.g. when the device cannot run enough codecs at once. Disabled by default.
+    public static void setParallelDecoding(boolean parallelDecoding) {
+        sParallelDecoding = parallelDecoding;
+    }
+
+    static boolean isParallelDecoding() {
+        return sParallelDecoding;
+    }
+
+    // Decode files with a MediaCodec running in asynchronous mode, driven by callbacks on a
+    // dedicated thread, instead of polling it. Files whose codec fails in this mode before
+    // decoding anything are decoded by polling it. Disabled by default.
+    public static void setAsyncDecoding(boolean asyncDecoding) {
+        sAsyncDecoding = asyncDecoding;
+    }
+
+    static boolean isAsyncDecoding() {
+        return sAsyncDecoding;
+    }
+
+    // Decode only the regions of files which are played or exported, when they are read, instead
+    // of decoding whole files to disk when they are opened. Opening a file still decodes it once
+    // to compute its frame gains, unless they were saved in the PCM cache, but without storing the
+    // decoded samples. Files too long to be stored are always decoded this way.
+    public static void setLazyDecoding(boolean lazyDecoding) {
+        sLazyDecoding = lazyDecoding;
+    }
+
+    // Before decoding a long file, compute approximate frame gains for the whole file from a
+    // preview decoding a fraction of it, so that the whole waveform can be displayed quickly. The
+    // exact gains replace them as the file is decoded.
+    public static void setPreviewDecoding(boolean previewDecoding) {
+        sPreviewDecoding = previewDecoding;
+    }
+
+    // Set the maximum size, in bytes, of the PCM data of a file, whether it is stored in memory or
+    // in a mapped file. Longer files are rejected, and recordings stop at this size. -1 removes
+    // the limit.
+    public static void setPcmBudget(long maxBytes) {
+        sPcmBudgetBytes = maxBytes;
+    }
+
+    // Set the memory class of the device, in MB, as returned by ActivityManager.getMemoryClass().
+    // The PCM data of short files is kept in memory, within a fraction of it, and the data of
+    // longer files is stored in mapped temp files.
+    public static void setMemoryClass(int memoryClass) {
+        sMemoryClass = memoryClass;
+    }
+
+    // When saving a selection of an .m4a file holding an AAC LC track as an .m4a file, copy the
+    // AAC frames covering the selection as they are instead of decoding and re-encoding them. The
+    // selection is then extended to whole AAC frames of 1024 samples, and to the frame before it,
+    // which its first frame overlaps. Files whose gain has been changed are always re-encoded.
+    // This also enables WriteMP3File() for MP3 files.
+    public static void setLosslessCutting(boolean losslessCutting) {
+        sLosslessCutting = losslessCutting;
+    }
+
+    // Encode recordings to AAC while they are captured, in a temp file of the cache directory, so
+    // that saving a selection of a recording as an .m4a file copies the AAC frames covering it, as
+    // setLosslessCutting() does for .m4a files, instead of encoding it after the recording. This
+    // is the default. Recordings made without a cache directory are not encoded this way.
+    public static void setEncodeWhileRecording(boolean encodeWhileRecording) {
+        sEncodeWhileRecording = encodeWhileRecording;
+    }
+
+    // Release the codecs kept idle to be reused by the next decoding or encoding, e.g. when the
+    // app goes to the background, so that they do not hold codec instances meanwhile, instead of
+    // 30 seconds after their last use.
+    public static void releaseIdleCodecs() {
+        CodecPool.releaseIdleCodecs();
+    }
+
+    // Create and return a SoundFile object by recording a mono audio stream. Long recordings are
+    // stored in a temp file in cacheDir, if not null.
+    public static SoundFile record(File cacheDir, ProgressListener progressListener) {
+        return record(cacheDir, progressListener, null, null);
+    }
+
+    // Record audio until progressListener asks to stop. frameGainsListener, if not null, is
+    // notified as the frame gains of the recording are computed, so that its waveform can be
+    // displayed while it goes on, and levelListener, if not null, receives the level of each block
+    // of samples recorded. Both are called from the thread writing the recording.
+    public static SoundFile record(File cacheDir, ProgressListener progressListener,
+            FrameGainsListener frameGainsListener, LevelListener levelListener) {
         if (progressListener == null) {
             // must have a progessListener to stop the recording.
             return null;
         }
         SoundFile soundFile = new SoundFile();
         soundFile.setProgressListener(progressListener);
-        soundFile.RecordAudio();
+        soundFile.mFrameGainsListener = frameGainsListener;
+        soundFile.RecordAudio(cacheDir, levelListener);
         return soundFile;
     }
 
+    public static SoundFile record(ProgressListener progressListener) {
+        return record(null, progressListener);
+    }
+
     public String getFiletype() {
         return mFileType;
     }
@@ -174,12 +365,19 @@ public class SoundFile {
         return mChannels;
     }
 
-    public int getNumSamples() {
+    public long getNumSamples() {
         return mNumSamples; // Number of samples per channel.
     }
 
+    // Number of buffers of RECORDING_BUFFER_SAMPLES samples dropped from a recording because the
+    // captured audio was not stored fast enough. 0 for files which were not recorded.
+    public long getRecordingOverruns() {
+        return mRecordingOverruns;
+    }
+
     // Should be removed when the app will use directly the samples instead of the
     // frames.
+    // While the file is being decoded, this is the number of frames decoded so far.
     public int getNumFrames() {
         return mNumFrames;
     }
@@ -192,13 +390,53 @@ public class SoundFile {
 
     // Should be removed when the app will use directly the samples instead of the
     // frames.
+    // While the file is being decoded, the returned array may be longer than getNumFrames(), in
+    // which case only the first getNumFrames() values are valid.
     public int[] getFrameGains() {
         return mFrameGains;
     }
 
-    public ShortBuffer getSamples() {
+    // Fills min and max with the lowest and highest sample values of all channels, divided by 256,
+    // of numPixels consecutive ranges of samplesPerPixel samples starting at firstSample, and
+    // returns the number of ranges filled. The peaks of the samples which have not been analyzed
+    // yet are approximated from the frame gains, e.g. the ones of a preview or of a peak file.
+    public int getPeaks(long firstSample, long samplesPerPixel, int numPixels, byte[] min,
+            byte[] max) {
+        PeakPyramid peakPyramid = mPeakPyramid;
+        int i = peakPyramid != null
+                ? peakPyramid.getPeaks(firstSample, samplesPerPixel, numPixels, -1, min, max)
+                : 0;
+        // The number of frames must be read before the gains, see getFrameGains().
+        int numFrames = mNumFrames;
+        int[] frameGains = mFrameGains;
+        if (frameGains == null) {
+            // Nothing decoded yet, or released.
+            return i;
+        }
+        numFrames = Math.min(numFrames, frameGains.length);
+        for (; i < numPixels; i++) {
+            long start = firstSample + i * samplesPerPixel;
+            long firstFrame = start / getSamplesPerFrame();
+            if (firstFrame >= numFrames) {
+                break;
+            }
+            long lastFrame = Math.min((start + samplesPerPixel - 1) / getSamplesPerFrame(),
+                    numFrames - 1);
+            int gain = 0;
+            for (int frame = (int) firstFrame; frame <= lastFrame; frame++) {
+                gain = Math.max(gain, frameGains[frame]);
+            }
+            // A frame gain is the square root of the highest absolute value of the frame.
+            int peak = Math.min(gain * gain, Short.MAX_VALUE) >> 8;
+            min[i] = (byte) -peak;
+            max[i] = (byte) peak;
+        }
+        return i;
+    }
+
+    public SampleBuffer getSamples() {
         if (mDecodedSamples != null) {
-            return mDecodedSamples.asReadOnlyBuffer();
+            return mDecodedSamples.duplicate();
         } else {
             return null;
         }
@@ -210,12 +448,21 @@ public class SoundFile {
 
     /**
      * Release the decoded audio data to free up memory. Closes and deletes any temporary PCM file
-     * used for disk-backed decoding. Should be called when the SoundFile is no longer needed.
+     * used for disk-backed decoding. Files of the PCM cache are kept. Should be called when the
+     * SoundFile is no longer needed.
      */
     public void release() {
-        mDecodedBytes = null;
+        mPcm = null;
+        mCompressedPcm = null;
         mDecodedSamples = null;
+        mNumFrames = 0;
         mFrameGains = null;
+        mFrameGainAnalyzer = null;
+        mPeakPyramid = null;
+        if (mRegionDecoder != null) {
+            mRegionDecoder.release();
+            mRegionDecoder = null;
+        }
         if (mPcmChannel != null) {
             try {
                 mPcmChannel.close();
@@ -237,19 +484,55 @@ public class SoundFile {
             }
             mPcmTempFile = null;
         }
+        if (mRecordingEncoder != null) {
+            mRecordingEncoder.release();
+            mRecordingEncoder = null;
+        }
     }
 
-    private void ReadFile(File cacheDir, File inputFile)
+    private void ReadFile(File cacheDir, InputSource source)
             throws java.io.IOException, InvalidInputException {
+        mCacheDir = cacheDir;
+        deleteStaleTempFiles(cacheDir);
+        mSource = source;
+        String[] components = mSource.getName().split("\\.");
+        mFileType = components[components.length - 1];
+        mFileSize = mSource.length();
+
+        // The samples of uncompressed WAV files are mapped in place, without being decoded.
+        if (mFileType.equalsIgnoreCase("wav") && ReadWAVFile()) {
+            return;
+        }
+
+        // Map the PCM data decoded in a previous session if the file has not changed since.
+        // Otherwise, if its frame gains were saved, publish them right away so that the waveform
+        // can be displayed while the file is being decoded, and skip the gains computation.
+        PcmCache pcmCache = null;
+        String pcmCacheKey = null;
+        boolean hasPeaks = false;
+        if (cacheDir != null && sPcmCacheMaxBytes > 0) {
+            pcmCache = new PcmCache(cacheDir, sPcmCacheMaxBytes);
+            pcmCacheKey = PcmCache.getKey(mSource);
+            if (pcmCacheKey != null) {
+                PeakFile peaks = pcmCache.getPeaks(pcmCacheKey);
+                PcmCache.Entry entry = pcmCache.get(pcmCacheKey);
+                if (entry != null && ReadCachedPcm(entry, peaks)) {
+                    if (peaks == null) {
+                        savePeaks(pcmCache, pcmCacheKey);
+                    }
+                    return;
+                }
+                hasPeaks = peaks != null && setFrameGains(peaks);
+                if (hasPeaks && mFrameGainsListener != null) {
+                    mFrameGainsListener.onFrameGainsAvailable(this, mNumFrames);
+                }
+            }
+        }
+
         MediaExtractor extractor = new MediaExtractor();
         MediaFormat format = null;
         int i;
-
-        mInputFile = inputFile;
-        String[] components = mInputFile.getPath().split("\\.");
-        mFileType = components[components.length - 1];
-        mFileSize = (int) mInputFile.length();
-        extractor.setDataSource(mInputFile.getPath());
+        mSource.setDataSource(extractor);
         int numTracks = extractor.getTrackCount();
         // find and select the first audio track present in the file.
         for (i = 0; i < numTracks; i++) {
@@ -261,53 +544,125 @@ public class SoundFile {
             }
         }
         if (i == numTracks) {
-            throw new InvalidInputException("No audio track found in " + mInputFile);
+            throw new InvalidInputException("No audio track found in " + mSource);
         }
         assert format != null;
-        mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        // Keep the PCM data of short files in memory, and map the data of longer files from a
+        // temp file, so that files of any size can be decoded without being limited by the Java
+        // heap. Files which fit in no storage are decoded lazily, if the regions cached by the
+        // RegionDecoder fit in the heap.
+        StoragePolicy.Storage storage = null;
+        long expectedBytes = 0;
+        if (!sLazyDecoding) {
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            expectedBytes = (long) ((format.getLong(MediaFormat.KEY_DURATION) / 1000000.f)
+                    * format.getInteger(MediaFormat.KEY_SAMPLE_RATE) + 0.5f) * channels * 2;
+            long freeSpace = cacheDir != null ? cacheDir.getUsableSpace() : 0;
+            StoragePolicy policy = getStoragePolicy();
+            storage = policy.choose(expectedBytes, freeSpace);
+            if (storage == null && policy.getMaxBytes(StoragePolicy.Storage.HEAP,
+                    freeSpace) < RegionDecoder.getCacheBytes(channels)) {
+                extractor.release();
+                throw new InvalidInputException(
+                        "Audio file is too long for the available memory: " + mSource);
+            }
+        }
+        // When decoding lazily, the file is only decoded here to compute its frame gains and its
+        // exact length, and not at all if they are already known from its peak file.
+        boolean lazy = storage == null;
+        if (lazy) {
+            Metrics.count("pcm.storage.lazy", 1);
+        }
+        boolean skipDecoding = lazy && hasPeaks;
+        if (!skipDecoding) {
+            mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        }
 
-        // Compute the expected decoded PCM size to pre-allocate the disk-backed buffer.
-        // Uses long arithmetic to avoid int overflow for files > ~24 min at 44100Hz.
+        // Compute the expected number of samples, to size the frame gains array and to stop the
+        // decoding on devices which never signal the end of the stream.
         long expectedNumSamples = (long) ((format.getLong(MediaFormat.KEY_DURATION) / 1000000.f)
                 * mSampleRate + 0.5f);
-        long expectedMemory = expectedNumSamples * mChannels * 2;
 
         MediaCodec codec = null;
         try {
-            codec = MediaCodec.createDecoderByType(
-                    Objects.requireNonNull(format.getString(MediaFormat.KEY_MIME)));
-            codec.configure(format, null, null, 0);
-            codec.start();
-
-            int decodedSamplesSize = 0; // size of the output buffer containing decoded samples.
-            byte[] decodedSamples = null;
             int sample_size;
             MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
             long presentation_time;
             int tot_size_read = 0;
             boolean done_reading = false;
 
-            // Use disk-backed memory-mapped buffer so files of any size can be decoded
-            // without being limited by Java heap. The OS handles paging automatically.
-            File pcmParentDir = cacheDir;
-            if (pcmParentDir == null) {
-                throw new IOException("Cannot determine app cache directory for PCM temp buffer");
-            }
-            String pcmBufferName = "ringdroid_pcm_"
-                    + Integer.toHexString(mInputFile.getAbsolutePath().hashCode()) + ".raw";
-            mPcmTempFile = new File(pcmParentDir, pcmBufferName);
-            mPcmTempFile.deleteOnExit();
-            long initialSize = Math.max(expectedMemory, 1L << 20); // at least 1MB
-            mPcmRaf = new RandomAccessFile(mPcmTempFile, "rw");
-            mPcmRaf.setLength(initialSize);
-            mPcmChannel = mPcmRaf.getChannel();
-            MappedByteBuffer mappedBuffer = mPcmChannel.map(FileChannel.MapMode.READ_WRITE, 0,
-                    initialSize);
-            mDecodedBytes = mappedBuffer;
+            if (!lazy) {
+                createPcmStore(storage, expectedBytes, cacheDir, pcmCache);
+            }
+            mNumDecodedBytes = 0;
+            if (!hasPeaks) {
+                mNumFrames = 0;
+                mFrameGains = new int[0];
+            }
+            mNumDecodedFrames = 0;
+            mNumPreviewFrames = 0;
+            mLastNotifiedNumFrames = 0;
+            mFrameGainAnalyzer = null;
+            mPeakPyramid = null;
+
+            // Decode long files in parallel if enabled, and fall back to the sequential decoding
+            // below if that fails.
+            boolean decoded = skipDecoding;
+            int numRanges = sParallelDecoding && !lazy && mPcm != null
+                    ? ParallelDecoder.getNumRanges(format.getLong(MediaFormat.KEY_DURATION))
+                    : 1;
+            // Parallel decoding is fast enough not to need a preview.
+            int previewStride = sPreviewDecoding && !hasPeaks && !skipDecoding && numRanges == 1
+                    ? PreviewDecoder.getStride(format.getLong(MediaFormat.KEY_DURATION))
+                    : 0;
+            if (previewStride > 0 && !DecodePreview(i, format, previewStride, expectedNumSamples)) {
+                return; // Canceled.
+            }
+            if (numRanges > 1) {
+                try {
+                    if (!DecodeInParallel(i, format, numRanges, hasPeaks)) {
+                        return; // Canceled.
+                    }
+                    decoded = true;
+                    analyzePcm(false);
+                } catch (IOException e) {
+                    Log.w(TAG, "Parallel decoding failed, decoding sequentially", e);
+                    mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    mPcm.setSize(0);
+                    mNumDecodedBytes = 0;
+                    if (!hasPeaks) {
+                        mNumFrames = 0;
+                        mNumDecodedFrames = 0;
+                        mLastNotifiedNumFrames = 0;
+                    }
+                }
+            }
+            if (!decoded && sAsyncDecoding) {
+                try {
+                    if (!DecodeAsync(extractor, format, expectedNumSamples, hasPeaks)) {
+                        return; // Canceled.
+                    }
+                    decoded = true;
+                } catch (IOException e) {
+                    if (mNumDecodedBytes > 0) {
+                        throw e;
+                    }
+                    // Nothing was decoded yet, e.g. the codec does not support the asynchronous
+                    // mode: poll it instead.
+                    Log.w(TAG, "Asynchronous decoding failed, polling the codec", e);
+                    extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                }
+            }
+            if (!decoded) {
+                codec = CodecPool.acquireDecoder(format);
+                codec.start();
+            }
+
             boolean firstSampleData = true;
             boolean outputFormatUpdated = false;
-            while (true) {
+            while (!decoded) {
 
                 // read data from file and feed it to the decoder input buffers.
                 int inputBufferIndex = codec.dequeueInputBuffer(100);
@@ -315,7 +670,10 @@ public class SoundFile {
                     ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
                     if (inputBuffer != null) {
                         inputBuffer.clear();
+                        long extractStartNs = Metrics.begin(Metrics.Stage.DECODE_EXTRACT);
                         sample_size = extractor.readSampleData(inputBuffer, 0);
+                        Metrics.end(Metrics.Stage.DECODE_EXTRACT, extractStartNs,
+                                Math.max(sample_size, 0), 0);
                         if (firstSampleData && Objects
                                 .equals(format.getString(MediaFormat.KEY_MIME), "audio/mp4a-latm")
                                 && sample_size == 2) {
@@ -354,7 +712,9 @@ public class SoundFile {
                 }
 
                 // Get decoded stream from the decoder output buffers.
+                long codecStartNs = Metrics.begin(Metrics.Stage.DECODE_CODEC);
                 int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
+                Metrics.end(Metrics.Stage.DECODE_CODEC, codecStartNs);
                 if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED
                         && !outputFormatUpdated) {
                     MediaFormat outputFormat = codec.getOutputFormat();
@@ -372,33 +732,15 @@ public class SoundFile {
                 if (outputBufferIndex >= 0 && info.size > 0) {
                     ByteBuffer outputBuffer = codec.getOutputBuffer(outputBufferIndex);
                     if (outputBuffer != null) {
-                        if (decodedSamplesSize < info.size) {
-                            decodedSamplesSize = info.size;
-                            decodedSamples = new byte[decodedSamplesSize];
-                        }
-                        outputBuffer.get(decodedSamples, 0, info.size);
+                        outputBuffer.position(info.offset);
+                        outputBuffer.limit(info.offset + info.size);
+                        appendDecodedSamples(outputBuffer, expectedNumSamples, hasPeaks);
                         outputBuffer.clear();
-                        // Check if buffer is big enough. Remap file if needed.
-                        if (mDecodedBytes.remaining() < info.size) {
-                            int position = mDecodedBytes.position();
-                            long newSize = (long) ((position * (1.0 * mFileSize / tot_size_read))
-                                    * 1.2);
-                            if (newSize - position < info.size + 5L * (1 << 20)) {
-                                newSize = position + info.size + 5L * (1 << 20);
-                            }
-                            // Extend the file and remap.
-                            mPcmRaf.setLength(newSize);
-                            MappedByteBuffer newMap = mPcmChannel
-                                    .map(FileChannel.MapMode.READ_WRITE, 0, newSize);
-                            newMap.position(position);
-                            mDecodedBytes = newMap;
-                        }
-                        mDecodedBytes.put(decodedSamples, 0, info.size);
                     }
                     codec.releaseOutputBuffer(outputBufferIndex, false);
                 }
                 if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
-                        || (mDecodedBytes.position() / (2 * mChannels)) >= expectedNumSamples) {
+                        || mNumDecodedBytes / (2 * mChannels) >= expectedNumSamples) {
                     // We got all the decoded data from the decoder. Stop here.
                     // Theoretically dequeueOutputBuffer(info, ...) should have set info.flags to
                     // MediaCodec.BUFFER_FLAG_END_OF_STREAM. However some phones (e.g. Samsung S3)
@@ -414,63 +756,464 @@ public class SoundFile {
                     break;
                 }
             }
-            mNumSamples = mDecodedBytes.position() / (mChannels * 2); // One sample = 2 bytes.
-            mDecodedBytes.rewind();
-            mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-            mDecodedSamples = mDecodedBytes.asShortBuffer();
-            mAvgBitRate = (int) ((mFileSize * 8) * ((float) mSampleRate / mNumSamples) / 1000);
-
-            // Temporary hack to make it work with the old version.
-            mNumFrames = mNumSamples / getSamplesPerFrame();
-            if (mNumSamples % getSamplesPerFrame() != 0) {
-                mNumFrames++;
-            }
-            mFrameGains = new int[mNumFrames];
-            int j;
-            int gain, value;
-            for (i = 0; i < mNumFrames; i++) {
-                gain = -1;
-                for (j = 0; j < getSamplesPerFrame(); j++) {
-                    value = 0;
-                    for (int k = 0; k < mChannels; k++) {
-                        if (mDecodedSamples.remaining() > 0) {
-                            value += java.lang.Math.abs(mDecodedSamples.get());
-                        }
-                    }
-                    value /= mChannels;
-                    if (gain < value) {
-                        gain = value;
+            if (!skipDecoding) {
+                mNumSamples = mNumDecodedBytes / (mChannels * 2); // One sample = 2 bytes.
+            }
+            if (mPeakPyramid != null) {
+                mPeakPyramid.finish();
+            }
+            if (!hasPeaks) {
+                if (mNumPreviewFrames > 0) {
+                    // Drop the gains of the preview, even past the end of the decoded samples.
+                    mNumPreviewFrames = 0;
+                    mNumFrames = mNumDecodedFrames;
+                }
+                if (mFrameGainAnalyzer != null) {
+                    // Compute the gain of the last partial frame.
+                    mFrameGainAnalyzer.finish();
+                    publishFrameGains(mFrameGainAnalyzer);
+                    mFrameGainAnalyzer = null;
+                }
+                if (mFrameGains.length != mNumFrames) {
+                    mFrameGains = Arrays.copyOf(mFrameGains, mNumFrames);
+                }
+                notifyFrameGains(true);
+            }
+            if (lazy) {
+                mRegionDecoder = new RegionDecoder(mSource, i, format, mSampleRate, mChannels,
+                        mNumSamples);
+                mRegionDecoder.buildIndex();
+                mDecodedSamples = new SampleBuffer(mRegionDecoder, mNumSamples * mChannels);
+            } else {
+                // Drop the last incomplete sample, if any.
+                if (mCompressedPcm != null) {
+                    mCompressedPcm.setSize(mNumSamples * mChannels * 2);
+                    Metrics.record("pcm.compressed_percent", mCompressedPcm.getCompressedSize()
+                            * 100 / Math.max(1, mCompressedPcm.size()));
+                } else {
+                    mPcm.setSize(mNumSamples * mChannels * 2);
+                }
+                mDecodedSamples = new SampleBuffer(getPcmSource(), mNumSamples * mChannels);
+            }
+            mAvgBitRate = (int) ((mFileSize * 8) * ((double) mSampleRate / mNumSamples) / 1000);
+            if (pcmCacheKey != null) {
+                if (!lazy && mPcmTempFile != null) {
+                    // Drop the space mapped ahead of the decoder, and hand the file over to the
+                    // cache. The mapped segments stay valid after the file is renamed.
+                    mPcmRaf.setLength(mPcm.size());
+                    if (pcmCache.put(pcmCacheKey, mPcmTempFile, mSampleRate, mChannels,
+                            mNumSamples)) {
+                        mPcmTempFile = null;
                     }
+                } else if (!lazy && mPcm != null) {
+                    putPcmInCache(pcmCache, pcmCacheKey);
+                }
+                if (!hasPeaks) {
+                    savePeaks(pcmCache, pcmCacheKey);
                 }
-                mFrameGains[i] = (int) Math.sqrt(gain); // here gain = sqrt(max value of 1st
-                                                        // channel)...
             }
-            mDecodedSamples.rewind();
         } finally {
             if (codec != null) {
-                try {
-                    codec.stop();
-                } catch (Exception ignored) {
-                }
-                codec.release();
+                CodecPool.recycle(codec);
             }
             extractor.release();
         }
     }
 
+    // Appends the PCM data between the position and the limit of buffer to the PCM store.
+    private void appendPcm(ByteBuffer buffer) throws IOException {
+        if (mCompressedPcm == null) {
+            mPcm.append(buffer);
+            return;
+        }
+        if (mCompressedPcm.size() == 0 && mCompressedPcm.getChannels() != mChannels) {
+            // The decoded format differs from the one of the track.
+            mCompressedPcm = new CompressedPcmStore(mChannels);
+        }
+        mCompressedPcm.append(buffer);
+    }
+
+    // Deletes the temp files of cacheDir (PCM data, recordings encoded while captured and encoded
+    // frames being saved) left by a previous process, e.g. one killed while using them.
+    private static void deleteStaleTempFiles(File cacheDir) {
+        if (cacheDir != null) {
+            PcmCache.deleteStaleTempFiles(cacheDir, TEMP_FILE_PREFIX);
+        }
+    }
+
+    // Returns the storage policy of the PCM data, for the memory of the device and the budget set.
+    private static StoragePolicy getStoragePolicy() {
+        long memoryBytes = sMemoryClass > 0
+                ? (long) sMemoryClass << 20
+                : Runtime.getRuntime().maxMemory();
+        return new StoragePolicy(memoryBytes, sPcmBudgetBytes);
+    }
+
+    // Creates an empty PCM store in storage. Mapped stores are backed by a new temp file, in
+    // pcmCache if not null, or else in cacheDir.
+    private void createPcmStore(StoragePolicy.Storage storage, long expectedBytes, File cacheDir,
+            PcmCache pcmCache) throws IOException {
+        Metrics.count("pcm.storage." + storage.getName(), 1);
+        Metrics.record("pcm.storage." + storage.getName() + ".expected_bytes", expectedBytes);
+        if (storage == StoragePolicy.Storage.COMPRESSED) {
+            mCompressedPcm = new CompressedPcmStore(mChannels);
+            return;
+        }
+        if (storage != StoragePolicy.Storage.MAPPED) {
+            mPcm = PcmStore.allocate(storage == StoragePolicy.Storage.DIRECT);
+            return;
+        }
+        // Each decoding gets its own temp file, so that two files can never overwrite each
+        // other's data.
+        if (pcmCache != null) {
+            mPcmTempFile = pcmCache.createTempFile();
+        } else {
+            mPcmTempFile = File.createTempFile(TEMP_FILE_PREFIX + "pcm_", ".raw", cacheDir);
+        }
+        mPcmTempFile.deleteOnExit();
+        mPcmRaf = new RandomAccessFile(mPcmTempFile, "rw");
+        mPcmChannel = mPcmRaf.getChannel();
+        mPcm = new PcmStore(mPcmChannel, FileChannel.MapMode.READ_WRITE);
+    }
+
+    // Writes the PCM data kept in memory to a new file of pcmCache, so that it does not need to be
+    // decoded again next time.
+    private void putPcmInCache(PcmCache pcmCache, String pcmCacheKey) {
+        File pcmFile = null;
+        try {
+            pcmFile = pcmCache.createTempFile();
+            try (FileOutputStream out = new FileOutputStream(pcmFile)) {
+                mPcm.writeTo(out.getChannel());
+            }
+            if (pcmCache.put(pcmCacheKey, pcmFile, mSampleRate, mChannels, mNumSamples)) {
+                pcmFile = null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache the PCM data of " + mSource, e);
+        } finally {
+            if (pcmFile != null && !pcmFile.delete() && pcmFile.exists()) {
+                Log.w(TAG, "Failed to delete temporary PCM file: " + pcmFile.getAbsolutePath());
+            }
+        }
+    }
+
+    // Appends the decoded samples between the position and the limit of buffer to the PCM store,
+    // unless decoding lazily, and computes their frame gains unless they are already known.
+    private void appendDecodedSamples(ByteBuffer buffer, long expectedNumSamples, boolean hasPeaks)
+            throws IOException {
+        int numBytes = buffer.remaining();
+        long audioUs = getPcmDurationUs(numBytes);
+        Metrics.record("decode.buffer_bytes", numBytes);
+        long analyzeStartNs = Metrics.begin(Metrics.Stage.DECODE_ANALYZE);
+        if (!hasPeaks) {
+            // Compute the frame gains on the fly, so that the decoded samples never need to be
+            // read back from the PCM file.
+            if (mFrameGainAnalyzer == null && mNumPreviewFrames > 0) {
+                // Start from the gains of the preview, so that they are displayed until the
+                // decoded samples replace them.
+                mFrameGainAnalyzer = new FrameGainAnalyzer(mChannels, getSamplesPerFrame(), 0,
+                        mFrameGains);
+            } else if (mFrameGainAnalyzer == null) {
+                mFrameGainAnalyzer = new FrameGainAnalyzer(mChannels, getSamplesPerFrame(), 0,
+                        (int) (expectedNumSamples / getSamplesPerFrame()) + 1);
+            }
+            mFrameGainAnalyzer.process(buffer);
+        }
+        if (mPeakPyramid == null) {
+            mPeakPyramid = new PeakPyramid(mChannels, expectedNumSamples);
+        }
+        mPeakPyramid.process(buffer);
+        Metrics.end(Metrics.Stage.DECODE_ANALYZE, analyzeStartNs, numBytes, audioUs);
+        mNumDecodedBytes += numBytes;
+        if (mPcm != null || mCompressedPcm != null) {
+            // Copy the decoded samples straight from the codec buffer into the PCM store,
+            // without going through the Java heap unless compressing them. New segments are
+            // mapped or allocated as the store grows.
+            long storeStartNs = Metrics.begin(Metrics.Stage.DECODE_STORE);
+            appendPcm(buffer);
+            Metrics.end(Metrics.Stage.DECODE_STORE, storeStartNs, numBytes, audioUs);
+            Metrics.count("decode.copied_bytes", numBytes);
+        }
+
+        // Let the listener know when enough new frames are available.
+        if (mFrameGainAnalyzer != null) {
+            publishFrameGains(mFrameGainAnalyzer);
+            notifyFrameGains(false);
+        }
+    }
+
+    // Decodes the selected track of extractor with an AsyncDecoder, appending the decoded samples
+    // to the PCM file. Returns false if the decoding has been canceled.
+    private boolean DecodeAsync(MediaExtractor extractor, MediaFormat format,
+            long expectedNumSamples, boolean hasPeaks) throws IOException {
+        AsyncDecoder decoder = new AsyncDecoder(extractor, format, new AsyncDecoder.Callback() {
+            private long mBytesRead = 0;
+
+            @Override
+            public boolean onSampleRead(int sampleSize) {
+                mBytesRead += sampleSize;
+                return mProgressListener != null
+                        && mProgressListener.reportProgress((float) mBytesRead / mFileSize);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaFormat outputFormat) {
+                mSampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                mChannels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                Log.d(TAG, "Decoder output format: " + mSampleRate + " Hz, " + mChannels
+                        + " channels");
+            }
+
+            @Override
+            public boolean onDecodedBuffer(ByteBuffer buffer) throws IOException {
+                appendDecodedSamples(buffer, expectedNumSamples, hasPeaks);
+                // See the polling loop in ReadFile() for why the decoding stops here.
+                return mNumDecodedBytes / (2 * mChannels) >= expectedNumSamples;
+            }
+        });
+        return decoder.decode();
+    }
+
+    // Decodes the input file with a ParallelDecoder into mPcm. Returns false if the decoding has
+    // been canceled.
+    private boolean DecodeInParallel(int trackIndex, MediaFormat format, int numRanges,
+            boolean hasPeaks) throws IOException {
+        ParallelDecoder decoder = new ParallelDecoder(mSource, trackIndex, format, mPcm, numRanges,
+                getSamplesPerFrame());
+        long numSamples = decoder.decode(fractionComplete -> {
+            if (decoder.getChannels() > 0) {
+                mSampleRate = decoder.getSampleRate();
+                mChannels = decoder.getChannels();
+            }
+            if (!hasPeaks) {
+                mFrameGains = decoder.getFrameGains();
+                mNumFrames = decoder.getNumFrames();
+                mNumDecodedFrames = mNumFrames;
+                notifyFrameGains(false);
+            }
+            return mProgressListener != null && mProgressListener.reportProgress(fractionComplete);
+        });
+        if (numSamples < 0) {
+            return false;
+        }
+        mSampleRate = decoder.getSampleRate();
+        mChannels = decoder.getChannels();
+        if (!hasPeaks) {
+            mFrameGains = decoder.getFrameGains();
+            mNumFrames = decoder.getNumFrames();
+            mNumDecodedFrames = mNumFrames;
+        }
+        mNumDecodedBytes = numSamples * mChannels * 2;
+        mPcm.setSize(mNumDecodedBytes);
+        return true;
+    }
+
+    // Decodes a preview of the input file with a PreviewDecoder, and publishes its approximate
+    // frame gains. If the preview fails, the file is decoded without it. Returns false if the
+    // decoding has been canceled.
+    private boolean DecodePreview(int trackIndex, MediaFormat format, int stride,
+            long expectedNumSamples) {
+        PreviewDecoder decoder = new PreviewDecoder(mSource, trackIndex, format, stride,
+                getSamplesPerFrame());
+        // Report the progress of the preview and of the full decoding as a whole, so that it does
+        // not go back to 0 between them.
+        ProgressListener listener = mProgressListener;
+        float share = PreviewDecoder.getProgressShare(stride);
+        ProgressListener previewListener = listener != null
+                ? fractionComplete -> listener.reportProgress(fractionComplete * share)
+                : null;
+        try {
+            if (!decoder.decode(expectedNumSamples, previewListener)) {
+                return false;
+            }
+        } catch (IOException e) {
+            // The progress of the full decoding is reported from 0 as without preview.
+            Log.w(TAG, "Preview decoding failed, decoding without preview", e);
+            return true;
+        }
+        if (listener != null) {
+            mProgressListener = fractionComplete -> listener
+                    .reportProgress(share + fractionComplete * (1 - share));
+        }
+        mSampleRate = decoder.getSampleRate();
+        mChannels = decoder.getChannels();
+        mFrameGains = decoder.getFrameGains();
+        mNumPreviewFrames = mFrameGains.length;
+        mNumFrames = mNumPreviewFrames;
+        if (mFrameGainsListener != null && mNumFrames > 0) {
+            mFrameGainsListener.onFrameGainsAvailable(this, mNumFrames);
+        }
+        return true;
+    }
+
+    // Publishes the frame gains computed so far by frameGainAnalyzer.
+    private void publishFrameGains(FrameGainAnalyzer frameGainAnalyzer) {
+        // Readers read mNumFrames first, so the frame gains must be updated first.
+        mFrameGains = frameGainAnalyzer.getFrameGains();
+        mNumDecodedFrames = frameGainAnalyzer.getNumFrames();
+        mNumFrames = Math.max(mNumDecodedFrames, mNumPreviewFrames);
+    }
+
+    // Notifies the frame gains listener when the gains of at least FRAME_GAINS_CHUNK new frames
+    // have been computed, or when any new frame has been computed if lastFrames is true.
+    private void notifyFrameGains(boolean lastFrames) {
+        if (mFrameGainsListener != null
+                && (mNumDecodedFrames - mLastNotifiedNumFrames >= FRAME_GAINS_CHUNK
+                        || (lastFrames && mNumDecodedFrames != mLastNotifiedNumFrames))) {
+            mLastNotifiedNumFrames = mNumDecodedFrames;
+            mFrameGainsListener.onFrameGainsAvailable(this, mNumFrames);
+        }
+    }
+
+    // Maps the PCM data of a cache entry instead of decoding the input file, and uses the given
+    // peaks (if not null) instead of computing the frame gains. Returns false if the entry could
+    // not be read, in which case the file must be decoded.
+    private boolean ReadCachedPcm(PcmCache.Entry entry, PeakFile peaks) {
+        // Files over the PCM budget are rejected by the decoding.
+        if (entry.numSamples == 0 || (sPcmBudgetBytes >= 0
+                && entry.numSamples * entry.channels * 2 > sPcmBudgetBytes)) {
+            return false;
+        }
+        try {
+            mPcmRaf = new RandomAccessFile(entry.pcmFile, "r");
+            mPcmChannel = mPcmRaf.getChannel();
+            mPcm = new PcmStore(mPcmChannel, FileChannel.MapMode.READ_ONLY);
+            mPcm.setSize(entry.numSamples * entry.channels * 2);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map cached PCM file: " + entry.pcmFile, e);
+            release();
+            return false;
+        }
+        mSampleRate = entry.sampleRate;
+        mChannels = entry.channels;
+        mNumSamples = entry.numSamples;
+        if (peaks == null || peaks.numSamples != mNumSamples || !setFrameGains(peaks)) {
+            analyzePcm(true);
+        }
+        if (mFrameGainsListener != null) {
+            mFrameGainsListener.onFrameGainsAvailable(this, mNumFrames);
+        }
+        mDecodedSamples = new SampleBuffer(mPcm, mNumSamples * mChannels);
+        mAvgBitRate = (int) ((mFileSize * 8) * ((double) mSampleRate / mNumSamples) / 1000);
+        return true;
+    }
+
+    // Maps the data chunk of the input file as the PCM store, if the file holds 16 bits PCM
+    // samples. The file is only read, and no temp file is created. Returns false if the file must
+    // be decoded instead.
+    private boolean ReadWAVFile() {
+        try {
+            mPcmChannel = mSource.openChannel();
+            WAVHeader header = WAVHeader.parse(mPcmChannel);
+            if (header == null || header.getNumSamples() == 0 || (sPcmBudgetBytes >= 0
+                    && header.getNumSamples() * header.getChannels() * 2 > sPcmBudgetBytes)) {
+                release();
+                return false;
+            }
+            mSampleRate = header.getSampleRate();
+            mChannels = header.getChannels();
+            mNumSamples = header.getNumSamples();
+            mPcm = PcmStore.map(mPcmChannel, header.getDataOffset(), mNumSamples * mChannels * 2);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map WAV file: " + mSource, e);
+            release();
+            return false;
+        }
+        analyzePcm(true);
+        if (mFrameGainsListener != null) {
+            mFrameGainsListener.onFrameGainsAvailable(this, mNumFrames);
+        }
+        mDecodedSamples = new SampleBuffer(mPcm, mNumSamples * mChannels);
+        mAvgBitRate = (int) ((mFileSize * 8) * ((double) mSampleRate / mNumSamples) / 1000);
+        return true;
+    }
+
+    // Computes the peaks of the whole PCM store, and its frame gains if computeFrameGains is true.
+    private void analyzePcm(boolean computeFrameGains) {
+        PeakPyramid peakPyramid = new PeakPyramid(mChannels, mNumSamples);
+        FrameGainAnalyzer frameGainAnalyzer = computeFrameGains
+                ? new FrameGainAnalyzer(mChannels, getSamplesPerFrame(), 0,
+                        (int) (mNumSamples / getSamplesPerFrame()) + 1)
+                : null;
+        // Process the mapped segments in place, one after the other.
+        for (long offset = 0; offset < mPcm.size();) {
+            ByteBuffer slice = mPcm.slice(offset);
+            peakPyramid.process(slice);
+            if (frameGainAnalyzer != null) {
+                frameGainAnalyzer.process(slice);
+            }
+            offset += slice.remaining();
+        }
+        peakPyramid.finish();
+        mPeakPyramid = peakPyramid;
+        if (frameGainAnalyzer != null) {
+            frameGainAnalyzer.finish();
+            publishFrameGains(frameGainAnalyzer);
+        }
+    }
+
+    // Sets the format and the frame gains from a peak file. Returns false if the peak file is not
+    // usable, in which case nothing is changed.
+    private boolean setFrameGains(PeakFile peaks) {
+        if (peaks.samplesPerFrame != getSamplesPerFrame() || peaks.channels <= 0
+                || peaks.numSamples <= 0) {
+            return false;
+        }
+        mSampleRate = peaks.sampleRate;
+        mChannels = peaks.channels;
+        mNumSamples = peaks.numSamples;
+        mFrameGains = peaks.frameGains;
+        mNumFrames = peaks.frameGains.length;
+        return true;
+    }
+
+    // Saves the frame gains, so that the waveform can be displayed right away the next time the
+    // file is opened.
+    private void savePeaks(PcmCache pcmCache, String pcmCacheKey) {
+        if (!pcmCache.putPeaks(pcmCacheKey, new PeakFile(mSampleRate, mChannels, mNumSamples,
+                getSamplesPerFrame(), Arrays.copyOf(mFrameGains, mNumFrames)))) {
+            Log.w(TAG, "Failed to save the peak file of " + mSource);
+        }
+    }
+
     @SuppressLint("MissingPermission")
-    private void RecordAudio() {
+    private void RecordAudio(File cacheDir, LevelListener levelListener) {
+        mCacheDir = cacheDir;
+        deleteStaleTempFiles(cacheDir);
         if (mProgressListener == null) {
             // A progress listener is mandatory here, as it will let us know when to stop
             // recording.
             return;
         }
-        mInputFile = null;
+        mSource = null;
         mFileType = "raw";
         mFileSize = 0;
         mSampleRate = 44100;
         mChannels = 1; // record mono audio.
-        short[] buffer = new short[1024]; // buffer contains 1 mono frame of 1024 16 bits samples
+
+        // Stream the recording to a mapped temp file if the cache directory has room for
+        // RECORDING_EXPECTED_SECONDS of it, so that its memory use does not grow with its length,
+        // and stop it when its storage is full.
+        StoragePolicy policy = getStoragePolicy();
+        long freeSpace = cacheDir != null ? cacheDir.getUsableSpace() : 0;
+        long expectedBytes = (long) RECORDING_EXPECTED_SECONDS * mSampleRate * 2;
+        if (sPcmBudgetBytes >= 0) {
+            expectedBytes = Math.min(expectedBytes, sPcmBudgetBytes);
+        }
+        StoragePolicy.Storage storage = policy.chooseForRecording(expectedBytes, freeSpace);
+        if (storage == null) {
+            storage = StoragePolicy.Storage.HEAP;
+        }
+        long maxBytes = policy.getMaxBytes(storage, freeSpace);
+        try {
+            createPcmStore(storage, expectedBytes, cacheDir, null);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create the PCM file, recording in memory", e);
+            storage = StoragePolicy.Storage.HEAP;
+            maxBytes = policy.getMaxBytes(storage, freeSpace);
+            mPcm = PcmStore.allocate(false);
+        }
+
         int minBufferSize = AudioRecord.getMinBufferSize(mSampleRate, AudioFormat.CHANNEL_IN_MONO,
                 AudioFormat.ENCODING_PCM_16BIT);
         // make sure minBufferSize can contain at least 1 second of audio (16 bits
@@ -481,106 +1224,212 @@ public class SoundFile {
         AudioRecord audioRecord = new AudioRecord(MediaRecorder.AudioSource.DEFAULT, mSampleRate,
                 AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, minBufferSize);
 
-        // Allocate memory for 20 seconds first. Reallocate later if more is needed.
-        mDecodedBytes = ByteBuffer.allocate(20 * mSampleRate * 2);
-        mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-        mDecodedSamples = mDecodedBytes.asShortBuffer();
-        audioRecord.startRecording();
-        while (true) {
-            // check if mDecodedSamples can contain 1024 additional samples.
-            if (mDecodedSamples.remaining() < 1024) {
-                // Try to allocate memory for 10 additional seconds.
-                int newCapacity = mDecodedBytes.capacity() + 10 * mSampleRate * 2;
-                ByteBuffer newDecodedBytes;
-                try {
-                    newDecodedBytes = ByteBuffer.allocate(newCapacity);
-                } catch (OutOfMemoryError oome) {
-                    break;
+        // This thread only reads the AudioRecord into the direct buffers of the ring, and the
+        // writer thread stores and analyzes them, so that a slow write or a slow progress listener
+        // cannot make the AudioRecord overrun.
+        CaptureRing ring = new CaptureRing(RECORDING_NUM_BUFFERS, RECORDING_BUFFER_SAMPLES * 2);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        FrameGainAnalyzer frameGainAnalyzer = new FrameGainAnalyzer(mChannels, getSamplesPerFrame(),
+                0, 20 * mSampleRate / getSamplesPerFrame());
+        PeakPyramid peakPyramid = new PeakPyramid(mChannels);
+        // The peaks and frame gains are published as they are computed, so that the waveform of
+        // the recording can be drawn while it goes on.
+        mPeakPyramid = peakPyramid;
+        if (sEncodeWhileRecording && cacheDir != null) {
+            try {
+                mRecordingEncoder = new RecordingEncoder(
+                        File.createTempFile(TEMP_FILE_PREFIX + "rec_", ".aac", cacheDir),
+                        mSampleRate, mChannels);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to start encoding the recording", e);
+            }
+        }
+        final StoragePolicy.Storage finalStorage = storage;
+        final long finalMaxBytes = maxBytes;
+        Thread writer = new Thread(() -> {
+            ByteBuffer buffer;
+            while ((buffer = ring.take()) != null) {
+                // Once the recording is stopped, drop what is left in the ring.
+                if (!stop.get()) {
+                    Metrics.record("record.pending_buffers", ring.getPendingBuffers());
+                    writeRecordedPcm(buffer, finalStorage, finalMaxBytes, frameGainAnalyzer,
+                            peakPyramid, levelListener, stop);
                 }
-                int position = mDecodedSamples.position();
-                mDecodedBytes.rewind();
-                newDecodedBytes.put(mDecodedBytes);
-                mDecodedBytes = newDecodedBytes;
-                mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-                mDecodedBytes.rewind();
-                mDecodedSamples = mDecodedBytes.asShortBuffer();
-                mDecodedSamples.position(position);
-            }
-            // TODO(nfaralli): maybe use the read method that takes a direct ByteBuffer
-            // argument.
-            audioRecord.read(buffer, 0, buffer.length);
-            mDecodedSamples.put(buffer);
-            // Let the progress listener know how many seconds have been recorded.
-            // The returned value tells us if we should keep recording or stop.
-            if (mProgressListener
-                    .reportProgress((float) (mDecodedSamples.position()) / mSampleRate)) {
+                ring.release();
+            }
+        }, "RecordingWriter");
+        writer.start();
+
+        audioRecord.startRecording();
+        while (!stop.get()) {
+            ByteBuffer buffer = ring.getWriteBuffer();
+            int length = audioRecord.read(buffer, buffer.capacity());
+            if (length < 0) {
+                Log.w(TAG, "Recording stopped, AudioRecord error " + length);
                 break;
             }
+            ring.publish(buffer, length);
         }
         audioRecord.stop();
         audioRecord.release();
-        mNumSamples = mDecodedSamples.position();
-        mDecodedSamples.rewind();
-        mDecodedBytes.rewind();
+        stop.set(true);
+        ring.close();
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mRecordingEncoder != null) {
+            try {
+                mRecordingEncoder.finish();
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to encode the recording, it will be encoded when saved", e);
+                mRecordingEncoder.release();
+                mRecordingEncoder = null;
+            }
+        }
+        mRecordingOverruns = ring.getOverruns();
+        Metrics.count("record.overruns", mRecordingOverruns);
+        Metrics.count("record.dropped_bytes", ring.getDroppedBytes());
+        if (mRecordingOverruns > 0) {
+            Log.w(TAG, "Dropped " + ring.getDroppedBytes() + " bytes of the recording in "
+                    + mRecordingOverruns + " overruns");
+        }
+        if (mPcmRaf != null) {
+            // The last segment of the mapped file may extend past the end of the recording.
+            try {
+                mPcmRaf.setLength(mPcm.size());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to truncate the PCM file", e);
+            }
+        }
+        mNumSamples = getPcmSource().size() / 2;
+        mDecodedSamples = new SampleBuffer(getPcmSource(), mNumSamples);
         mAvgBitRate = mSampleRate * 16 / 1000;
 
-        // Temporary hack to make it work with the old version.
-        mNumFrames = mNumSamples / getSamplesPerFrame();
-        if (mNumSamples % getSamplesPerFrame() != 0) {
-            mNumFrames++;
-        }
-        mFrameGains = new int[mNumFrames];
-        int i, j;
-        int gain, value;
-        for (i = 0; i < mNumFrames; i++) {
-            gain = -1;
-            for (j = 0; j < getSamplesPerFrame(); j++) {
-                if (mDecodedSamples.remaining() > 0) {
-                    value = Math.abs(mDecodedSamples.get());
-                } else {
-                    value = 0;
-                }
-                if (gain < value) {
-                    gain = value;
-                }
-            }
-            mFrameGains[i] = (int) Math.sqrt(gain); // here gain = sqrt(max value of 1st channel)...
+        // Only the last partial frame is left to analyze.
+        frameGainAnalyzer.finish();
+        publishFrameGains(frameGainAnalyzer);
+        mFrameGains = Arrays.copyOf(mFrameGains, mNumFrames);
+        peakPyramid.finish();
+        if (mFrameGainsListener != null) {
+            mFrameGainsListener.onFrameGainsAvailable(this, mNumFrames);
         }
-        mDecodedSamples.rewind();
         // DumpSamples(); // Uncomment this line to dump the samples in a TSV file.
     }
 
+    // Called by the writer thread of RecordAudio() with each buffer captured. Appends it to the
+    // PCM store and analyzes it, unless the storage is full or the progress listener asks to stop
+    // the recording, in which case stop is set.
+    private void writeRecordedPcm(ByteBuffer buffer, StoragePolicy.Storage storage, long maxBytes,
+            FrameGainAnalyzer frameGainAnalyzer, PeakPyramid peakPyramid,
+            LevelListener levelListener, AtomicBoolean stop) {
+        if (getPcmSource().size() + buffer.remaining() > maxBytes) {
+            stop.set(true);
+            return;
+        }
+        try {
+            appendPcm(buffer);
+        } catch (IOException | OutOfMemoryError e) {
+            Log.w(TAG, "Recording stopped, no space left in " + storage.getName() + " storage", e);
+            stop.set(true);
+            return;
+        }
+        buffer.rewind();
+        if (mRecordingEncoder != null) {
+            try {
+                mRecordingEncoder.encode(buffer);
+            } catch (IOException | RuntimeException e) {
+                // The recording goes on, and it will be encoded when it is saved.
+                Log.w(TAG, "Failed to encode the recording", e);
+                mRecordingEncoder.release();
+                mRecordingEncoder = null;
+            }
+        }
+        frameGainAnalyzer.process(buffer);
+        peakPyramid.process(buffer);
+        int numFrames = mNumFrames;
+        publishFrameGains(frameGainAnalyzer);
+        if (mFrameGainsListener != null && mNumFrames != numFrames) {
+            mFrameGainsListener.onFrameGainsAvailable(this, mNumFrames);
+        }
+        if (levelListener != null) {
+            long sumOfSquares = 0;
+            int peak = 0;
+            for (int i = buffer.position(); i + 1 < buffer.limit(); i += 2) {
+                int sample = buffer.getShort(i);
+                sumOfSquares += sample * sample;
+                peak = Math.max(peak, Math.abs(sample));
+            }
+            int numSamples = buffer.remaining() / 2;
+            float rms = numSamples > 0 ? (float) Math.sqrt((double) sumOfSquares / numSamples) : 0;
+            levelListener.onLevel(peak / 32768.0f, rms / 32768.0f);
+        }
+        // Let the progress listener know how many seconds have been recorded.
+        // The returned value tells us if we should keep recording or stop.
+        if (mProgressListener.reportProgress((float) (getPcmSource().size() / 2) / mSampleRate)) {
+            stop.set(true);
+        }
+    }
+
     // should be removed in the near future...
     public void WriteFile(File outputFile, int startFrame, int numFrames)
             throws java.io.IOException {
-        float startTime = (float) startFrame * getSamplesPerFrame() / mSampleRate;
-        float endTime = (float) (startFrame + numFrames) * getSamplesPerFrame() / mSampleRate;
         OutputStream outputStream = new FileOutputStream(outputFile);
-        WriteFile(outputStream, startTime, endTime);
+        WriteSamples(outputStream, (long) startFrame * getSamplesPerFrame(),
+                (long) numFrames * getSamplesPerFrame());
     }
 
     public void WriteFile(Context context, Uri outputUri, int startFrame, int numFrames)
             throws java.io.IOException {
-        float startTime = (float) startFrame * getSamplesPerFrame() / mSampleRate;
-        float endTime = (float) (startFrame + numFrames) * getSamplesPerFrame() / mSampleRate;
         OutputStream outputStream = context.getContentResolver().openOutputStream(outputUri);
         if (outputStream == null) {
             throw new IOException("Cannot open MediaStore output stream");
         }
-        WriteFile(outputStream, startTime, endTime);
+        WriteSamples(outputStream, (long) startFrame * getSamplesPerFrame(),
+                (long) numFrames * getSamplesPerFrame());
     }
 
     public void WriteFile(OutputStream outputStream, float startTime, float endTime)
             throws IOException {
-        int startOffset = (int) (startTime * mSampleRate) * 2 * mChannels;
-        int numSamples = (int) ((endTime - startTime) * mSampleRate);
+        if (endTime <= startTime) {
+            throw new IOException("Invalid time bounds: " + startTime + " to " + endTime);
+        }
+        WriteSamples(outputStream, (long) ((double) startTime * mSampleRate),
+                (long) ((double) (endTime - startTime) * mSampleRate));
+    }
+
+    private void WriteSamples(OutputStream outputStream, long startSample, long numSamples)
+            throws IOException {
+        long numBytes = Math.max(numSamples, 0) * 2 * mChannels;
+        long startNs = Metrics.begin(Metrics.Stage.ENCODE);
+        try {
+            EncodeSamples(outputStream, startSample, numSamples);
+        } finally {
+            Metrics.end(Metrics.Stage.ENCODE, startNs, numBytes, getPcmDurationUs(numBytes));
+        }
+    }
 
+    // Encodes numSamples samples (per channel) starting at startSample to an AAC stream in an
+    // .m4a container. Sample positions are long, so that multi-hour files can be exported.
+    private void EncodeSamples(OutputStream outputStream, long startSample, long numSamples)
+            throws IOException {
+        long startOffset = startSample * 2 * mChannels;
         if (numSamples <= 0) {
-            throw new IOException("Invalid time bounds: " + startTime + " to " + endTime);
+            throw new IOException("Invalid number of samples: " + numSamples);
         }
-        if (startOffset < 0 || startOffset > mDecodedBytes.limit()) {
+        if (startOffset < 0 || startOffset > getPcmSource().size()) {
             throw new IOException("Start offset out of bounds: " + startOffset);
         }
+        if (CutLosslessly(outputStream, startSample, numSamples)) {
+            return;
+        }
 
         // Some devices have problems reading mono AAC files (e.g. Samsung S3). Making
         // it stereo.
@@ -588,138 +1437,261 @@ public class SoundFile {
 
         String mimeType = "audio/mp4a-latm";
         int bitrate = 64000 * numChannels; // rule of thumb for a good quality: 64kbps per channel.
-        MediaCodec codec = MediaCodec.createEncoderByType(mimeType);
         MediaFormat format = MediaFormat.createAudioFormat(mimeType, mSampleRate, numChannels);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        codec.start();
 
-        // Get an estimation of the encoded data based on the bitrate. Add 10% to it.
-        int estimatedEncodedSize = (int) ((endTime - startTime) * ((double) bitrate / 8) * 1.1);
-        ByteBuffer encodedBytes = ByteBuffer.allocate(estimatedEncodedSize);
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
         boolean done_reading = false;
         long presentation_time;
 
         int frame_size = 1024; // number of samples per frame per channel for an mp4 (AAC) stream.
         byte[] buffer = new byte[frame_size * numChannels * 2]; // a sample is coded with a short.
-        mDecodedBytes.position(startOffset);
+        long offset = startOffset;
         numSamples += (2 * frame_size); // Adding 2 frames, Cf. priming frames for AAC.
-        int tot_num_frames = 1 + (numSamples / frame_size); // first AAC frame = 2 bytes
+        int tot_num_frames = 1 + (int) (numSamples / frame_size); // first AAC frame = 2 bytes
         if (numSamples % frame_size != 0) {
             tot_num_frames++;
         }
         int[] frame_sizes = new int[tot_num_frames];
         int num_out_frames = 0;
         int num_frames = 0;
-        int num_samples_left = numSamples;
-        int encodedSamplesSize = 0; // size of the output buffer containing the encoded samples.
-        byte[] encodedSamples = null;
-        while (true) {
-            // Feed the samples to the encoder.
-            int inputBufferIndex = codec.dequeueInputBuffer(100);
-            if (!done_reading && inputBufferIndex >= 0) {
-                if (num_samples_left <= 0) {
-                    // All samples have been read.
-                    codec.queueInputBuffer(inputBufferIndex, 0, 0, -1,
-                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    done_reading = true;
-                } else {
-                    ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
-                    if (inputBuffer == null) {
-                        continue;
-                    }
-                    inputBuffer.clear();
-                    if (buffer.length > inputBuffer.remaining()) {
-                        // Input buffer is smaller than one frame. This should never happen.
-                        continue;
-                    }
-                    // bufferSize is a hack to create a stereo file from a mono stream.
-                    int bufferSize = (mChannels == 1) ? (buffer.length / 2) : buffer.length;
-                    if (mDecodedBytes.remaining() < bufferSize) {
-                        for (int i = mDecodedBytes.remaining(); i < bufferSize; i++) {
-                            buffer[i] = 0; // pad with extra 0s to make a full frame.
+        long num_samples_left = numSamples;
+        long encoded_size = 0; // size of the encoded stream written so far.
+
+        // The encoded frames are not kept in memory, but written as the encoder outputs them.
+        // The size of the header only depends on the number of frames, so space is reserved for
+        // it before the frames, and it is written there once their sizes are known. Outputs which
+        // cannot seek, such as pipes, get the header first and then the frames, which are stored
+        // in a temp file (in the cache directory of the app, if known) in the meantime.
+        int header_size = MP4Header.getMP4HeaderSize(mSampleRate, numChannels, tot_num_frames);
+        if (header_size < 0) {
+            outputStream.close();
+            throw new IOException("Failed to create the .m4a header");
+        }
+        FileChannel output = getSeekableChannel(outputStream);
+        File tempFile = null;
+        RandomAccessFile tempRaf = null;
+        FileChannel encodedFrames = null;
+        try {
+            long header_position = 0;
+            if (output != null) {
+                header_position = output.position();
+                output.position(header_position + header_size);
+                encodedFrames = output;
+            } else {
+                tempFile = File.createTempFile(TEMP_FILE_PREFIX + "encoded_", ".aac", mCacheDir);
+                tempRaf = new RandomAccessFile(tempFile, "rw");
+                encodedFrames = tempRaf.getChannel();
+            }
+            MediaCodec codec = CodecPool.acquireEncoder(format);
+            try {
+                codec.start();
+                while (true) {
+                    // Feed the samples to the encoder.
+                    int inputBufferIndex = codec.dequeueInputBuffer(100);
+                    if (!done_reading && inputBufferIndex >= 0) {
+                        if (num_samples_left <= 0) {
+                            // All samples have been read.
+                            codec.queueInputBuffer(inputBufferIndex, 0, 0, -1,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            done_reading = true;
+                        } else {
+                            ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
+                            if (inputBuffer == null) {
+                                continue;
+                            }
+                            inputBuffer.clear();
+                            if (buffer.length > inputBuffer.remaining()) {
+                                // Input buffer is smaller than one frame. This should never
+                                // happen.
+                                continue;
+                            }
+                            // bufferSize is a hack to create a stereo file from a mono stream.
+                            int bufferSize = (mChannels == 1) ? (buffer.length / 2) : buffer.length;
+                            offset = readPcm(offset, buffer, bufferSize);
+                            if (mChannels == 1) {
+                                for (int i = bufferSize - 1; i >= 1; i -= 2) {
+                                    buffer[2 * i + 1] = buffer[i];
+                                    buffer[2 * i] = buffer[i - 1];
+                                    buffer[2 * i - 1] = buffer[2 * i + 1];
+                                    buffer[2 * i - 2] = buffer[2 * i];
+                                }
+                            }
+                            if (mGain != 1.0f) {
+                                applyGain(buffer, buffer.length);
+                            }
+                            num_samples_left -= frame_size;
+                            inputBuffer.put(buffer);
+                            presentation_time = (long) (((long) (num_frames++) * frame_size * 1e6)
+                                    / mSampleRate);
+                            long codecStartNs = Metrics.begin(Metrics.Stage.ENCODE_CODEC);
+                            codec.queueInputBuffer(inputBufferIndex, 0, buffer.length,
+                                    presentation_time, 0);
+                            Metrics.end(Metrics.Stage.ENCODE_CODEC, codecStartNs);
                         }
-                        mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-                    } else {
-                        mDecodedBytes.get(buffer, 0, bufferSize);
                     }
-                    if (mChannels == 1) {
-                        for (int i = bufferSize - 1; i >= 1; i -= 2) {
-                            buffer[2 * i + 1] = buffer[i];
-                            buffer[2 * i] = buffer[i - 1];
-                            buffer[2 * i - 1] = buffer[2 * i + 1];
-                            buffer[2 * i - 2] = buffer[2 * i];
+
+                    // Get the encoded samples from the encoder, and write them.
+                    long codecStartNs = Metrics.begin(Metrics.Stage.ENCODE_CODEC);
+                    int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
+                    Metrics.end(Metrics.Stage.ENCODE_CODEC, codecStartNs);
+                    if (outputBufferIndex >= 0 && info.size > 0 && info.presentationTimeUs >= 0) {
+                        ByteBuffer outputBuffer = codec.getOutputBuffer(outputBufferIndex);
+                        if (outputBuffer == null) {
+                            codec.releaseOutputBuffer(outputBufferIndex, false);
+                            continue;
                         }
+                        // Frames the header has no room for would be left out of its mdat atom.
+                        if (num_out_frames < frame_sizes.length) {
+                            frame_sizes[num_out_frames++] = info.size;
+                            outputBuffer.position(info.offset);
+                            outputBuffer.limit(info.offset + info.size);
+                            long writeStartNs = Metrics.begin(Metrics.Stage.ENCODE_WRITE);
+                            while (outputBuffer.hasRemaining()) {
+                                encodedFrames.write(outputBuffer);
+                            }
+                            Metrics.end(Metrics.Stage.ENCODE_WRITE, writeStartNs, info.size, 0);
+                            encoded_size += info.size;
+                        }
+                        outputBuffer.clear();
+                        codec.releaseOutputBuffer(outputBufferIndex, false);
                     }
-                    if (mGain != 1.0f) {
-                        applyGain(buffer, buffer.length);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        // We got all the encoded data from the encoder.
+                        break;
                     }
-                    num_samples_left -= frame_size;
-                    inputBuffer.put(buffer);
-                    presentation_time = (long) (((num_frames++) * frame_size * 1e6) / mSampleRate);
-                    codec.queueInputBuffer(inputBufferIndex, 0, buffer.length, presentation_time,
-                            0);
                 }
+            } finally {
+                CodecPool.recycle(codec);
             }
 
-            // Get the encoded samples from the encoder.
-            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
-            if (outputBufferIndex >= 0 && info.size > 0 && info.presentationTimeUs >= 0) {
-                ByteBuffer outputBuffer = codec.getOutputBuffer(outputBufferIndex);
-                if (outputBuffer == null) {
-                    codec.releaseOutputBuffer(outputBufferIndex, false);
-                    continue;
+            long headerStartNs = Metrics.begin(Metrics.Stage.ENCODE_HEADER);
+            byte[] header = MP4Header.getMP4Header(mSampleRate, numChannels, frame_sizes, bitrate);
+            Metrics.end(Metrics.Stage.ENCODE_HEADER, headerStartNs);
+            if (header == null || header.length != header_size) {
+                throw new IOException("Failed to create the .m4a header");
+            }
+            long writeStartNs = Metrics.begin(Metrics.Stage.ENCODE_WRITE);
+            if (output != null) {
+                // Drop what may be left of a previous, longer file.
+                output.truncate(output.position());
+                ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+                while (headerBuffer.hasRemaining()) {
+                    output.write(headerBuffer, header_position + headerBuffer.position());
                 }
-                if (num_out_frames < frame_sizes.length) {
-                    frame_sizes[num_out_frames++] = info.size;
+                Metrics.end(Metrics.Stage.ENCODE_WRITE, writeStartNs, header.length, 0);
+            } else {
+                outputStream.write(header);
+                WritableByteChannel out = Channels.newChannel(outputStream);
+                long position = 0;
+                while (position < encoded_size) {
+                    long copied = encodedFrames.transferTo(position, encoded_size - position, out);
+                    if (copied <= 0) {
+                        throw new IOException("Unexpected end of " + tempFile);
+                    }
+                    position += copied;
                 }
-                if (encodedSamplesSize < info.size) {
-                    encodedSamplesSize = info.size;
-                    encodedSamples = new byte[encodedSamplesSize];
+                Metrics.end(Metrics.Stage.ENCODE_WRITE, writeStartNs, header.length + encoded_size,
+                        0);
+            }
+        } finally {
+            outputStream.close();
+            if (tempFile != null) {
+                if (tempRaf != null) {
+                    tempRaf.close(); // Also closes encodedFrames.
                 }
-                outputBuffer.get(encodedSamples, 0, info.size);
-                outputBuffer.clear();
-                codec.releaseOutputBuffer(outputBufferIndex, false);
-                if (encodedBytes.remaining() < info.size) { // Hopefully this should not happen.
-                    estimatedEncodedSize = (int) (estimatedEncodedSize * 1.2); // Add 20%.
-                    ByteBuffer newEncodedBytes = ByteBuffer.allocate(estimatedEncodedSize);
-                    int position = encodedBytes.position();
-                    encodedBytes.rewind();
-                    newEncodedBytes.put(encodedBytes);
-                    encodedBytes = newEncodedBytes;
-                    encodedBytes.position(position);
+                if (!tempFile.delete()) {
+                    Log.w(TAG, "Failed to delete " + tempFile);
                 }
-                encodedBytes.put(encodedSamples, 0, info.size);
-            }
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                // We got all the encoded data from the encoder.
-                break;
             }
         }
-        int encoded_size = encodedBytes.position();
-        encodedBytes.rewind();
-        codec.stop();
-        codec.release();
+    }
 
-        // Write the encoded stream to the file, 4kB at a time.
-        buffer = new byte[4096];
+    // Returns the channel of outputStream if it writes to a file in which it can seek, or null.
+    private static FileChannel getSeekableChannel(OutputStream outputStream) {
+        if (!(outputStream instanceof FileOutputStream)) {
+            return null;
+        }
+        FileChannel channel = ((FileOutputStream) outputStream).getChannel();
         try {
-            outputStream
-                    .write(MP4Header.getMP4Header(mSampleRate, numChannels, frame_sizes, bitrate));
-            while (encoded_size - encodedBytes.position() > buffer.length) {
-                encodedBytes.get(buffer);
-                outputStream.write(buffer);
-            }
-            int remaining = encoded_size - encodedBytes.position();
-            if (remaining > 0) {
-                encodedBytes.get(buffer, 0, remaining);
-                outputStream.write(buffer, 0, remaining);
+            channel.position(); // Fails on pipes and sockets.
+            return channel;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Returns the duration of numBytes bytes of PCM data, in microseconds.
+    private long getPcmDurationUs(long numBytes) {
+        if (mChannels <= 0 || mSampleRate <= 0) {
+            return 0;
+        }
+        return numBytes * 1000000 / (2L * mChannels * mSampleRate);
+    }
+
+    // Copies the AAC frames of the input file, or of the recording if it was encoded while it was
+    // captured, covering numSamples samples starting at startSample
+    // to an .m4a file, without re-encoding them. Returns false, without writing anything, if the
+    // input file cannot be cut this way.
+    private boolean CutLosslessly(OutputStream outputStream, long startSample, long numSamples)
+            throws IOException {
+        if (mRecordingEncoder != null && mGain == 1.0f) {
+            // The recording was encoded while it was captured.
+            AACCutter cutter = mRecordingEncoder.getCutter();
+            if (cutter != null) {
+                try {
+                    cutter.write(outputStream, startSample, numSamples);
+                } finally {
+                    outputStream.close();
+                }
+                return true;
             }
-            outputStream.close();
+        }
+        if (!sLosslessCutting || mGain != 1.0f || mSource == null
+                || !(mFileType.equalsIgnoreCase("m4a") || mFileType.equalsIgnoreCase("mp4"))) {
+            return false;
+        }
+        AACCutter cutter;
+        try {
+            cutter = AACCutter.create(mSource, mNumSamples);
         } catch (IOException e) {
-            Log.e(TAG, "Failed to create the .m4a file.", e);
+            Log.w(TAG, "Failed to parse " + mSource + ", re-encoding it", e);
+            return false;
         }
+        // The decoded format differs from the one of the track for HE-AAC streams signaled as
+        // AAC LC.
+        if (cutter == null || cutter.getSampleRate() != mSampleRate
+                || cutter.getChannels() != mChannels) {
+            return false;
+        }
+        try {
+            cutter.write(outputStream, startSample, numSamples);
+        } finally {
+            outputStream.close();
+        }
+        return true;
+    }
+
+    private PcmSource getPcmSource() {
+        if (mRegionDecoder != null) {
+            return mRegionDecoder;
+        }
+        return mCompressedPcm != null ? mCompressedPcm : mPcm;
+    }
+
+    // Copies length bytes of PCM data starting at offset into buffer, padding it with 0s past the
+    // end of the data. Returns the offset of the following bytes.
+    private long readPcm(long offset, byte[] buffer, int length) throws IOException {
+        int numBytesRead;
+        try {
+            numBytesRead = getPcmSource().get(offset, buffer, 0, length);
+        } catch (UncheckedIOException e) {
+            // The region could not be decoded.
+            throw e.getCause();
+        }
+        Arrays.fill(buffer, numBytesRead, length, (byte) 0); // pad with extra 0s to make a full
+                                                             // frame.
+        return offset + numBytesRead;
     }
 
     // Method used to swap the left and right channels (needed for stereo WAV
@@ -764,10 +1736,9 @@ public class SoundFile {
     // should be removed in the near future...
     public void WriteWAVFile(File outputFile, int startFrame, int numFrames)
             throws java.io.IOException {
-        float startTime = (float) startFrame * getSamplesPerFrame() / mSampleRate;
-        float endTime = (float) (startFrame + numFrames) * getSamplesPerFrame() / mSampleRate;
         OutputStream outputStream = new FileOutputStream(outputFile);
-        WriteWAVFile(outputStream, startTime, endTime);
+        WriteWAVSamples(outputStream, (long) startFrame * getSamplesPerFrame(),
+                (long) numFrames * getSamplesPerFrame());
     }
 
     public void WriteWAVFile(Context context, Uri outputUri, int startTime, int endTime)
@@ -781,63 +1752,151 @@ public class SoundFile {
 
     public void WriteWAVFile(OutputStream outputStream, float startTime, float endTime)
             throws java.io.IOException {
-        int startOffset = (int) (startTime * mSampleRate) * 2 * mChannels;
-        int numSamples = (int) ((endTime - startTime) * mSampleRate);
+        if (endTime <= startTime) {
+            throw new IOException("Invalid time bounds: " + startTime + " to " + endTime);
+        }
+        WriteWAVSamples(outputStream, (long) ((double) startTime * mSampleRate),
+                (long) ((double) (endTime - startTime) * mSampleRate));
+    }
+
+    private void WriteWAVSamples(OutputStream outputStream, long startSample, long numSamples)
+            throws IOException {
+        long numBytes = Math.max(numSamples, 0) * 2 * mChannels;
+        long startNs = Metrics.begin(Metrics.Stage.ENCODE);
+        try {
+            EncodeWAVSamples(outputStream, startSample, numSamples);
+        } finally {
+            Metrics.end(Metrics.Stage.ENCODE, startNs, numBytes, getPcmDurationUs(numBytes));
+        }
+    }
 
+    // Writes numSamples samples (per channel) starting at startSample to a WAV file.
+    private void EncodeWAVSamples(OutputStream outputStream, long startSample, long numSamples)
+            throws IOException {
+        long startOffset = startSample * 2 * mChannels;
         if (numSamples <= 0) {
-            throw new IOException("Invalid time bounds: " + startTime + " to " + endTime);
+            throw new IOException("Invalid number of samples: " + numSamples);
         }
-        if (startOffset < 0 || startOffset > mDecodedBytes.limit()) {
+        if (startOffset < 0 || startOffset > getPcmSource().size()) {
             throw new IOException("Start offset out of bounds: " + startOffset);
         }
 
         // Start by writing the RIFF header.
-        outputStream.write(WAVHeader.getWAVHeader(mSampleRate, mChannels, numSamples));
+        long headerStartNs = Metrics.begin(Metrics.Stage.ENCODE_HEADER);
+        byte[] header = WAVHeader.getWAVHeader(mSampleRate, mChannels, numSamples);
+        Metrics.end(Metrics.Stage.ENCODE_HEADER, headerStartNs);
+        outputStream.write(header);
 
         // Write the samples to the file, 1024 at a time.
         byte[] buffer = new byte[1024 * mChannels * 2]; // Each sample is coded with a short.
-        mDecodedBytes.position(startOffset);
-        int numBytesLeft = numSamples * mChannels * 2;
+        long offset = startOffset;
+        long numBytesLeft = numSamples * mChannels * 2;
         while (numBytesLeft >= buffer.length) {
-            if (mDecodedBytes.remaining() < buffer.length) {
-                // This should not happen.
-                for (int i = mDecodedBytes.remaining(); i < buffer.length; i++) {
-                    buffer[i] = 0; // pad with extra 0s to make a full frame.
-                }
-                mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-            } else {
-                mDecodedBytes.get(buffer);
-            }
+            offset = readPcm(offset, buffer, buffer.length);
             if (mChannels == 2) {
                 swapLeftRightChannels(buffer);
             }
             if (mGain != 1.0f) {
                 applyGain(buffer, buffer.length);
             }
+            long writeStartNs = Metrics.begin(Metrics.Stage.ENCODE_WRITE);
             outputStream.write(buffer);
+            Metrics.end(Metrics.Stage.ENCODE_WRITE, writeStartNs, buffer.length, 0);
             numBytesLeft -= buffer.length;
         }
         if (numBytesLeft > 0) {
-            if (mDecodedBytes.remaining() < numBytesLeft) {
-                // This should not happen.
-                for (int i = mDecodedBytes.remaining(); i < numBytesLeft; i++) {
-                    buffer[i] = 0; // pad with extra 0s to make a full frame.
-                }
-                mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-            } else {
-                mDecodedBytes.get(buffer, 0, numBytesLeft);
-            }
+            int length = (int) numBytesLeft; // Less than buffer.length.
+            readPcm(offset, buffer, length);
             if (mChannels == 2) {
                 swapLeftRightChannels(buffer);
             }
             if (mGain != 1.0f) {
-                applyGain(buffer, numBytesLeft);
+                applyGain(buffer, length);
             }
-            outputStream.write(buffer, 0, numBytesLeft);
+            outputStream.write(buffer, 0, length);
         }
         outputStream.close();
     }
 
+    // Returns whether WriteMP3File() can save selections of this file, which is the case for MP3
+    // files whose gain has not been changed. WriteMP3File() may still fail on files it cannot
+    // parse.
+    public boolean canWriteMP3File() {
+        return sLosslessCutting && mGain == 1.0f && mSource != null
+                && mFileType.equalsIgnoreCase("mp3");
+    }
+
+    public void WriteMP3File(File outputFile, int startFrame, int numFrames) throws IOException {
+        OutputStream outputStream = new FileOutputStream(outputFile);
+        WriteMP3Samples(outputStream, (long) startFrame * getSamplesPerFrame(),
+                (long) numFrames * getSamplesPerFrame());
+    }
+
+    public void WriteMP3File(Context context, Uri outputUri, int startFrame, int numFrames)
+            throws IOException {
+        OutputStream outputStream = context.getContentResolver().openOutputStream(outputUri);
+        if (outputStream == null) {
+            throw new IOException("Cannot open MediaStore output stream");
+        }
+        WriteMP3Samples(outputStream, (long) startFrame * getSamplesPerFrame(),
+                (long) numFrames * getSamplesPerFrame());
+    }
+
+    private void WriteMP3Samples(OutputStream outputStream, long startSample, long numSamples)
+            throws IOException {
+        long numBytes = Math.max(numSamples, 0) * 2 * mChannels;
+        long startNs = Metrics.begin(Metrics.Stage.ENCODE);
+        try {
+            CutMP3Samples(outputStream, startSample, numSamples);
+        } finally {
+            outputStream.close();
+            Metrics.end(Metrics.Stage.ENCODE, startNs, numBytes, getPcmDurationUs(numBytes));
+        }
+    }
+
+    // Copies the MP3 frames of the input file covering numSamples samples (per channel) starting
+    // at startSample to an MP3 file, without decoding them. The selection is extended to whole
+    // MP3 frames.
+    private void CutMP3Samples(OutputStream outputStream, long startSample, long numSamples)
+            throws IOException {
+        if (numSamples <= 0) {
+            throw new IOException("Invalid number of samples: " + numSamples);
+        }
+        if (startSample < 0 || startSample > mNumSamples) {
+            throw new IOException("Start sample out of bounds: " + startSample);
+        }
+        if (!canWriteMP3File()) {
+            throw new IOException("Cannot cut " + mSource + " without re-encoding it");
+        }
+        MP3Cutter cutter = MP3Cutter.create(mSource, mNumSamples);
+        if (cutter == null || cutter.getSampleRate() != mSampleRate
+                || cutter.getChannels() != mChannels) {
+            throw new IOException("Cannot parse the MP3 frames of " + mSource);
+        }
+        cutter.write(outputStream, startSample, numSamples);
+    }
+
+    // Frame gains listener interface.
+    public interface FrameGainsListener {
+        /**
+         * Will be called by the SoundFile class from the decoding thread each time a new chunk of
+         * frame gains has been computed. numFrames is the number of frames currently available
+         * through getFrameGains(). The gains of decoded frames will not change anymore, but the
+         * gains of the frames approximated from a preview of a long file, which may be reported
+         * first for the whole file, are replaced as the file is decoded: the waveform should be
+         * redrawn on each call.
+         */
+        void onFrameGainsAvailable(SoundFile soundFile, int numFrames);
+    }
+
+    public interface LevelListener {
+        /**
+         * Will be called by the SoundFile class from the recording thread with the peak and RMS
+         * levels of each block of samples recorded, between 0.0 and 1.0 (full scale).
+         */
+        void onLevel(float peak, float rms);
+    }
+
     // Progress listener interface.
     public interface ProgressListener {
         /**
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+/**
+ * Chooses where the PCM data of a file is stored: in the Java heap, in direct buffers outside of
+ * it, or in a temp file mapped in memory.
+ *
+ * <p>
+ * Small files are kept in the heap, which is the cheapest to allocate. Larger ones go to direct
+ * buffers, which do not count against the heap limit but still take physical memory, and the files
+ * which do not fit in memory are mapped from the cache directory, from which the system can page
+ * them in and out. When there is no room for them there either, memory is tight: their data is
+ * compressed in memory by a {@link CompressedPcmStore}, in about half of its size. The memory
+ * budgets are fractions of the memory available to the app, and all the storages are limited by an
+ * optional overall budget.
+ */
+class StoragePolicy {
+    /** Where PCM data is stored. */
+    enum Storage {
+        HEAP("heap"), DIRECT("direct"), MAPPED("mapped"), COMPRESSED("compressed");
+
+        private final String mName;
+
+        Storage(String name) {
+            mName = name;
+        }
+
+        String getName() {
+            return mName;
+        }
+    }
+
+    // Fractions of the memory of the app which PCM data may take in the heap, in direct buffers,
+    // and in direct buffers holding a recording when there is no space left for a mapped file.
+    private static final int HEAP_FRACTION = 8;
+    private static final int DIRECT_FRACTION = 4;
+    private static final int LAST_RESORT_FRACTION = 2;
+    // Size of PCM data divided by its size once compressed by CompressedPcmStore, for music.
+    private static final int COMPRESSION_RATIO = 2;
+    // Space left free in the cache directory by mapped files.
+    static final long MIN_FREE_SPACE = 64 << 20;
+
+    private final long mMemoryBytes;
+    private final long mBudgetBytes;
+
+    // memoryBytes is the memory available to the app, e.g. its memory class. budgetBytes is the
+    // maximum size of the PCM data of a file, or -1 for no limit.
+    StoragePolicy(long memoryBytes, long budgetBytes) {
+        mMemoryBytes = memoryBytes;
+        mBudgetBytes = budgetBytes;
+    }
+
+    // Returns the storage of expectedBytes bytes of PCM data, freeSpace being the space available
+    // in the cache directory, or null if they fit nowhere.
+    Storage choose(long expectedBytes, long freeSpace) {
+        if (mBudgetBytes >= 0 && expectedBytes > mBudgetBytes) {
+            return null;
+        }
+        if (expectedBytes <= mMemoryBytes / HEAP_FRACTION) {
+            return Storage.HEAP;
+        }
+        if (expectedBytes <= mMemoryBytes / DIRECT_FRACTION) {
+            return Storage.DIRECT;
+        }
+        if (expectedBytes <= freeSpace - MIN_FREE_SPACE) {
+            return Storage.MAPPED;
+        }
+        // Memory is tight: compress the data rather than store it uncompressed in direct buffers.
+        if (expectedBytes / COMPRESSION_RATIO <= mMemoryBytes / DIRECT_FRACTION) {
+            return Storage.COMPRESSED;
+        }
+        return null;
+    }
+
+    // Returns the storage of a recording, which must hold at least minBytes bytes, freeSpace being
+    // the space available in the cache directory, or null if it fits nowhere. The length of
+    // recordings is not known in advance, so they are written to a mapped file whenever there is
+    // room for it, where they take the same memory however long they last.
+    Storage chooseForRecording(long minBytes, long freeSpace) {
+        if (getMaxBytes(Storage.MAPPED, freeSpace) >= minBytes) {
+            return Storage.MAPPED;
+        }
+        return choose(minBytes, freeSpace);
+    }
+
+    // Returns the maximum number of bytes of PCM data which can be kept in storage, freeSpace
+    // being the space available in the cache directory. Used for recordings, whose size is not
+    // known in advance.
+    long getMaxBytes(Storage storage, long freeSpace) {
+        long maxBytes;
+        switch (storage) {
+            case HEAP :
+                maxBytes = mMemoryBytes / HEAP_FRACTION;
+                break;
+            case DIRECT :
+                maxBytes = mMemoryBytes / LAST_RESORT_FRACTION;
+                break;
+            case COMPRESSED :
+                maxBytes = mMemoryBytes / DIRECT_FRACTION * COMPRESSION_RATIO;
+                break;
+            default :
+                maxBytes = Math.max(0, freeSpace - MIN_FREE_SPACE);
+                break;
+        }
+        return mBudgetBytes >= 0 ? Math.min(maxBytes, mBudgetBytes) : maxBytes;
+    }
+}
@@ -16,14 +16,28 @@
 
 package com.ringdroid.soundfile;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
 public class WAVHeader {
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+    // Chunk IDs, read as little endian ints.
+    private static final int RIFF_ID = 0x46464952; // "RIFF"
+    private static final int WAVE_ID = 0x45564157; // "WAVE"
+    private static final int FMT_ID = 0x20746D66; // "fmt "
+    private static final int DATA_ID = 0x61746164; // "data"
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
     private final int mSampleRate; // sampling frequency in Hz (e.g. 44100).
     private final int mChannels; // number of channels.
-    private final int mNumSamples; // total number of samples per channel.
+    private final long mNumSamples; // total number of samples per channel.
     private final int mNumBytesPerSample; // number of bytes per sample, all channels included.
     private byte[] mHeader; // the complete header.
+    private long mDataOffset; // offset of the samples in the parsed file.
 
-    public WAVHeader(int sampleRate, int numChannels, int numSamples) {
+    public WAVHeader(int sampleRate, int numChannels, long numSamples) {
         mSampleRate = sampleRate;
         mChannels = numChannels;
         mNumSamples = numSamples;
@@ -32,19 +46,104 @@ public class WAVHeader {
         setHeader();
     }
 
-    public static byte[] getWAVHeader(int sampleRate, int numChannels, int numSamples) {
+    public static byte[] getWAVHeader(int sampleRate, int numChannels, long numSamples) {
         return new WAVHeader(sampleRate, numChannels, numSamples).mHeader;
     }
 
+    // Parses the RIFF chunks of the WAV file read by channel, up to its data chunk. Returns null
+    // if the file is not a WAV file of 16 bits PCM samples, e.g. if its samples are compressed.
+    static WAVHeader parse(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        if (!read(channel, buffer, 0, 12) || buffer.getInt(0) != RIFF_ID
+                || buffer.getInt(8) != WAVE_ID) {
+            return null;
+        }
+        int format = -1;
+        int channels = 0;
+        int sampleRate = 0;
+        int bitsPerSample = 0;
+        long offset = 12;
+        while (read(channel, buffer, offset, 8)) {
+            int id = buffer.getInt(0);
+            long size = buffer.getInt(4) & MAX_SIZE;
+            long body = offset + 8;
+            if (id == FMT_ID) {
+                if (size < 16 || !read(channel, buffer, body, (int) Math.min(size, 40))) {
+                    return null;
+                }
+                format = buffer.getShort(0) & 0xFFFF;
+                channels = buffer.getShort(2) & 0xFFFF;
+                sampleRate = buffer.getInt(4);
+                bitsPerSample = buffer.getShort(14) & 0xFFFF;
+                if (format == WAVE_FORMAT_EXTENSIBLE && size >= 40) {
+                    // The format is in the first 2 bytes of the sub format GUID.
+                    format = buffer.getShort(24) & 0xFFFF;
+                }
+            } else if (id == DATA_ID) {
+                if (format != WAVE_FORMAT_PCM || bitsPerSample != 16 || channels <= 0
+                        || sampleRate <= 0) {
+                    return null;
+                }
+                // Data longer than 4GB has its size set to the maximum, see setHeader(), and some
+                // streaming writers leave it to 0: both mean that the data goes until the end of
+                // the file. A truncated file is also read up to its end.
+                long dataSize = size == MAX_SIZE || size == 0
+                        ? fileSize - body
+                        : Math.min(size, fileSize - body);
+                WAVHeader header = new WAVHeader(sampleRate, channels, dataSize / (2L * channels));
+                header.mDataOffset = body;
+                return header;
+            }
+            // Chunks are aligned on 2 bytes.
+            offset = body + size + (size & 1);
+        }
+        return null;
+    }
+
+    // Reads length bytes of channel at position into buffer, from index 0. Returns false if the
+    // channel ends before.
+    private static boolean read(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    int getChannels() {
+        return mChannels;
+    }
+
+    // Number of samples per channel.
+    long getNumSamples() {
+        return mNumSamples;
+    }
+
+    // Offset of the first sample in the parsed file.
+    long getDataOffset() {
+        return mDataOffset;
+    }
+
     private void setHeader() {
         byte[] header = new byte[46];
         int offset = 0;
-        int size;
+        long size;
 
         // set the RIFF chunk
         System.arraycopy(new byte[]{'R', 'I', 'F', 'F'}, 0, header, offset, 4);
         offset += 4;
-        size = 36 + mNumSamples * mNumBytesPerSample;
+        // The RIFF sizes are 32 bits: data longer than 4GB cannot be described, in which case the
+        // sizes are set to their maximum value, which most readers interpret as "until the end
+        // of the file".
+        size = Math.min(36 + mNumSamples * mNumBytesPerSample, MAX_SIZE);
         header[offset++] = (byte) (size & 0xFF);
         header[offset++] = (byte) ((size >> 8) & 0xFF);
         header[offset++] = (byte) ((size >> 16) & 0xFF);
@@ -78,7 +177,7 @@ public class WAVHeader {
         // set the beginning of the data chunk
         System.arraycopy(new byte[]{'d', 'a', 't', 'a'}, 0, header, offset, 4);
         offset += 4;
-        size = mNumSamples * mNumBytesPerSample;
+        size = Math.min(mNumSamples * mNumBytesPerSample, MAX_SIZE);
         header[offset++] = (byte) (size & 0xFF);
         header[offset++] = (byte) ((size >> 8) & 0xFF);
         header[offset++] = (byte) ((size >> 16) & 0xFF);
@@ -0,0 +1,163 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AACCutterTest {
+    private static final int NUM_FRAMES = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Frame i is filled with the value i, and is 100 + i bytes long.
+    private static byte[] frame(int i) {
+        byte[] frame = new byte[100 + i];
+        Arrays.fill(frame, (byte) i);
+        return frame;
+    }
+
+    // Writes an .m4a file laid out as SoundFile writes them, with fake AAC frames.
+    private File writeM4a(int sampleRate, int channels) throws IOException {
+        int[] frameSizes = new int[1 + NUM_FRAMES];
+        frameSizes[0] = 2;
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            frameSizes[1 + i] = frame(i).length;
+        }
+        File file = mFolder.newFile("source.m4a");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(MP4Header.getMP4Header(sampleRate, channels, frameSizes, 64000));
+            out.write(new byte[]{0x12, 0x10}); // AAC LC, 44100Hz, stereo.
+            for (int i = 0; i < NUM_FRAMES; i++) {
+                out.write(frame(i));
+            }
+        }
+        return file;
+    }
+
+    private static byte[] frames(int first, int last) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = first; i < last; i++) {
+            out.write(frame(i), 0, frame(i).length);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] cut(AACCutter cutter, long startSample, long numSamples) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cutter.write(out, startSample, numSamples);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        AACCutter cutter = AACCutter.create(new InputSource(writeM4a(44100, 2)), NUM_FRAMES * 1024);
+        assertNotNull(cutter);
+        assertEquals(44100, cutter.getSampleRate());
+        assertEquals(2, cutter.getChannels());
+        // The codec config frame is not an access unit.
+        assertEquals(NUM_FRAMES, cutter.getNumFrames());
+    }
+
+    @Test
+    public void testCutCopiesTheFramesCoveringTheSelection() throws IOException {
+        AACCutter cutter = AACCutter.create(new InputSource(writeM4a(44100, 2)), NUM_FRAMES * 1024);
+        assertNotNull(cutter);
+        // Samples 1500 to 3500 are in frames 1 to 3, which follow frame 0.
+        byte[] output = cut(cutter, 1500, 2000);
+        byte[] expected = frames(0, 4);
+        assertArrayEquals(expected,
+                Arrays.copyOfRange(output, output.length - expected.length, output.length));
+        assertEquals(0x12, output[output.length - expected.length - 2]);
+        assertEquals(0x10, output[output.length - expected.length - 1]);
+
+        // The cut is a valid file, which can be cut again.
+        File file = mFolder.newFile("cut.m4a");
+        Files.write(file.toPath(), output);
+        AACCutter recut = AACCutter.create(new InputSource(file), 4 * 1024);
+        assertNotNull(recut);
+        assertEquals(4, recut.getNumFrames());
+        byte[] last = cut(recut, 3072, 1);
+        expected = frames(2, 4);
+        assertArrayEquals(expected,
+                Arrays.copyOfRange(last, last.length - expected.length, last.length));
+    }
+
+    @Test
+    public void testCutIsClampedToTheTrack() throws IOException {
+        AACCutter cutter = AACCutter.create(new InputSource(writeM4a(44100, 2)), NUM_FRAMES * 1024);
+        assertNotNull(cutter);
+        byte[] output = cut(cutter, 8 * 1024, 100000);
+        byte[] expected = frames(7, NUM_FRAMES);
+        assertArrayEquals(expected,
+                Arrays.copyOfRange(output, output.length - expected.length, output.length));
+        try {
+            cut(cutter, NUM_FRAMES * 1024, 1);
+            fail();
+        } catch (IOException expectedException) {
+        }
+    }
+
+    @Test
+    public void testCutAccessUnits() throws IOException {
+        // Raw access units, as RecordingEncoder writes them, after 2 frames of priming samples.
+        File file = mFolder.newFile("recording.aac");
+        Files.write(file.toPath(), frames(0, NUM_FRAMES));
+        long[] offsets = new long[NUM_FRAMES];
+        int[] sizes = new int[NUM_FRAMES];
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            sizes[i] = frame(i).length;
+            offsets[i] = i > 0 ? offsets[i - 1] + sizes[i - 1] : 0;
+        }
+        AACCutter cutter = AACCutter.fromAccessUnits(new InputSource(file), 44100, 2,
+                new byte[]{0x12, 0x10}, offsets, sizes, 2048);
+        assertEquals(NUM_FRAMES, cutter.getNumFrames());
+        // Samples 1500 to 3500 of the recording are in frames 3 to 5, which follow frame 2.
+        byte[] output = cut(cutter, 1500, 2000);
+        byte[] expected = frames(2, 6);
+        assertArrayEquals(expected,
+                Arrays.copyOfRange(output, output.length - expected.length, output.length));
+
+        // The cut is a valid .m4a file.
+        File cut = mFolder.newFile("cut.m4a");
+        Files.write(cut.toPath(), output);
+        AACCutter recut = AACCutter.create(new InputSource(cut), 4 * 1024);
+        assertNotNull(recut);
+        assertEquals(4, recut.getNumFrames());
+    }
+
+    @Test
+    public void testCutOfFirstFrame() throws IOException {
+        AACCutter cutter = AACCutter.create(new InputSource(writeM4a(44100, 2)), NUM_FRAMES * 1024);
+        assertNotNull(cutter);
+        // No access unit precedes frame 0.
+        byte[] output = cut(cutter, 0, 1500);
+        byte[] expected = frames(0, 2);
+        assertArrayEquals(expected,
+                Arrays.copyOfRange(output, output.length - expected.length, output.length));
+        assertEquals(0x12, output[output.length - expected.length - 2]);
+        assertEquals(0x10, output[output.length - expected.length - 1]);
+    }
+
+    @Test
+    public void testUnsupportedFiles() throws IOException {
+        File wav = mFolder.newFile("source.wav");
+        Files.write(wav.toPath(), WAVHeader.getWAVHeader(44100, 2, 0));
+        assertNull(AACCutter.create(new InputSource(wav), 0));
+        File empty = mFolder.newFile("empty.m4a");
+        assertNull(AACCutter.create(new InputSource(empty), 0));
+    }
+}
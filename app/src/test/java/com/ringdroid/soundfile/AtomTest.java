@@ -3,6 +3,9 @@ package com.ringdroid.soundfile;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -57,4 +60,38 @@ public class AtomTest {
         assertEquals('s', bytes[6]);
         assertEquals('t', bytes[7]);
     }
+
+    @Test
+    public void testParse() {
+        byte[] header = MP4Header.getMP4Header(44100, 2, new int[]{2, 300, 310}, 64000);
+        // Leave out the header of the mdat atom, whose data is not there.
+        Atom[] atoms = Atom.parse(header, 0, header.length - 8);
+        assertNotNull(atoms);
+        assertEquals(2, atoms.length);
+        assertEquals("ftyp", atoms[0].getTypeStr());
+        Atom moov = atoms[1];
+        assertEquals("moov", moov.getTypeStr());
+        assertEquals(2, moov.getChildren().length);
+        assertEquals("mvhd", moov.getChildren()[0].getTypeStr());
+        // Container atoms are parsed, and the others keep their version and flags in their data.
+        Atom stsz = moov.getChild("trak.mdia.minf.stbl.stsz");
+        assertNotNull(stsz);
+        assertEquals(8 + 4 + 8 + 3 * 4, stsz.getSize());
+        assertEquals(0, stsz.getChildren().length);
+        assertEquals(300 >> 8, stsz.getData()[4 + 8 + 4 + 2]);
+        // Parsed atoms are written back as they were read.
+        int moovStart = atoms[0].getSize();
+        assertArrayEquals(Arrays.copyOfRange(header, moovStart, moovStart + moov.getSize()),
+                moov.getBytes());
+    }
+
+    @Test
+    public void testParseMalformed() {
+        byte[] header = MP4Header.getMP4Header(44100, 2, new int[]{2, 300, 310}, 64000);
+        // The mdat atom claims more bytes than there are.
+        assertNull(Atom.parse(header, 0, header.length));
+        // Truncated atom header.
+        assertNull(Atom.parse(header, 0, 4));
+        assertEquals(0, Atom.parse(header, 0, 0).length);
+    }
 }
@@ -0,0 +1,96 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class CaptureRingTest {
+    @Test
+    public void testBuffersArePassedInOrder() {
+        CaptureRing ring = new CaptureRing(4, 16);
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer buffer = ring.getWriteBuffer();
+            assertTrue(buffer.isDirect());
+            buffer.putInt(0, i);
+            ring.publish(buffer, 4 + i);
+        }
+        assertEquals(3, ring.getPendingBuffers());
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer buffer = ring.take();
+            assertEquals(i, buffer.getInt(0));
+            assertEquals(0, buffer.position());
+            assertEquals(4 + i, buffer.remaining());
+            ring.release();
+        }
+        assertEquals(0, ring.getPendingBuffers());
+        ring.close();
+        assertNull(ring.take());
+    }
+
+    @Test
+    public void testFullRingCountsOverruns() {
+        CaptureRing ring = new CaptureRing(2, 16);
+        ByteBuffer first = ring.getWriteBuffer();
+        ring.publish(first, 16);
+        ring.publish(ring.getWriteBuffer(), 16);
+        // The ring is full: the next buffers are dropped.
+        ByteBuffer spare = ring.getWriteBuffer();
+        ring.publish(spare, 10);
+        ring.publish(ring.getWriteBuffer(), 0);
+        assertEquals(1, ring.getOverruns());
+        assertEquals(10, ring.getDroppedBytes());
+        assertEquals(2, ring.getPendingBuffers());
+
+        // Releasing a buffer makes room for the next one.
+        assertSame(first, ring.take());
+        ring.release();
+        ByteBuffer third = ring.getWriteBuffer();
+        assertNotSame(spare, third);
+        assertSame(first, third);
+    }
+
+    @Test
+    public void testClosedRingIsDrained() {
+        CaptureRing ring = new CaptureRing(4, 16);
+        ring.publish(ring.getWriteBuffer(), 16);
+        ring.close();
+        assertEquals(16, ring.take().remaining());
+        ring.release();
+        assertNull(ring.take());
+    }
+
+    @Test
+    public void testProducerAndConsumerThreads() throws InterruptedException {
+        final int numBuffers = 10000;
+        CaptureRing ring = new CaptureRing(8, 8);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < numBuffers; i++) {
+                ByteBuffer buffer = ring.getWriteBuffer();
+                buffer.putLong(0, i);
+                ring.publish(buffer, 8);
+            }
+            ring.close();
+        });
+        producer.start();
+        // The consumer sees increasing sequence numbers, with gaps only for dropped buffers.
+        long last = -1;
+        long received = 0;
+        ByteBuffer buffer;
+        while ((buffer = ring.take()) != null) {
+            long value = buffer.getLong(0);
+            assertTrue(value > last);
+            last = value;
+            received++;
+            ring.release();
+        }
+        producer.join();
+        assertTrue(last < numBuffers);
+        assertEquals(numBuffers, received + ring.getOverruns());
+    }
+}
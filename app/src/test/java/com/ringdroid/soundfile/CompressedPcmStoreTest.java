@@ -0,0 +1,118 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressedPcmStoreTest {
+    private static final int CHANNELS = 2;
+
+    // Stereo music-like samples: two sines with some noise, with full scale clicks.
+    private static short[] samples(int numFrames) {
+        Random random = new Random(42);
+        short[] samples = new short[numFrames * CHANNELS];
+        for (int i = 0; i < numFrames; i++) {
+            double t = i / 44100.0;
+            samples[i * 2] = (short) (8000 * Math.sin(2 * Math.PI * 440 * t)
+                    + 3000 * Math.sin(2 * Math.PI * 1234 * t) + random.nextInt(200) - 100);
+            samples[i * 2 + 1] = (short) (6000 * Math.sin(2 * Math.PI * 220 * t)
+                    + random.nextInt(200) - 100);
+            if (i % 10007 == 0) {
+                samples[i * 2] = Short.MIN_VALUE;
+                samples[i * 2 + 1] = Short.MAX_VALUE;
+            }
+        }
+        return samples;
+    }
+
+    private static ByteBuffer bytes(short[] samples) {
+        ByteBuffer buffer = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asShortBuffer().put(samples);
+        return buffer;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        int numFrames = 5 * CompressedPcmStore.BLOCK_FRAMES + 123;
+        short[] samples = samples(numFrames);
+        ByteBuffer data = bytes(samples);
+        CompressedPcmStore store = new CompressedPcmStore(CHANNELS);
+        // Odd sized appends, so that samples are split between two appends.
+        for (int limit = 0; limit < data.capacity();) {
+            limit = Math.min(data.capacity(), limit + 7777);
+            data.limit(limit);
+            store.append(data);
+        }
+        assertEquals(samples.length * 2, store.size());
+
+        short[] read = new short[samples.length];
+        store.getShorts(0, read, 0, read.length);
+        assertArrayEquals(samples, read);
+        // Random access, including the samples which are not compressed yet.
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            int index = random.nextInt(samples.length);
+            assertEquals(samples[index], store.getShort(index));
+        }
+        byte[] bytes = new byte[10];
+        int offset = CompressedPcmStore.BLOCK_FRAMES * CHANNELS * 2 - 5;
+        assertEquals(10, store.get(offset, bytes, 0, 10));
+        assertEquals(data.get(offset), bytes[0]);
+        assertEquals(data.get(offset + 9), bytes[9]);
+        assertEquals(4, store.get(store.size() - 4, bytes, 0, 10));
+    }
+
+    @Test
+    public void testCompressionRatio() {
+        short[] samples = samples(20 * CompressedPcmStore.BLOCK_FRAMES);
+        CompressedPcmStore store = new CompressedPcmStore(CHANNELS);
+        store.append(bytes(samples));
+        long ratio = store.getCompressedSize() * 100 / store.size();
+        assertTrue("Compressed to " + ratio + "%", ratio < 60);
+    }
+
+    @Test
+    public void testWorstCaseBlocks() {
+        // Full scale square waves and white noise, whose residuals need escape codes.
+        int numFrames = CompressedPcmStore.BLOCK_FRAMES;
+        short[] samples = new short[numFrames];
+        Random random = new Random(7);
+        for (int i = 0; i < numFrames; i++) {
+            samples[i] = i < numFrames / 2
+                    ? (i % 2 == 0 ? Short.MIN_VALUE : Short.MAX_VALUE)
+                    : (short) random.nextInt();
+        }
+        byte[] block = CompressedPcmStore.compress(samples, numFrames, 1);
+        short[] decompressed = new short[numFrames];
+        CompressedPcmStore.decompress(block, decompressed, numFrames, 1);
+        assertArrayEquals(samples, decompressed);
+
+        // Silence takes a bit per sample.
+        short[] silence = new short[numFrames * 2];
+        assertTrue(CompressedPcmStore.compress(silence, numFrames, 2).length <= numFrames / 4 + 4);
+    }
+
+    @Test
+    public void testSetSizeDropsPendingData() {
+        CompressedPcmStore store = new CompressedPcmStore(1);
+        short[] samples = samples(CompressedPcmStore.BLOCK_FRAMES);
+        store.append(bytes(samples));
+        ByteBuffer extra = ByteBuffer.allocate(3);
+        store.append(extra);
+        store.setSize(samples.length * 2 + 2);
+        assertEquals(samples.length * 2 + 2, store.size());
+        assertEquals(0, store.getShort(samples.length));
+        try {
+            store.setSize(10);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FrameGainAnalyzerTest {
+    private static final int SAMPLES_PER_FRAME = 1024;
+
+    private static short[] randomSamples(int count, long seed) {
+        Random random = new Random(seed);
+        short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) random.nextInt(1 << 16);
+        }
+        return samples;
+    }
+
+    private static ByteBuffer toBytes(short[] samples) {
+        ByteBuffer bytes = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(samples);
+        return bytes;
+    }
+
+    // Computes the frame gains of the whole samples, the way SoundFile used to.
+    private static int[] referenceFrameGains(short[] samples, int channels) {
+        int numSamples = samples.length / channels;
+        int numFrames = (numSamples + SAMPLES_PER_FRAME - 1) / SAMPLES_PER_FRAME;
+        int[] frameGains = new int[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            int gain = -1;
+            for (int j = 0; j < SAMPLES_PER_FRAME; j++) {
+                int sample = i * SAMPLES_PER_FRAME + j;
+                int value = 0;
+                if (sample < numSamples) {
+                    for (int k = 0; k < channels; k++) {
+                        value += Math.abs(samples[sample * channels + k]);
+                    }
+                }
+                value /= channels;
+                gain = Math.max(gain, value);
+            }
+            frameGains[i] = (int) Math.sqrt(gain);
+        }
+        return frameGains;
+    }
+
+    private static int[] analyze(FrameGainAnalyzer analyzer, ByteBuffer bytes, long seed) {
+        // Feed the data in chunks of random sizes, not aligned on samples.
+        Random random = new Random(seed);
+        int position = 0;
+        while (position < bytes.limit()) {
+            int end = Math.min(bytes.limit(), position + 1 + random.nextInt(5000));
+            ByteBuffer chunk = bytes.duplicate();
+            chunk.limit(end);
+            chunk.position(position);
+            analyzer.process(chunk);
+            assertEquals(position, chunk.position());
+            position = end;
+        }
+        analyzer.finish();
+        return Arrays.copyOf(analyzer.getFrameGains(), analyzer.getNumFrames());
+    }
+
+    @Test
+    public void testMono() {
+        short[] samples = randomSamples(10 * SAMPLES_PER_FRAME + 17, 1);
+        FrameGainAnalyzer analyzer = new FrameGainAnalyzer(1, SAMPLES_PER_FRAME, 0, 1);
+        assertArrayEquals(referenceFrameGains(samples, 1), analyze(analyzer, toBytes(samples), 2));
+    }
+
+    @Test
+    public void testStereo() {
+        short[] samples = randomSamples(2 * (20 * SAMPLES_PER_FRAME + 500), 3);
+        FrameGainAnalyzer analyzer = new FrameGainAnalyzer(2, SAMPLES_PER_FRAME, 0, 4);
+        assertArrayEquals(referenceFrameGains(samples, 2), analyze(analyzer, toBytes(samples), 4));
+    }
+
+    @Test
+    public void testSilence() {
+        FrameGainAnalyzer analyzer = new FrameGainAnalyzer(2, SAMPLES_PER_FRAME, 0, 1);
+        int[] frameGains = analyze(analyzer, ByteBuffer.allocate(4 * 3 * SAMPLES_PER_FRAME), 5);
+        assertArrayEquals(new int[3], frameGains);
+    }
+
+    @Test
+    public void testSplitRanges() {
+        // Analyze two ranges separately, split in the middle of a frame, and merge the frame
+        // straddling both ranges.
+        int channels = 2;
+        int numSamples = 8 * SAMPLES_PER_FRAME + 100;
+        int split = 3 * SAMPLES_PER_FRAME + 300;
+        short[] samples = randomSamples(channels * numSamples, 6);
+        ByteBuffer bytes = toBytes(samples);
+        ByteBuffer firstRange = bytes.duplicate();
+        firstRange.limit(split * channels * 2);
+        ByteBuffer secondRange = bytes.duplicate();
+        secondRange.position(split * channels * 2);
+        secondRange = secondRange.slice();
+
+        FrameGainAnalyzer first = new FrameGainAnalyzer(channels, SAMPLES_PER_FRAME, 0, 1);
+        FrameGainAnalyzer second = new FrameGainAnalyzer(channels, SAMPLES_PER_FRAME, split, 1);
+        int[] firstGains = analyze(first, firstRange, 7);
+        int[] secondGains = analyze(second, secondRange, 8);
+        assertEquals(3, second.getFirstFrame());
+        assertEquals(4, firstGains.length);
+        assertEquals(6, secondGains.length);
+
+        int[] merged = new int[9];
+        System.arraycopy(firstGains, 0, merged, 0, 4);
+        merged[3] = Math.max(firstGains[3], secondGains[0]);
+        System.arraycopy(secondGains, 1, merged, 4, 5);
+        assertArrayEquals(referenceFrameGains(samples, channels), merged);
+    }
+
+    @Test
+    public void testInitialGains() {
+        short[] samples = randomSamples(2 * SAMPLES_PER_FRAME + 10, 9);
+        int[] initialGains = {7, 7, 7, 7, 7};
+        FrameGainAnalyzer analyzer = new FrameGainAnalyzer(1, SAMPLES_PER_FRAME, 0, initialGains);
+        ByteBuffer bytes = toBytes(samples);
+        bytes.limit(2 * SAMPLES_PER_FRAME * 2);
+        analyzer.process(bytes);
+        // The computed frames replace the initial gains, the others are kept.
+        int[] expected = referenceFrameGains(samples, 1);
+        assertEquals(2, analyzer.getNumFrames());
+        assertArrayEquals(new int[]{expected[0], expected[1], 7, 7, 7},
+                Arrays.copyOf(analyzer.getFrameGains(), 5));
+        assertEquals(7, initialGains[0]);
+    }
+}
@@ -0,0 +1,187 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MP3CutterTest {
+    // MPEG-1 layer III, no CRC, 128 kbps, 44100Hz, stereo: 417 bytes per frame.
+    private static final int HEADER = 0xFFFB9000;
+    private static final int FRAME_SIZE = 417;
+    private static final int SAMPLES_PER_FRAME = 1152;
+    private static final int NUM_FRAMES = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Frame i is filled with the value i after its header and side information, and uses
+    // mainDataBegin bytes of bit reservoir.
+    private static byte[] frame(int i, int mainDataBegin) {
+        byte[] frame = new byte[FRAME_SIZE];
+        ByteBuffer.wrap(frame).putInt(HEADER);
+        frame[4] = (byte) (mainDataBegin >> 1);
+        frame[5] = (byte) ((mainDataBegin & 1) << 7);
+        Arrays.fill(frame, 4 + 32, FRAME_SIZE, (byte) i);
+        return frame;
+    }
+
+    private static byte[] frame(int i) {
+        return frame(i, 0);
+    }
+
+    // Returns an Info frame with a LAME extension holding delay and padding.
+    private static byte[] lameFrame(int delay, int padding) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        frame.putInt(0, HEADER);
+        frame.put(36, "Info".getBytes());
+        frame.putInt(40, 0x0F);
+        frame.putInt(44, NUM_FRAMES);
+        frame.put(36 + 120, "LAME3.100".getBytes());
+        frame.put(36 + 141, (byte) (delay >> 4));
+        frame.put(36 + 142, (byte) (((delay & 0x0F) << 4) | (padding >> 8)));
+        frame.put(36 + 143, (byte) padding);
+        return frame.array();
+    }
+
+    private File writeFile(String name, byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        File file = mFolder.newFile(name);
+        Files.write(file.toPath(), out.toByteArray());
+        return file;
+    }
+
+    private File writeMp3(byte[] prefix) throws IOException {
+        byte[][] parts = new byte[NUM_FRAMES + 1][];
+        parts[0] = prefix;
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            parts[i + 1] = frame(i);
+        }
+        return writeFile("source.mp3", parts);
+    }
+
+    private static byte[] cut(MP3Cutter cutter, long startSample, long numSamples)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cutter.write(out, startSample, numSamples);
+        return out.toByteArray();
+    }
+
+    private static byte[] tail(byte[] data, int length) {
+        return Arrays.copyOfRange(data, data.length - length, data.length);
+    }
+
+    @Test
+    public void testGetFrameSize() {
+        assertEquals(417, MP3Cutter.getFrameSize(HEADER));
+        assertEquals(418, MP3Cutter.getFrameSize(HEADER | 0x0200)); // Padding.
+        assertEquals(208, MP3Cutter.getFrameSize(0xFFF38000)); // MPEG-2, 64 kbps, 22050Hz.
+        assertEquals(-1, MP3Cutter.getFrameSize(0xFFFF9000)); // Layer I.
+        assertEquals(-1, MP3Cutter.getFrameSize(0xFFFB0000)); // Free format.
+    }
+
+    @Test
+    public void testScanSkipsTags() throws IOException {
+        // ID3v2 tag of 20 bytes, then the frames, then an ID3v1 tag.
+        byte[] id3v2 = new byte[30];
+        System.arraycopy("ID3".getBytes(), 0, id3v2, 0, 3);
+        id3v2[3] = 4;
+        id3v2[9] = 20;
+        byte[] id3v1 = new byte[128];
+        System.arraycopy("TAG".getBytes(), 0, id3v1, 0, 3);
+        byte[][] parts = new byte[NUM_FRAMES + 2][];
+        parts[0] = id3v2;
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            parts[i + 1] = frame(i);
+        }
+        parts[NUM_FRAMES + 1] = id3v1;
+        MP3Cutter cutter = MP3Cutter.create(new InputSource(writeFile("tagged.mp3", parts)),
+                NUM_FRAMES * SAMPLES_PER_FRAME);
+        assertNotNull(cutter);
+        assertEquals(NUM_FRAMES, cutter.getNumFrames());
+        assertEquals(44100, cutter.getSampleRate());
+        assertEquals(2, cutter.getChannels());
+        assertEquals(SAMPLES_PER_FRAME, cutter.getSamplesPerFrame());
+    }
+
+    @Test
+    public void testCutCopiesTheFramesCoveringTheSelection() throws IOException {
+        MP3Cutter cutter = MP3Cutter.create(new InputSource(writeMp3(new byte[0])),
+                NUM_FRAMES * SAMPLES_PER_FRAME);
+        assertNotNull(cutter);
+        // Samples 1500 to 3500 are in frames 1 to 3.
+        byte[] output = cut(cutter, 1500, 2000);
+        byte[] expected = new byte[3 * FRAME_SIZE];
+        for (int i = 1; i < 4; i++) {
+            System.arraycopy(frame(i), 0, expected, (i - 1) * FRAME_SIZE, FRAME_SIZE);
+        }
+        assertArrayEquals(expected, tail(output, expected.length));
+
+        // The output starts with an Info frame describing the frames which follow it.
+        ByteBuffer xing = ByteBuffer.wrap(output);
+        int xingSize = MP3Cutter.getFrameSize(xing.getInt(0));
+        assertEquals(output.length, xingSize + expected.length);
+        assertEquals("Info", new String(output, 36, 4));
+        assertEquals(3, xing.getInt(44));
+        assertEquals(output.length, xing.getInt(48));
+
+        // The output can be cut again.
+        File file = mFolder.newFile("cut.mp3");
+        Files.write(file.toPath(), output);
+        MP3Cutter recut = MP3Cutter.create(new InputSource(file), 3 * SAMPLES_PER_FRAME);
+        assertNotNull(recut);
+        assertEquals(3, recut.getNumFrames());
+        assertArrayEquals(frame(3), tail(cut(recut, 2 * SAMPLES_PER_FRAME, 1), FRAME_SIZE));
+    }
+
+    @Test
+    public void testCutIncludesTheBitReservoir() throws IOException {
+        // Frame 2 starts its main data 500 bytes back, in frame 0, since the frames hold 381 bytes
+        // of main data each.
+        File file = writeFile("reservoir.mp3", frame(0), frame(1), frame(2, 500), frame(3));
+        MP3Cutter cutter = MP3Cutter.create(new InputSource(file), 4 * SAMPLES_PER_FRAME);
+        assertNotNull(cutter);
+        byte[] output = cut(cutter, 2 * SAMPLES_PER_FRAME, 1);
+        assertEquals(3, ByteBuffer.wrap(output).getInt(44));
+        assertArrayEquals(frame(0), Arrays.copyOfRange(output, output.length - 3 * FRAME_SIZE,
+                output.length - 2 * FRAME_SIZE));
+    }
+
+    @Test
+    public void testDecodedStartSkipsTheEncoderDelay() throws IOException {
+        File file = writeMp3(lameFrame(1576, 1000));
+        MP3Cutter cutter = MP3Cutter.create(new InputSource(file),
+                NUM_FRAMES * SAMPLES_PER_FRAME - 1576 - 1000);
+        assertNotNull(cutter);
+        // The LAME frame is not an audio frame.
+        assertEquals(NUM_FRAMES, cutter.getNumFrames());
+        // The first decoded sample is sample 1576 of the frames, in frame 1.
+        assertArrayEquals(frame(1), tail(cut(cutter, 0, 1), FRAME_SIZE));
+
+        // Decoders which do not skip the encoder delay output all the samples.
+        cutter = MP3Cutter.create(new InputSource(file), NUM_FRAMES * SAMPLES_PER_FRAME);
+        assertNotNull(cutter);
+        assertArrayEquals(frame(0), tail(cut(cutter, 0, 1), FRAME_SIZE));
+    }
+
+    @Test
+    public void testUnsupportedFiles() throws IOException {
+        File wav = writeFile("source.wav", WAVHeader.getWAVHeader(44100, 2, 0));
+        assertNull(MP3Cutter.create(new InputSource(wav), 0));
+        assertNull(MP3Cutter.create(new InputSource(writeFile("empty.mp3")), 0));
+    }
+}
@@ -25,6 +25,16 @@ public class MP4HeaderTest {
         assertEquals('p', header[7]);
     }
 
+    @Test
+    public void testMP4HeaderSizeOnlyDependsOnTheNumberOfFrames() {
+        int[] frameSizes = new int[]{2, 371, 0, 65535, 12};
+        byte[] header = MP4Header.getMP4Header(48000, 2, frameSizes, 128000);
+
+        assertNotNull(header);
+        assertEquals(header.length, MP4Header.getMP4HeaderSize(48000, 2, frameSizes.length));
+        assertEquals(-1, MP4Header.getMP4HeaderSize(48000, 2, 1));
+    }
+
     @Test
     public void testInvalidFrameSizes() {
         int sampleRate = 44100;
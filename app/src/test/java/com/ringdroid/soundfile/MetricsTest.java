@@ -0,0 +1,87 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MetricsTest {
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    private static String dump() {
+        StringWriter out = new StringWriter();
+        Metrics.dump(new PrintWriter(out));
+        return out.toString();
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        // Percentiles are upper bounds, at most twice the exact value.
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue(p50 >= 50 && p50 <= 100);
+        long p90 = histogram.getPercentile(0.9);
+        assertTrue(p90 >= 90 && p90 <= 100);
+        assertEquals(100, histogram.getPercentile(1));
+        assertEquals(0, new Metrics.Histogram().getPercentile(0.5));
+    }
+
+    @Test
+    public void testHistogramSingleValue() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.add(0);
+        assertEquals(0, histogram.getPercentile(0.5));
+        histogram.reset();
+        histogram.add(1000);
+        assertEquals(1000, histogram.getPercentile(0.01));
+    }
+
+    @Test
+    public void testDumpReportsThroughput() {
+        // 10 MB holding 100 s of audio, processed in 2 s.
+        Metrics.record(Metrics.Stage.DECODE, 1000000000L, 5000000, 50000000);
+        Metrics.record(Metrics.Stage.DECODE, 1000000000L, 5000000, 50000000);
+        assertEquals(2000000000L, Metrics.getTotalNs(Metrics.Stage.DECODE));
+        String dump = dump();
+        assertTrue(dump, dump.contains("decode: 2000.0 ms, 2 values"));
+        assertTrue(dump, dump.contains("5.0 MB/s"));
+        assertTrue(dump, dump.contains("50.0x realtime"));
+        // Stages which did not run are not reported.
+        assertFalse(dump, dump.contains("encode"));
+    }
+
+    @Test
+    public void testCountersAndHistogramsAreIgnoredWhenDisabled() {
+        Metrics.count("codec.created", 1);
+        Metrics.record("decode.buffer_bytes", 4096);
+        assertEquals("", dump());
+
+        Metrics.setEnabled(true);
+        Metrics.count("codec.created", 1);
+        Metrics.count("codec.created", 2);
+        Metrics.record("decode.buffer_bytes", 4096);
+        String dump = dump();
+        assertTrue(dump, dump.contains("codec.created: 3"));
+        assertTrue(dump, dump.contains("decode.buffer_bytes: 1 values"));
+        assertEquals(3, Metrics.getCount("codec.created"));
+        assertEquals(0, Metrics.getCount("decode.copied_bytes"));
+
+        Metrics.reset();
+        assertEquals("", dump());
+        assertEquals(0, Metrics.getCount("codec.created"));
+    }
+}
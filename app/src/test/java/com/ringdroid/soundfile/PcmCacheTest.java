@@ -0,0 +1,157 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PcmCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void writeFile(File file, int size, int seed) throws IOException {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private File newPcmFile(PcmCache cache, int size) throws IOException {
+        File pcmFile = cache.createTempFile();
+        writeFile(pcmFile, size, 0);
+        return pcmFile;
+    }
+
+    @Test
+    public void testKeyDependsOnContent() throws IOException {
+        File a = mFolder.newFile("a.mp3");
+        File b = mFolder.newFile("b.mp3");
+        writeFile(a, 200000, 1);
+        writeFile(b, 200000, 2);
+        b.setLastModified(a.lastModified());
+
+        String keyA = PcmCache.getKey(new InputSource(a));
+        assertNotNull(keyA);
+        assertEquals(keyA, PcmCache.getKey(new InputSource(a)));
+        assertNotEquals(keyA, PcmCache.getKey(new InputSource(b)));
+        assertNull(PcmCache.getKey(new InputSource(new File(mFolder.getRoot(), "missing.mp3"))));
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        PcmCache cache = new PcmCache(mFolder.getRoot(), 1 << 20);
+        File pcmFile = newPcmFile(cache, 4000);
+        assertNotEquals(pcmFile, cache.createTempFile());
+
+        assertNull(cache.get("key"));
+        assertTrue(cache.put("key", pcmFile, 44100, 2, 1000));
+        assertFalse(pcmFile.exists());
+
+        PcmCache.Entry entry = cache.get("key");
+        assertNotNull(entry);
+        assertEquals(44100, entry.sampleRate);
+        assertEquals(2, entry.channels);
+        assertEquals(1000, entry.numSamples);
+        assertEquals(4000, entry.pcmFile.length());
+    }
+
+    @Test
+    public void testIncompleteEntryIsIgnored() throws IOException {
+        PcmCache cache = new PcmCache(mFolder.getRoot(), 1 << 20);
+        assertTrue(cache.put("key", newPcmFile(cache, 3000), 44100, 2, 1000));
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void testEntryLargerThanBudgetIsRejected() throws IOException {
+        PcmCache cache = new PcmCache(mFolder.getRoot(), 1000);
+        File pcmFile = newPcmFile(cache, 4000);
+        assertFalse(cache.put("key", pcmFile, 44100, 2, 1000));
+        assertTrue(pcmFile.exists());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws IOException {
+        PcmCache cache = new PcmCache(mFolder.getRoot(), 10000);
+        assertTrue(cache.put("a", newPcmFile(cache, 4000), 44100, 1, 2000));
+        assertTrue(cache.put("b", newPcmFile(cache, 4000), 44100, 1, 2000));
+        File dir = new File(mFolder.getRoot(), "pcm_cache");
+        long now = System.currentTimeMillis();
+        new File(dir, "a.pcm").setLastModified(now - 20000);
+        new File(dir, "b.pcm").setLastModified(now - 10000);
+        // Make "a" the most recently used entry.
+        assertNotNull(cache.get("a"));
+
+        assertTrue(cache.put("c", newPcmFile(cache, 4000), 44100, 1, 2000));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void testPeaksAreKeptWhenPcmIsEvicted() throws IOException {
+        PcmCache cache = new PcmCache(mFolder.getRoot(), 5000);
+        assertNull(cache.getPeaks("a"));
+        assertTrue(cache.put("a", newPcmFile(cache, 4000), 44100, 1, 2000));
+        assertTrue(cache.putPeaks("a", new PeakFile(44100, 1, 2000, 1024, new int[]{1, 2})));
+        File dir = new File(mFolder.getRoot(), "pcm_cache");
+        new File(dir, "a.pcm").setLastModified(System.currentTimeMillis() - 10000);
+
+        assertTrue(cache.put("b", newPcmFile(cache, 4000), 44100, 1, 2000));
+        assertNull(cache.get("a"));
+        PeakFile peaks = cache.getPeaks("a");
+        assertNotNull(peaks);
+        assertEquals(2000, peaks.numSamples);
+        assertEquals(2, peaks.frameGains.length);
+
+        cache.remove("a");
+        assertNull(cache.getPeaks("a"));
+    }
+
+    @Test
+    public void testStaleTempFilesAreDeleted() throws IOException {
+        File dir = new File(mFolder.getRoot(), "pcm_cache");
+        assertTrue(dir.mkdirs());
+        File staleFile = new File(dir, "decoding_1.tmp");
+        writeFile(staleFile, 100, 0);
+        staleFile.setLastModified(System.currentTimeMillis() - 3600000);
+        File entryFile = new File(dir, "a.pcm");
+        writeFile(entryFile, 100, 0);
+        entryFile.setLastModified(System.currentTimeMillis() - 3600000);
+
+        PcmCache cache = new PcmCache(mFolder.getRoot(), 1 << 20);
+        File tempFile = cache.createTempFile();
+        new PcmCache(mFolder.getRoot(), 1 << 20);
+        assertFalse(staleFile.exists());
+        assertTrue(entryFile.exists());
+        // Temp files of this process are kept.
+        assertTrue(tempFile.exists());
+    }
+
+    @Test
+    public void testStaleTempFilesOfOtherDirectoryAreDeleted() throws IOException {
+        File staleFile = mFolder.newFile("ringdroid_pcm_1.raw");
+        staleFile.setLastModified(System.currentTimeMillis() - 3600000);
+        File freshFile = mFolder.newFile("ringdroid_rec_2.aac");
+        File otherFile = mFolder.newFile("other.raw");
+        otherFile.setLastModified(System.currentTimeMillis() - 3600000);
+
+        PcmCache.deleteStaleTempFiles(mFolder.getRoot(), "ringdroid_");
+        assertFalse(staleFile.exists());
+        assertTrue(freshFile.exists());
+        assertTrue(otherFile.exists());
+    }
+}
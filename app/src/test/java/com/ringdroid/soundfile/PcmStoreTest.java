@@ -0,0 +1,179 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PcmStoreTest {
+    // A tiny segment size, so that the tests span many segments.
+    private static final int SEGMENT_SIZE = 6;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static ByteBuffer samples(int first, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(count * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; i++) {
+            buffer.putShort((short) (first + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void testAppendAcrossSegments() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(mFolder.newFile(), "rw")) {
+            PcmStore store = new PcmStore(raf.getChannel(), FileChannel.MapMode.READ_WRITE,
+                    SEGMENT_SIZE);
+            // Odd sized buffers, so that samples are split between two appends.
+            ByteBuffer data = samples(-5, 10);
+            for (int limit : new int[]{3, 4, 11, 20}) {
+                data.limit(limit);
+                store.append(data);
+                assertFalse(data.hasRemaining());
+            }
+            assertEquals(20, store.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i - 5, store.getShort(i));
+            }
+            short[] shorts = new short[7];
+            store.getShorts(2, shorts, 1, 6);
+            assertArrayEquals(new short[]{0, -3, -2, -1, 0, 1, 2}, shorts);
+            byte[] bytes = new byte[8];
+            assertEquals(5, store.get(15, bytes, 0, 8));
+            assertEquals(3, bytes[1]);
+        }
+    }
+
+    @Test
+    public void testReadOnlyStore() throws IOException {
+        File file = mFolder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.getChannel().write(samples(100, 7), 0);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            PcmStore store = new PcmStore(raf.getChannel(), FileChannel.MapMode.READ_ONLY,
+                    SEGMENT_SIZE);
+            store.setSize(14);
+            assertEquals(106, store.getShort(6));
+            try {
+                store.append(samples(0, 1));
+                fail();
+            } catch (ReadOnlyBufferException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testMapFromOffset() throws IOException {
+        File file = mFolder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // 5 bytes before the data, and one sample after it.
+            raf.getChannel().write(ByteBuffer.wrap(new byte[]{9, 9, 9, 9, 9}), 0);
+            raf.getChannel().write(samples(100, 8), 5);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            PcmStore store = PcmStore.map(raf.getChannel(), 5, 14, SEGMENT_SIZE);
+            assertEquals(14, store.size());
+            for (int i = 0; i < 7; i++) {
+                assertEquals(100 + i, store.getShort(i));
+            }
+            short[] shorts = new short[4];
+            store.getShorts(2, shorts, 0, 4);
+            assertArrayEquals(new short[]{102, 103, 104, 105}, shorts);
+            try {
+                store.getShort(7);
+                fail();
+            } catch (IndexOutOfBoundsException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testSampleBuffer() throws IOException {
+        PcmStore store = PcmStore.wrap(samples(0, 10));
+        SampleBuffer buffer = new SampleBuffer(store, 8);
+        assertEquals(8, buffer.remaining());
+        buffer.position(2);
+        short[] shorts = new short[4];
+        buffer.get(shorts);
+        assertArrayEquals(new short[]{2, 3, 4, 5}, shorts);
+        SampleBuffer duplicate = buffer.duplicate();
+        assertEquals(6, duplicate.get());
+        assertEquals(6, buffer.position());
+        buffer.limit(7);
+        assertEquals(6, buffer.get());
+        assertFalse(buffer.hasRemaining());
+        assertEquals(1, buffer.get(1));
+    }
+
+    @Test
+    public void testAllocatedStoresGrowInMemory() throws IOException {
+        for (boolean direct : new boolean[]{false, true}) {
+            PcmStore store = PcmStore.allocate(direct, SEGMENT_SIZE);
+            ByteBuffer data = samples(-5, 10);
+            data.limit(7);
+            store.append(data);
+            data.limit(20);
+            store.append(data);
+            assertEquals(20, store.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i - 5, store.getShort(i));
+            }
+            // The data can be written out, e.g. to the PCM cache.
+            File file = mFolder.newFile();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                store.writeTo(raf.getChannel());
+            }
+            assertEquals(20, file.length());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                PcmStore copy = PcmStore.map(raf.getChannel(), 0, 20, SEGMENT_SIZE);
+                assertEquals(4, copy.getShort(9));
+            }
+        }
+    }
+
+    @Test
+    public void testWriteRangesFromSeveralThreads() throws Exception {
+        for (boolean direct : new boolean[]{false, true}) {
+            PcmStore store = PcmStore.allocate(direct, SEGMENT_SIZE);
+            // Each thread writes 25 samples, the way ParallelDecoder workers write their ranges.
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int first = t * 25;
+                threads[t] = new Thread(() -> {
+                    try {
+                        store.write(samples(first, 25), first * 2L);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+            for (int t = threads.length - 1; t >= 0; t--) {
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // Written data is only readable once the size is set.
+            assertEquals(0, store.size());
+            store.setSize(200);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, store.getShort(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PeakFileTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        int[] frameGains = {0, 1, 42, 181};
+        File file = new File(mFolder.getRoot(), "test.peaks");
+        new PeakFile(44100, 2, 3100, 1024, frameGains).write(file);
+        assertEquals(8 + 24 + frameGains.length, file.length());
+
+        PeakFile peaks = PeakFile.read(file);
+        assertEquals(44100, peaks.sampleRate);
+        assertEquals(2, peaks.channels);
+        assertEquals(3100, peaks.numSamples);
+        assertEquals(1024, peaks.samplesPerFrame);
+        assertArrayEquals(frameGains, peaks.frameGains);
+    }
+
+    @Test
+    public void testReadInvalidFile() throws IOException {
+        File file = mFolder.newFile("invalid.peaks");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[64]);
+        }
+        try {
+            PeakFile.read(file);
+            fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testReadInconsistentFile() throws IOException {
+        File file = new File(mFolder.getRoot(), "test.peaks");
+        // 3 frames cannot hold 5000 samples.
+        new PeakFile(44100, 1, 5000, 1024, new int[3]).write(file);
+        try {
+            PeakFile.read(file);
+            fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PeakPyramidTest {
+    private static short[] randomSamples(int count, long seed) {
+        Random random = new Random(seed);
+        short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) random.nextInt(1 << 16);
+        }
+        return samples;
+    }
+
+    private static ByteBuffer toBytes(short[] samples) {
+        ByteBuffer bytes = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(samples);
+        return bytes;
+    }
+
+    // Feeds the bytes in chunks of random sizes, not aligned on samples.
+    private static void process(PeakPyramid pyramid, ByteBuffer bytes, long seed) {
+        Random random = new Random(seed);
+        for (int position = 0; position < bytes.limit();) {
+            int end = Math.min(bytes.limit(), position + 1 + random.nextInt(3000));
+            ByteBuffer chunk = bytes.duplicate();
+            chunk.limit(end);
+            chunk.position(position);
+            pyramid.process(chunk);
+            position = end;
+        }
+    }
+
+    // Checks the peaks read from pyramid against the ones computed from the samples themselves.
+    // The ranges must be aligned on the blocks of the pyramid.
+    private static void checkPeaks(PeakPyramid pyramid, short[] samples, int channels,
+            long firstSample, long samplesPerPixel, int numPixels, int channel) {
+        long numSamples = pyramid.getNumSamples();
+        byte[] min = new byte[numPixels];
+        byte[] max = new byte[numPixels];
+        byte[] expectedMin = new byte[numPixels];
+        byte[] expectedMax = new byte[numPixels];
+        int expectedNumPixels = 0;
+        for (int i = 0; i < numPixels; i++) {
+            long start = firstSample + i * samplesPerPixel;
+            long end = Math.min(start + samplesPerPixel, numSamples);
+            if (start >= end) {
+                break;
+            }
+            int lo = Byte.MAX_VALUE;
+            int hi = Byte.MIN_VALUE;
+            for (long s = start; s < end; s++) {
+                for (int c = 0; c < channels; c++) {
+                    if (channel < 0 || c == channel) {
+                        int value = samples[(int) (s * channels + c)] >> 8;
+                        lo = Math.min(lo, value);
+                        hi = Math.max(hi, value);
+                    }
+                }
+            }
+            expectedMin[i] = (byte) lo;
+            expectedMax[i] = (byte) hi;
+            expectedNumPixels++;
+        }
+        assertEquals(expectedNumPixels,
+                pyramid.getPeaks(firstSample, samplesPerPixel, numPixels, channel, min, max));
+        assertArrayEquals(expectedMin, min);
+        assertArrayEquals(expectedMax, max);
+    }
+
+    @Test
+    public void testFinishedPyramid() {
+        int channels = 2;
+        int numSamples = 100 * PeakPyramid.BASE_BLOCK_SIZE + 17;
+        short[] samples = randomSamples(channels * numSamples, 1);
+        PeakPyramid pyramid = new PeakPyramid(channels);
+        process(pyramid, toBytes(samples), 2);
+        pyramid.finish();
+        assertEquals(numSamples, pyramid.getNumSamples());
+        for (long samplesPerPixel = 64; samplesPerPixel <= 8192; samplesPerPixel *= 2) {
+            checkPeaks(pyramid, samples, channels, 0, samplesPerPixel, 200, -1);
+            checkPeaks(pyramid, samples, channels, 3 * samplesPerPixel, samplesPerPixel, 5, 1);
+        }
+        checkPeaks(pyramid, samples, channels, 0, numSamples, 1, -1);
+    }
+
+    @Test
+    public void testPyramidBeingComputed() {
+        // Before finish(), the last blocks of each level are not merged yet.
+        int channels = 1;
+        int numSamples = 37 * PeakPyramid.BASE_BLOCK_SIZE + 5;
+        short[] samples = randomSamples(numSamples, 3);
+        PeakPyramid pyramid = new PeakPyramid(channels);
+        process(pyramid, toBytes(samples), 4);
+        assertEquals(37 * PeakPyramid.BASE_BLOCK_SIZE, pyramid.getNumSamples());
+        for (long samplesPerPixel = 64; samplesPerPixel <= 4096; samplesPerPixel *= 2) {
+            checkPeaks(pyramid, samples, channels, 0, samplesPerPixel, 100, 0);
+        }
+    }
+
+    @Test
+    public void testSeveralChunks() {
+        int channels = 1;
+        int numSamples = 9000 * PeakPyramid.BASE_BLOCK_SIZE + 40;
+        short[] samples = randomSamples(numSamples, 5);
+        PeakPyramid pyramid = new PeakPyramid(channels);
+        process(pyramid, toBytes(samples), 6);
+        pyramid.finish();
+        assertEquals(numSamples, pyramid.getNumSamples());
+        for (long samplesPerPixel = 64; samplesPerPixel <= 65536; samplesPerPixel *= 4) {
+            checkPeaks(pyramid, samples, channels, 0, samplesPerPixel,
+                    (int) (numSamples / samplesPerPixel) + 1, 0);
+        }
+    }
+
+    @Test
+    public void testBlockSizeOfLongFiles() {
+        assertEquals(PeakPyramid.BASE_BLOCK_SIZE, new PeakPyramid(2, 44100 * 600).getBlockSize());
+        // 10 hours of stereo audio.
+        assertEquals(2048, new PeakPyramid(2, 44100L * 36000).getBlockSize());
+    }
+
+    @Test
+    public void testMemoryCap() {
+        // More data than expected: the lowest levels are dropped as the data is processed.
+        int channels = 2;
+        int numSamples = 3000 * PeakPyramid.BASE_BLOCK_SIZE + 9;
+        short[] samples = randomSamples(channels * numSamples, 7);
+        PeakPyramid pyramid = new PeakPyramid(channels, 0, 4096);
+        process(pyramid, toBytes(samples), 8);
+        assertTrue(pyramid.getNumBytes() <= 4096);
+        assertTrue(pyramid.getBlockSize() > PeakPyramid.BASE_BLOCK_SIZE);
+        assertEquals(0, pyramid.getNumSamples() % pyramid.getBlockSize());
+        checkPeaks(pyramid, samples, channels, 0, pyramid.getBlockSize(), 100, -1);
+        pyramid.finish();
+        assertEquals(numSamples, pyramid.getNumSamples());
+        for (long samplesPerPixel = pyramid
+                .getBlockSize(); samplesPerPixel <= 65536; samplesPerPixel *= 2) {
+            checkPeaks(pyramid, samples, channels, 0, samplesPerPixel, 100, -1);
+            checkPeaks(pyramid, samples, channels, samplesPerPixel, samplesPerPixel, 7, 0);
+        }
+    }
+
+    @Test
+    public void testSilence() {
+        PeakPyramid pyramid = new PeakPyramid(2);
+        pyramid.process(ByteBuffer.allocate(4 * 1000));
+        pyramid.finish();
+        byte[] min = new byte[4];
+        byte[] max = new byte[4];
+        assertEquals(4, pyramid.getPeaks(0, 256, 10, -1, min, max));
+        assertArrayEquals(new byte[4], min);
+        assertArrayEquals(new byte[4], max);
+    }
+}
@@ -0,0 +1,37 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PreviewDecoderTest {
+    @Test
+    public void testInterpolate() {
+        int[] frameGains = {-1, -1, 10, -1, -1, -1, 50, 20, -1, -1};
+        PreviewDecoder.interpolate(frameGains);
+        assertArrayEquals(new int[]{10, 10, 10, 20, 30, 40, 50, 20, 20, 20}, frameGains);
+    }
+
+    @Test
+    public void testInterpolateNothingDecoded() {
+        int[] frameGains = {-1, -1, -1};
+        PreviewDecoder.interpolate(frameGains);
+        assertArrayEquals(new int[3], frameGains);
+    }
+
+    @Test
+    public void testStride() {
+        // Short files are decoded without preview.
+        assertEquals(0, PreviewDecoder.getStride(3 * 60 * 1000000L));
+        assertEquals(10, PreviewDecoder.getStride(5 * 60 * 1000000L));
+        assertEquals(32, PreviewDecoder.getStride(3600 * 1000000L));
+    }
+
+    @Test
+    public void testProgressShare() {
+        // A preview decodes 2 compressed samples out of every stride ones.
+        assertEquals(0.2f, PreviewDecoder.getProgressShare(8), 1e-6f);
+        assertEquals(2f / 34, PreviewDecoder.getProgressShare(32), 1e-6f);
+    }
+}
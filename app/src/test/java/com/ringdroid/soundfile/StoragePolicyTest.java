@@ -0,0 +1,75 @@
+package com.ringdroid.soundfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class StoragePolicyTest {
+    private static final long MB = 1 << 20;
+
+    @Test
+    public void testChooseBySize() {
+        StoragePolicy policy = new StoragePolicy(256 * MB, -1);
+        long freeSpace = 1024 * MB;
+        assertEquals(StoragePolicy.Storage.HEAP, policy.choose(10 * MB, freeSpace));
+        assertEquals(StoragePolicy.Storage.HEAP, policy.choose(32 * MB, freeSpace));
+        assertEquals(StoragePolicy.Storage.DIRECT, policy.choose(64 * MB, freeSpace));
+        assertEquals(StoragePolicy.Storage.MAPPED, policy.choose(500 * MB, freeSpace));
+        assertNull(policy.choose(2048 * MB, freeSpace));
+    }
+
+    @Test
+    public void testLowDiskSpaceFallsBackOnMemory() {
+        StoragePolicy policy = new StoragePolicy(256 * MB, -1);
+        // The free space is not enough once the margin is kept free.
+        long freeSpace = 100 * MB;
+        assertEquals(StoragePolicy.Storage.MAPPED, policy.choose(80 * MB, 200 * MB));
+        // Memory is tight: the data is compressed.
+        assertEquals(StoragePolicy.Storage.COMPRESSED, policy.choose(100 * MB, freeSpace));
+        assertNull(policy.choose(200 * MB, freeSpace));
+        // No cache directory.
+        assertEquals(StoragePolicy.Storage.HEAP, policy.choose(MB, 0));
+    }
+
+    @Test
+    public void testBudget() {
+        StoragePolicy policy = new StoragePolicy(256 * MB, 10);
+        assertEquals(StoragePolicy.Storage.HEAP, policy.choose(10, 0));
+        assertNull(policy.choose(11, 1024 * MB));
+        assertEquals(10, policy.getMaxBytes(StoragePolicy.Storage.MAPPED, 1024 * MB));
+    }
+
+    @Test
+    public void testMaxBytes() {
+        StoragePolicy policy = new StoragePolicy(256 * MB, -1);
+        assertEquals(32 * MB, policy.getMaxBytes(StoragePolicy.Storage.HEAP, 0));
+        assertEquals(128 * MB, policy.getMaxBytes(StoragePolicy.Storage.DIRECT, 0));
+        assertEquals(936 * MB, policy.getMaxBytes(StoragePolicy.Storage.MAPPED, 1000 * MB));
+        assertEquals(0, policy.getMaxBytes(StoragePolicy.Storage.MAPPED, MB));
+    }
+
+    @Test
+    public void testRecordingIsMappedWheneverThereIsRoom() {
+        StoragePolicy policy = new StoragePolicy(256 * MB, -1);
+        // Even short recordings are mapped, since they may go on for hours.
+        assertEquals(StoragePolicy.Storage.MAPPED, policy.chooseForRecording(MB, 1024 * MB));
+        assertEquals(StoragePolicy.Storage.MAPPED, policy.chooseForRecording(MB, 65 * MB));
+        // Without room on disk, recordings are kept in memory.
+        assertEquals(StoragePolicy.Storage.HEAP, policy.chooseForRecording(MB, 0));
+        assertNull(new StoragePolicy(256 * MB, 10).chooseForRecording(MB, 1024 * MB));
+    }
+
+    @Test
+    public void testCompressedWhenMemoryIsTight() {
+        StoragePolicy policy = new StoragePolicy(256 * MB, -1);
+        // Files which fit in memory, or on disk, stay uncompressed.
+        assertEquals(StoragePolicy.Storage.DIRECT, policy.choose(64 * MB, 0));
+        assertEquals(StoragePolicy.Storage.MAPPED, policy.choose(100 * MB, 1024 * MB));
+        // Without room on disk, the data is compressed to half of it.
+        assertEquals(StoragePolicy.Storage.COMPRESSED, policy.choose(100 * MB, 0));
+        assertEquals(StoragePolicy.Storage.COMPRESSED, policy.choose(128 * MB, 0));
+        assertNull(policy.choose(129 * MB, 0));
+        assertEquals(128 * MB, policy.getMaxBytes(StoragePolicy.Storage.COMPRESSED, 0));
+    }
+}
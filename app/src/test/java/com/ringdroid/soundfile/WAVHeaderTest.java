@@ -2,10 +2,59 @@ package com.ringdroid.soundfile;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class WAVHeaderTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] chunk(String id, int size, int paddedSize) {
+        ByteBuffer chunk = ByteBuffer.allocate(8 + paddedSize).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 4; i++) {
+            chunk.put((byte) id.charAt(i));
+        }
+        chunk.putInt(size);
+        return chunk.array();
+    }
+
+    private static byte[] fmt(int format, int channels, int sampleRate, int bitsPerSample) {
+        byte[] chunk = chunk("fmt ", 16, 16);
+        ByteBuffer body = ByteBuffer.wrap(chunk, 8, 16).order(ByteOrder.LITTLE_ENDIAN);
+        body.putShort((short) format);
+        body.putShort((short) channels);
+        body.putInt(sampleRate);
+        body.putInt(sampleRate * channels * bitsPerSample / 8);
+        body.putShort((short) (channels * bitsPerSample / 8));
+        body.putShort((short) bitsPerSample);
+        return chunk;
+    }
+
+    private WAVHeader parse(byte[]... chunks) throws IOException {
+        File file = mFolder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            int size = 4;
+            for (byte[] chunk : chunks) {
+                size += chunk.length;
+            }
+            raf.write(chunk("RIFF", size, 0));
+            raf.write(new byte[]{'W', 'A', 'V', 'E'});
+            for (byte[] chunk : chunks) {
+                raf.write(chunk);
+            }
+            return WAVHeader.parse(raf.getChannel());
+        }
+    }
+
     @Test
     public void testWAVHeader() {
         int sampleRate = 44100;
@@ -40,4 +89,71 @@ public class WAVHeaderTest {
         assertEquals('t', header[38]);
         assertEquals('a', header[39]);
     }
+
+    @Test
+    public void testParseWrittenHeader() throws IOException {
+        File file = mFolder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(WAVHeader.getWAVHeader(22050, 2, 100));
+            raf.setLength(44 + 400);
+            WAVHeader header = WAVHeader.parse(raf.getChannel());
+            assertNotNull(header);
+            assertEquals(22050, header.getSampleRate());
+            assertEquals(2, header.getChannels());
+            assertEquals(100, header.getNumSamples());
+            assertEquals(44, header.getDataOffset());
+        }
+    }
+
+    @Test
+    public void testParseSkipsOtherChunks() throws IOException {
+        // An odd sized chunk is followed by a padding byte.
+        WAVHeader header = parse(chunk("LIST", 3, 4), fmt(1, 1, 8000, 16), chunk("fact", 4, 4),
+                chunk("data", 10, 10));
+        assertNotNull(header);
+        assertEquals(8000, header.getSampleRate());
+        assertEquals(1, header.getChannels());
+        assertEquals(5, header.getNumSamples());
+        assertEquals(12 + 12 + 24 + 12 + 8, header.getDataOffset());
+    }
+
+    @Test
+    public void testParseTruncatedData() throws IOException {
+        // The data chunk claims more bytes than the file holds.
+        WAVHeader header = parse(fmt(1, 2, 44100, 16), chunk("data", 1000, 12));
+        assertNotNull(header);
+        assertEquals(3, header.getNumSamples());
+    }
+
+    @Test
+    public void testParseDataLongerThan4GB() throws IOException {
+        // The data size is set to its maximum value, and the data goes until the end of the file.
+        long numSamples = 5L << 28; // 5GB of stereo samples.
+        File file = mFolder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(WAVHeader.getWAVHeader(44100, 2, numSamples));
+            raf.setLength(44 + numSamples * 4); // Sparse.
+            WAVHeader header = WAVHeader.parse(raf.getChannel());
+            assertNotNull(header);
+            assertEquals(numSamples, header.getNumSamples());
+        }
+    }
+
+    @Test
+    public void testParseUnknownDataSize() throws IOException {
+        // Streaming writers may leave the data size to 0.
+        WAVHeader header = parse(fmt(1, 2, 44100, 16), chunk("data", 0, 12));
+        assertNotNull(header);
+        assertEquals(3, header.getNumSamples());
+    }
+
+    @Test
+    public void testParseRejectsNonPcm() throws IOException {
+        // 8 bits PCM, IMA ADPCM, data before fmt, and no data chunk.
+        assertNull(parse(fmt(1, 1, 8000, 8), chunk("data", 4, 4)));
+        assertNull(parse(fmt(0x11, 1, 8000, 4), chunk("data", 4, 4)));
+        assertNull(parse(chunk("data", 4, 4), fmt(1, 1, 8000, 16)));
+        assertNull(parse(fmt(1, 1, 8000, 16)));
+        assertNull(parse());
+    }
 }